@@ -10,6 +10,7 @@ package org.sonatype.p2.bridge;
 import java.io.File;
 import java.net.URI;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import org.sonatype.p2.bridge.model.InstallableArtifact;
@@ -24,8 +25,31 @@ public interface ArtifactRepository
     void write( URI location, final Collection<InstallableArtifact> artifacts, String name,
                 Map<String, String> properties, final String[][] mappings );
 
+    /**
+     * Same as {@link #write(URI, Collection, String, Map, String[][])} but reports how long it took. All artifact
+     * descriptors are created upfront and added to the repository at once, so the repository is saved only once.
+     *
+     * @return number of written artifacts and timings
+     * @since 1.1.10
+     */
+    ArtifactWriteResult writeBatch( URI location, final Collection<InstallableArtifact> artifacts, String name,
+                                    Map<String, String> properties, final String[][] mappings );
+
     void resolve( URI location, ArtifactResolver artifactResolver );
 
+    /**
+     * Resolves the files of all artifacts present in specified p2 repository via specified resolver and copies them
+     * into the repository. Failure of one artifact does not stop the others; all failures are reported in the
+     * returned result.
+     *
+     * @param location URI of p2 repository
+     * @param artifactResolver resolver of artifact files
+     * @param options resolution options (can be null for defaults)
+     * @return number of resolved artifacts and failures
+     * @since 1.1.10
+     */
+    ResolveResult resolve( URI location, ArtifactResolver artifactResolver, ResolveOptions options );
+
     Collection<InstallableArtifact> getInstallableArtifacts( URI location );
 
     Map<String, String> getProperties( URI location );
@@ -33,6 +57,18 @@ public interface ArtifactRepository
     void createProxyRepository( final URI location, final String username, final String password,
                                 final URI destination, final File artifactMappingsXmlFile );
 
+    /**
+     * Same as {@link #createProxyRepository(URI, String, String, URI, File)} but reports whether the remote repository
+     * changed and, for a remote composite, how long loading each child took and which children are referenced more
+     * than once or reference one of their parents. Children of a composite are loaded concurrently, bounded by property
+     * p2.bridge.compositeLoad.threads.
+     *
+     * @return whether the proxy was updated and how the remote composite was loaded
+     * @since 1.1.10
+     */
+    ProxyResult refreshProxyRepository( URI location, String username, String password, URI destination,
+                                        File artifactMappingsXmlFile );
+
     /**
      * Merges all artifacts present in specified location into destination. If artifacts are already present they will
      * be updated.
@@ -42,6 +78,17 @@ public interface ArtifactRepository
      */
     void merge( URI location, URI destination );
 
+    /**
+     * Merges all artifacts present in specified locations into destination, in one go: destination is loaded and saved
+     * only once. Locations are applied in order, so an artifact present in more locations is taken from the last one.
+     *
+     * @param locations URIs of p2 repositories containing artifacts to be merged
+     * @param destination URI of p2 repository into which artifacts should be merged
+     * @return number of added and replaced artifacts (artifacts are always replaced, none is reported unchanged)
+     * @since 1.1.10
+     */
+    MergeResult merge( List<URI> locations, URI destination );
+
     /**
      * Removes all artifacts present in specified location from destination.
      * 
@@ -50,4 +97,42 @@ public interface ArtifactRepository
      */
     void remove( URI location, URI destination );
 
+    /**
+     * Same as {@link #remove(URI, URI)} and, when asked to, deletes the artifact files no longer referenced by any
+     * artifact of destination afterwards, as {@link #gc(URI, boolean)} does.
+     *
+     * @param location URI of p2 repository containing artifacts to be removed
+     * @param destination URI of p2 repository from where artifacts should be removed
+     * @param gc if true, orphaned artifact files of destination are deleted
+     * @return deleted files (none if gc is false)
+     * @since 1.1.10
+     */
+    GcResult remove( URI location, URI destination, boolean gc );
+
+    /**
+     * Deletes the artifact files of specified (local) repository that no artifact of the repository references, such
+     * as the files of artifacts removed via {@link #remove(URI, URI)}. Files are looked for in the plugins, features
+     * and binary folders of the repository and in every top level folder holding a referenced artifact file. Files
+     * named after a referenced file plus an extension (e.g. checksums) are kept. Files are checked and deleted
+     * concurrently.
+     *
+     * @param location URI of p2 repository
+     * @param dryRun if true, orphaned files are only reported, not deleted
+     * @return orphaned files and bytes reclaimed
+     * @since 1.1.10
+     */
+    GcResult gc( URI location, boolean dryRun );
+
+    /**
+     * Deletes the blobs of the shared artifact store no repository file is linked to anymore, e.g. because the
+     * artifact was removed and collected via {@link #gc(URI, boolean)}. The store is used when property
+     * p2.bridge.blobStore.directory is set: artifacts resolved with {@link CopyStrategy#LINK} are then stored once per
+     * content and linked into every repository holding them.
+     *
+     * @param dryRun if true, unreferenced blobs are only reported, not deleted
+     * @return unreferenced blobs and bytes reclaimed (none if the store is not used)
+     * @since 1.1.10
+     */
+    GcResult gcBlobStore( boolean dryRun );
+
 }
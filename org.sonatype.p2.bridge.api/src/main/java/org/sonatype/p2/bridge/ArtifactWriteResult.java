@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+/**
+ * Outcome of writing artifacts into an artifact repository.
+ *
+ * @since 1.1.10
+ */
+public class ArtifactWriteResult
+{
+
+    private final int artifactCount;
+
+    private final long descriptorCreationTime;
+
+    private final long saveTime;
+
+    public ArtifactWriteResult( final int artifactCount, final long descriptorCreationTime, final long saveTime )
+    {
+        this.artifactCount = artifactCount;
+        this.descriptorCreationTime = descriptorCreationTime;
+        this.saveTime = saveTime;
+    }
+
+    /**
+     * @return number of artifacts written
+     */
+    public int getArtifactCount()
+    {
+        return artifactCount;
+    }
+
+    /**
+     * @return time (in milliseconds) spent creating artifact descriptors (including checksum calculation)
+     */
+    public long getDescriptorCreationTime()
+    {
+        return descriptorCreationTime;
+    }
+
+    /**
+     * @return time (in milliseconds) spent adding the descriptors to the repository and saving it
+     */
+    public long getSaveTime()
+    {
+        return saveTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s artifacts (descriptors created in %s ms, saved in %s ms)", getArtifactCount(),
+            getDescriptorCreationTime(), getSaveTime() );
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+/**
+ * How resolved artifact files are brought into a p2 repository. Each strategy falls back to the next one when it is
+ * not possible (e.g. source and repository are on different file systems).
+ *
+ * @since 1.1.10
+ */
+public enum CopyStrategy
+{
+
+    /**
+     * Hard link the resolved file into the repository. The repository file then shares its content with the resolved
+     * file, so the resolved file must not be modified in place afterwards. Falls back to {@link #TRANSFER}.
+     * <p>
+     * When a blob store is configured (property p2.bridge.blobStore.directory), the resolved file is copied into the
+     * store once per content instead, and the repository file is hard linked to the stored copy.
+     */
+    LINK,
+
+    /**
+     * Copy via file channel transfer, letting the operating system copy the bytes without passing them through the
+     * JVM. Falls back to {@link #STREAM}.
+     */
+    TRANSFER,
+
+    /**
+     * Copy via buffered streams.
+     */
+    STREAM
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link ArtifactRepository#gc(java.net.URI, boolean)}.
+ *
+ * @since 1.1.10
+ */
+public class GcResult
+{
+
+    private final List<File> files;
+
+    private final long bytesReclaimed;
+
+    private final int failed;
+
+    private final boolean dryRun;
+
+    public GcResult( final List<File> files, final long bytesReclaimed, final int failed, final boolean dryRun )
+    {
+        this.files = files == null ? Collections.<File> emptyList() : files;
+        this.bytesReclaimed = bytesReclaimed;
+        this.failed = failed;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * @return orphaned files deleted (or, on a dry run, that would have been deleted). Never null
+     */
+    public List<File> getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * @return number of bytes of deleted files (or, on a dry run, of files that would have been deleted)
+     */
+    public long getBytesReclaimed()
+    {
+        return bytesReclaimed;
+    }
+
+    /**
+     * @return number of orphaned files that could not be deleted
+     */
+    public int getFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * @return true if nothing was deleted, orphaned files were only reported
+     */
+    public boolean isDryRun()
+    {
+        return dryRun;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s orphaned files %s (%s bytes), %s failed", getFiles().size(),
+            isDryRun() ? "found" : "deleted", getBytesReclaimed(), getFailed() );
+    }
+
+}
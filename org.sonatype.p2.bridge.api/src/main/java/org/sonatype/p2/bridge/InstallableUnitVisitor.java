@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+import org.sonatype.p2.bridge.model.InstallableUnit;
+
+/**
+ * Receives the installable units streamed by
+ * {@link MetadataRepository#visitInstallableUnits(java.net.URI, String, String, InstallableUnitVisitor)}, one at a
+ * time.
+ *
+ * @since 1.1.10
+ */
+public interface InstallableUnitVisitor
+{
+
+    /**
+     * @param unit next installable unit. It is not referenced anymore once this method returns.
+     * @return true to continue with the next unit, false to stop
+     */
+    boolean visit( InstallableUnit unit );
+
+}
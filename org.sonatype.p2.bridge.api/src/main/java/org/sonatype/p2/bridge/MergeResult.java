@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+/**
+ * Outcome of merging a repository into another one.
+ *
+ * @since 1.1.10
+ */
+public class MergeResult
+{
+
+    private final int added;
+
+    private final int replaced;
+
+    private final int unchanged;
+
+    private final long saveTime;
+
+    public MergeResult( final int added, final int replaced, final int unchanged )
+    {
+        this( added, replaced, unchanged, 0 );
+    }
+
+    public MergeResult( final int added, final int replaced, final int unchanged, final long saveTime )
+    {
+        this.added = added;
+        this.replaced = replaced;
+        this.unchanged = unchanged;
+        this.saveTime = saveTime;
+    }
+
+    /**
+     * @return number of entries that were not present in destination
+     */
+    public int getAdded()
+    {
+        return added;
+    }
+
+    /**
+     * @return number of entries present in destination with different content, that were replaced
+     */
+    public int getReplaced()
+    {
+        return replaced;
+    }
+
+    /**
+     * @return number of entries already present in destination with same content, that were left untouched
+     */
+    public int getUnchanged()
+    {
+        return unchanged;
+    }
+
+    /**
+     * @return milliseconds spent saving destination, 0 if it was not saved
+     */
+    public long getSaveTime()
+    {
+        return saveTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s added, %s replaced, %s unchanged (saved in %s ms)", getAdded(), getReplaced(),
+            getUnchanged(), getSaveTime() );
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+import org.sonatype.p2.bridge.model.InstallableUnit;
+
+/**
+ * Receives the differences found by {@link MetadataRepository#diff(java.net.URI, java.net.URI, MetadataDiffListener)},
+ * one installable unit at a time.
+ *
+ * @since 1.1.10
+ */
+public interface MetadataDiffListener
+{
+
+    /**
+     * IU is present only in the new repository.
+     */
+    void added( InstallableUnit unit );
+
+    /**
+     * IU is present only in the old repository.
+     */
+    void removed( InstallableUnit unit );
+
+    /**
+     * IU with same id and version is present in both repositories, but with a different content (capabilities,
+     * requirements, properties, touchpoint data, ...).
+     */
+    void changed( InstallableUnit oldUnit, InstallableUnit newUnit );
+
+}
@@ -9,6 +9,7 @@ package org.sonatype.p2.bridge;
 
 import java.net.URI;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import org.sonatype.p2.bridge.model.InstallableUnit;
@@ -22,12 +23,67 @@ public interface MetadataRepository
 
     Collection<InstallableUnit> getInstallableUnits( URI location );
 
+    /**
+     * Streams the installable units of specified repository to specified visitor. Units are translated only when they
+     * are visited, so repositories of any size can be walked in constant memory.
+     *
+     * @param location URI of p2 repository
+     * @param idPrefix only units with an id starting with this prefix are visited (can be null)
+     * @param query p2 QL boolean expression that visited units must match, e.g.
+     *            <code>properties['org.eclipse.equinox.p2.type.group'] == true</code> (can be null)
+     * @param visitor receiver of units
+     * @since 1.1.10
+     */
+    void visitInstallableUnits( URI location, String idPrefix, String query, InstallableUnitVisitor visitor );
+
     Map<String, String> getProperties( URI location );
 
     Collection<IUIdentity> getVersions( Collection<String> ius, boolean onlyUpdates, URI... metadataRepositories );
 
     Collection<IUIdentity> getGroupIUs( URI... metadataRepositories );
 
+    /**
+     * Looks up the IUs providing a capability. Lookups are answered out of an index of all provided capabilities, built
+     * on first use for a set of repositories and reused for as long as none of them changes.
+     *
+     * @param namespace namespace of capability, e.g. <code>osgi.bundle</code> or <code>java.package</code>
+     * @param name name of capability
+     * @param range version range the provided capability version must be in (null for any version)
+     * @param metadataRepositories URIs of p2 repositories to look into
+     * @return providing IUs, ordered by version of provided capability
+     * @since 1.1.10
+     */
+    Collection<IUIdentity> getProviders( String namespace, String name, String range, URI... metadataRepositories );
+
+    /**
+     * Computes the dependency closure of specified root IUs: the roots plus, transitively, all IUs providing a
+     * capability they require. Useful to build a trimmed mirror of the repositories. Requirements are expanded breadth
+     * first, the IUs of each level concurrently.
+     *
+     * @param roots IUs to start from. IUs that cannot be found in repositories are reported as error
+     * @param options how to expand requirements (can be null for defaults)
+     * @param metadataRepositories URIs of p2 repositories to look into
+     * @return IUs of the closure, roots first
+     * @since 1.1.10
+     */
+    Collection<IUIdentity> slice( Collection<IUIdentity> roots, SliceOptions options, URI... metadataRepositories );
+
+    /**
+     * Checks that the IUs of specified repository can be installed: every non optional requirement is satisfied by an
+     * IU of the repository (or of the additional repositories) and every artifact has a descriptor in the artifact
+     * repository. Requirement filters are not evaluated, so requirements of all environments are checked. IUs are
+     * checked concurrently and problems are streamed to specified listener as they are found.
+     *
+     * @param location URI of p2 repository to validate
+     * @param artifactLocation URI of p2 artifact repository holding the artifacts of the IUs (can be null, in which
+     *            case artifacts are not checked)
+     * @param listener receiver of problems
+     * @param metadataRepositories URIs of additional p2 repositories that may satisfy requirements
+     * @return number of problems found
+     * @since 1.1.10
+     */
+    int validate( URI location, URI artifactLocation, ValidationListener listener, URI... metadataRepositories );
+
     void createProxyRepository( final URI location, final String username, final String password, final URI destination );
 
     /**
@@ -38,6 +94,29 @@ public interface MetadataRepository
      */
     void merge( URI location, URI destination );
 
+    /**
+     * Same as {@link #merge(URI, URI)} but IUs already present in destination with the same content are left
+     * untouched, and destination is not saved at all if nothing changed.
+     *
+     * @param location URI of p2 repository containing IUs to be merged
+     * @param destination URI of p2 repository into which IUs should be merged
+     * @return number of added, replaced and unchanged IUs
+     * @since 1.1.10
+     */
+    MergeResult mergeIncremental( URI location, URI destination );
+
+    /**
+     * Merges all IUs present in specified locations into destination, as {@link #mergeIncremental(URI, URI)} does for
+     * one location, but destination is loaded and saved only once. Locations are applied in order, so an IU present in
+     * more locations is taken from the last one.
+     *
+     * @param locations URIs of p2 repositories containing IUs to be merged
+     * @param destination URI of p2 repository into which IUs should be merged
+     * @return number of added, replaced and unchanged IUs
+     * @since 1.1.10
+     */
+    MergeResult merge( List<URI> locations, URI destination );
+
     /**
      * Removes all IUs present in specified location from destination.
      * 
@@ -46,4 +125,33 @@ public interface MetadataRepository
      */
     void remove( URI location, URI destination );
 
+    /**
+     * Compares two repositories and streams the IUs added, removed and changed between them to specified listener. IUs
+     * are compared by id and version, and by content when present in both, one id at a time and in id order. Only the
+     * ids and versions are collected up front and only the IUs reported are translated, so repositories of any size can
+     * be compared.
+     *
+     * @param oldLocation URI of p2 repository to compare from
+     * @param newLocation URI of p2 repository to compare to
+     * @param listener receiver of differences
+     * @since 1.1.10
+     */
+    void diff( URI oldLocation, URI newLocation, MetadataDiffListener listener );
+
+    /**
+     * @return number of match expressions, filters and version ranges (or textual forms of them) taken out of the
+     *         process wide parse cache since start, instead of being parsed again. Each requested match expression,
+     *         filter or version range counts once, the parts of a match expression looked up to parse it do not count
+     * @since 1.1.10
+     */
+    long getParseCacheHits();
+
+    /**
+     * @return number of match expressions, filters and version ranges (or textual forms of them) parsed (or formatted)
+     *         since start, as they were not in the process wide parse cache. Counted the same way as
+     *         {@link #getParseCacheHits()}
+     * @since 1.1.10
+     */
+    long getParseCacheMisses();
+
 }
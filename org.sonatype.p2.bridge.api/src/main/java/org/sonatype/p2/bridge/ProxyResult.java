@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outcome of {@link ArtifactRepository#refreshProxyRepository(URI, String, String, URI, java.io.File)}.
+ *
+ * @since 1.1.10
+ */
+public class ProxyResult
+{
+
+    private final boolean unchanged;
+
+    private final Map<URI, Long> loadTimes;
+
+    private final Set<URI> duplicates;
+
+    private final Set<URI> cycles;
+
+    public ProxyResult( final boolean unchanged, final Map<URI, Long> loadTimes, final Set<URI> duplicates,
+                        final Set<URI> cycles )
+    {
+        this.unchanged = unchanged;
+        this.loadTimes = loadTimes == null ? Collections.<URI, Long> emptyMap() : loadTimes;
+        this.duplicates = duplicates == null ? Collections.<URI> emptySet() : duplicates;
+        this.cycles = cycles == null ? Collections.<URI> emptySet() : cycles;
+    }
+
+    /**
+     * @return true if the remote repository did not change since it was last proxied, so the proxy was left untouched
+     */
+    public boolean isUnchanged()
+    {
+        return unchanged;
+    }
+
+    /**
+     * @return milliseconds spent loading each non composite child of a remote composite repository. Empty if the remote
+     *         repository is not a composite or was not loaded. Never null
+     */
+    public Map<URI, Long> getLoadTimes()
+    {
+        return loadTimes;
+    }
+
+    /**
+     * @return children of the remote composite tree referenced more than once (loaded once). Never null
+     */
+    public Set<URI> getDuplicates()
+    {
+        return duplicates;
+    }
+
+    /**
+     * @return children of the remote composite tree referencing one of their parents (references were ignored). Never
+     *         null
+     */
+    public Set<URI> getCycles()
+    {
+        return cycles;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s, %s children loaded, %s duplicates, %s cycles", isUnchanged() ? "unchanged"
+                        : "updated", getLoadTimes().size(), getDuplicates().size(), getCycles().size() );
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+import java.io.File;
+
+/**
+ * Gets notified about each artifact handled by
+ * {@link ArtifactRepository#resolve(java.net.URI, ArtifactResolver, ResolveOptions)}. Notifications are sent from
+ * worker threads but never concurrently.
+ *
+ * @since 1.1.10
+ */
+public interface ResolveListener
+{
+
+    /**
+     * Artifact was resolved and is available in the p2 repository.
+     *
+     * @param file file of artifact in p2 repository
+     */
+    void artifactResolved( String groupId, String artifactId, String version, String extension, String classifier,
+                           File file );
+
+    /**
+     * Artifact was already present in the p2 repository and unchanged, so it was not copied (incremental resolution).
+     *
+     * @param file file of artifact in p2 repository
+     */
+    void artifactSkipped( String groupId, String artifactId, String version, String extension, String classifier,
+                          File file );
+
+    /**
+     * Artifact could not be resolved or copied into the p2 repository.
+     *
+     * @param cause reason of failure
+     */
+    void artifactFailed( String groupId, String artifactId, String version, String extension, String classifier,
+                         Exception cause );
+
+}
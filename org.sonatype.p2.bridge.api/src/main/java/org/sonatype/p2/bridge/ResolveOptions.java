@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+/**
+ * Options of {@link ArtifactRepository#resolve(java.net.URI, ArtifactResolver, ResolveOptions)}.
+ *
+ * @since 1.1.10
+ */
+public class ResolveOptions
+{
+
+    private int threads;
+
+    private ResolveListener listener;
+
+    private CopyStrategy copyStrategy = CopyStrategy.TRANSFER;
+
+    private boolean incremental;
+
+    /**
+     * @return number of artifacts resolved and copied concurrently. 0 means the default of the bridge
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Sets the number of artifacts resolved and copied concurrently. When bigger than 1, the {@link ArtifactResolver}
+     * must be thread safe. 0 (the default) means the default of the bridge (number of available processors unless
+     * configured otherwise).
+     */
+    public void setThreads( final int threads )
+    {
+        this.threads = threads;
+    }
+
+    public ResolveListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Sets a listener to be notified about each handled artifact. Optional.
+     */
+    public void setListener( final ResolveListener listener )
+    {
+        this.listener = listener;
+    }
+
+    public boolean isIncremental()
+    {
+        return incremental;
+    }
+
+    /**
+     * Sets if artifacts already present in the repository and unchanged should be left alone. An artifact is considered
+     * unchanged if its repository file has the same size as the resolved file and, when the artifact descriptor carries
+     * a checksum (download.md5 / download.checksum.*), the repository file matches that checksum, otherwise the
+     * repository file is not older than the resolved file. Defaults to false (all artifacts are copied).
+     */
+    public void setIncremental( final boolean incremental )
+    {
+        this.incremental = incremental;
+    }
+
+    public CopyStrategy getCopyStrategy()
+    {
+        return copyStrategy;
+    }
+
+    /**
+     * Sets how resolved files are brought into the repository. Defaults to {@link CopyStrategy#TRANSFER}, so the
+     * repository never shares content with the resolved files. {@link CopyStrategy#LINK} is cheaper but only safe when
+     * resolved files are never modified in place.
+     */
+    public void setCopyStrategy( final CopyStrategy copyStrategy )
+    {
+        this.copyStrategy = copyStrategy;
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link ArtifactRepository#resolve(java.net.URI, ArtifactResolver, ResolveOptions)}.
+ *
+ * @since 1.1.10
+ */
+public class ResolveResult
+{
+
+    private final int resolved;
+
+    private final long bytesCopied;
+
+    private final long bytesLinked;
+
+    private final int skipped;
+
+    private final List<Exception> failures;
+
+    public ResolveResult( final int resolved, final long bytesCopied, final long bytesLinked, final int skipped,
+                          final List<Exception> failures )
+    {
+        this.resolved = resolved;
+        this.skipped = skipped;
+        this.bytesCopied = bytesCopied;
+        this.bytesLinked = bytesLinked;
+        this.failures = failures == null ? Collections.<Exception> emptyList() : failures;
+    }
+
+    /**
+     * @return number of artifacts copied or linked into the p2 repository
+     */
+    public int getResolved()
+    {
+        return resolved;
+    }
+
+    /**
+     * @return number of bytes of resolved artifacts copied into the p2 repository
+     */
+    public long getBytesCopied()
+    {
+        return bytesCopied;
+    }
+
+    /**
+     * @return number of bytes of resolved artifacts hard linked into the p2 repository (not copied)
+     */
+    public long getBytesLinked()
+    {
+        return bytesLinked;
+    }
+
+    /**
+     * @return number of artifacts left alone as already present and unchanged (incremental resolution)
+     */
+    public int getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * @return number of artifacts that could not be resolved or copied
+     */
+    public int getFailed()
+    {
+        return failures.size();
+    }
+
+    /**
+     * @return reasons of failed artifacts, in repository order. Never null
+     */
+    public List<Exception> getFailures()
+    {
+        return failures;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "%s resolved (%s bytes copied, %s bytes linked), %s skipped, %s failed", getResolved(),
+            getBytesCopied(), getBytesLinked(), getSkipped(), getFailed() );
+    }
+
+}
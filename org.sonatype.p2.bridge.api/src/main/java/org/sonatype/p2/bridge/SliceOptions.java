@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+import java.util.Map;
+
+/**
+ * Options of {@link MetadataRepository#slice(java.util.Collection, SliceOptions, java.net.URI...)}.
+ *
+ * @since 1.1.10
+ */
+public class SliceOptions
+{
+
+    private int threads;
+
+    private Map<String, String> environment;
+
+    private boolean includeOptional = true;
+
+    private boolean includeNonGreedy;
+
+    /**
+     * @return number of IUs expanded concurrently. 0 means the default of the bridge
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Sets the number of IUs expanded concurrently. 0 (the default) means the default of the bridge (number of
+     * available processors unless configured otherwise).
+     */
+    public void setThreads( final int threads )
+    {
+        this.threads = threads;
+    }
+
+    public Map<String, String> getEnvironment()
+    {
+        return environment;
+    }
+
+    /**
+     * Sets the properties IU and requirement filters are evaluated against, e.g. osgi.os, osgi.ws and osgi.arch. IUs
+     * and requirements whose filter does not match are left out. Defaults to null, in which case filters are ignored
+     * and the closure covers all environments.
+     */
+    public void setEnvironment( final Map<String, String> environment )
+    {
+        this.environment = environment;
+    }
+
+    public boolean isIncludeOptional()
+    {
+        return includeOptional;
+    }
+
+    /**
+     * Sets if optional requirements are followed. Defaults to true.
+     */
+    public void setIncludeOptional( final boolean includeOptional )
+    {
+        this.includeOptional = includeOptional;
+    }
+
+    public boolean isIncludeNonGreedy()
+    {
+        return includeNonGreedy;
+    }
+
+    /**
+     * Sets if non greedy requirements are followed. p2 never installs an IU only to satisfy a non greedy requirement, so
+     * defaults to false.
+     */
+    public void setIncludeNonGreedy( final boolean includeNonGreedy )
+    {
+        this.includeNonGreedy = includeNonGreedy;
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge;
+
+import org.sonatype.p2.bridge.model.InstallableUnitArtifact;
+import org.sonatype.p2.bridge.model.RequiredCapability;
+
+/**
+ * Receives the problems found by
+ * {@link MetadataRepository#validate(java.net.URI, java.net.URI, ValidationListener, java.net.URI...)}, as they are
+ * found. Calls are made from the validating threads, but never concurrently.
+ *
+ * @since 1.1.10
+ */
+public interface ValidationListener
+{
+
+    /**
+     * No IU of the repositories provides a capability matching a (non optional) requirement of the IU.
+     */
+    void unsatisfiedRequirement( IUIdentity unit, RequiredCapability requirement );
+
+    /**
+     * The artifact repository has no descriptor for an artifact of the IU.
+     */
+    void missingArtifact( IUIdentity unit, InstallableUnitArtifact artifact );
+
+}
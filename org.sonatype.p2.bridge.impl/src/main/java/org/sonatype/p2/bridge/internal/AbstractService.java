@@ -8,6 +8,8 @@
 package org.sonatype.p2.bridge.internal;
 
 import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -22,12 +24,28 @@ abstract class AbstractService
 
     private IProvisioningAgentProvider provider;
 
+    private AgentPool agentPool;
+
+    /**
+     * Closed pools whose agents were not all given back yet, so those agents still get their location deleted.
+     */
+    private final List<AgentPool> retiredPools = new CopyOnWriteArrayList<AgentPool>();
+
     protected void setProvisioningAgentProvider( final IProvisioningAgentProvider provider )
     {
         try
         {
             getLock().writeLock().lock();
+            if ( agentPool != null )
+            {
+                agentPool.close();
+                if ( agentPool.hasBorrowed() )
+                {
+                    retiredPools.add( agentPool );
+                }
+            }
             this.provider = provider;
+            agentPool = provider == null ? null : new AgentPool( provider );
         }
         finally
         {
@@ -51,6 +69,42 @@ abstract class AbstractService
         return getProvider().createAgent( location.resolve( ".p2" ) );
     }
 
+    /**
+     * Borrows a provisioning agent from the pool. Agents obtained this way must be given back via
+     * {@link #releaseProvisioningAgent(IProvisioningAgent)} and not stopped.
+     */
+    IProvisioningAgent acquireProvisioningAgent()
+        throws ProvisionException
+    {
+        return agentPool.borrow();
+    }
+
+    void releaseProvisioningAgent( final IProvisioningAgent agent )
+    {
+        if ( agent == null )
+        {
+            return;
+        }
+        final AgentPool pool = agentPool;
+        if ( pool != null && pool.release( agent ) )
+        {
+            return;
+        }
+        for ( final AgentPool retired : retiredPools )
+        {
+            if ( retired.release( agent ) )
+            {
+                if ( !retired.hasBorrowed() )
+                {
+                    retiredPools.remove( retired );
+                }
+                return;
+            }
+        }
+        // not pooled, e.g. created for a repository location
+        agent.stop();
+    }
+
     ReadWriteLock getLock()
     {
         return lock;
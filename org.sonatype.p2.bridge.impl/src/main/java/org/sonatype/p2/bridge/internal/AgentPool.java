@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.equinox.internal.p2.core.helpers.LogHelper;
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+import org.eclipse.equinox.p2.core.IProvisioningAgentProvider;
+import org.eclipse.equinox.p2.core.ProvisionException;
+import org.eclipse.equinox.p2.repository.IRepositoryManager;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepositoryManager;
+
+/**
+ * Pool of provisioning agents living in temporary locations. Agents are handed out exclusively (one caller at a time)
+ * and, when released, are cleaned of any repository they know about before being kept for reuse, so subsequent calls
+ * do not pay for creating and stopping an agent and its repository managers.
+ * <p>
+ * Cleaning an agent includes clearing the memory p2 keeps of repositories that failed to load, for which p2 has no API.
+ * If that memory cannot be cleared (p2 version without the expected internal field) agents are never reused, and a
+ * warning is logged once.
+ * <p>
+ * Idle agents expired while idle are stopped on the next borrow or release, outside of the pool monitor.
+ *
+ * @since 1.1.10
+ */
+class AgentPool
+{
+
+    /**
+     * Key of property containing the maximum number of idle agents kept in the pool. 0 disables pooling.
+     */
+    static final String MAX_SIZE_PROPERTY = "p2.bridge.agentPool.maxSize";
+
+    /**
+     * Key of property containing the time (in milliseconds) after which an idle agent is stopped.
+     */
+    static final String MAX_IDLE_TIME_PROPERTY = "p2.bridge.agentPool.maxIdleTime";
+
+    private static final int DEFAULT_MAX_SIZE = 4;
+
+    private static final long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000;
+
+    private static final String BUNDLE_ID = "org.sonatype.p2.bridge.impl";
+
+    private static volatile boolean notFoundWarned;
+
+    private final IProvisioningAgentProvider provider;
+
+    private final int maxSize;
+
+    private final long maxIdleTime;
+
+    /**
+     * Idle agents, most recently used first.
+     */
+    private final LinkedList<PooledAgent> idle = new LinkedList<PooledAgent>();
+
+    private final Map<IProvisioningAgent, PooledAgent> borrowed = new IdentityHashMap<IProvisioningAgent, PooledAgent>();
+
+    private boolean closed;
+
+    AgentPool( final IProvisioningAgentProvider provider )
+    {
+        this( provider, Utils.getIntProperty( MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE ),
+              Utils.getLongProperty( MAX_IDLE_TIME_PROPERTY, DEFAULT_MAX_IDLE_TIME ) );
+    }
+
+    AgentPool( final IProvisioningAgentProvider provider, final int maxSize, final long maxIdleTime )
+    {
+        this.provider = provider;
+        this.maxSize = Math.max( 0, maxSize );
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Hands out a healthy agent, reusing an idle one if possible. The agent must be given back via
+     * {@link #release(IProvisioningAgent)}.
+     */
+    IProvisioningAgent borrow()
+        throws ProvisionException
+    {
+        while ( true )
+        {
+            final PooledAgent candidate;
+            final List<PooledAgent> expired;
+            synchronized ( this )
+            {
+                if ( closed )
+                {
+                    throw new IllegalStateException( "Provisioning agent pool was closed" );
+                }
+                expired = removeExpired();
+                candidate = idle.isEmpty() ? null : idle.removeFirst();
+            }
+            dispose( expired );
+            if ( candidate == null )
+            {
+                break;
+            }
+            if ( candidate.isHealthy() )
+            {
+                synchronized ( this )
+                {
+                    borrowed.put( candidate.agent, candidate );
+                }
+                return candidate.agent;
+            }
+            candidate.dispose();
+        }
+
+        final PooledAgent created = create();
+        synchronized ( this )
+        {
+            borrowed.put( created.agent, created );
+        }
+        return created.agent;
+    }
+
+    /**
+     * Gives back an agent obtained via {@link #borrow()}. The agent is reset and kept for reuse if there is room in the
+     * pool, otherwise it is stopped and its location deleted.
+     *
+     * @return false if the agent was not borrowed from this pool, in which case it is left untouched
+     */
+    boolean release( final IProvisioningAgent agent )
+    {
+        final PooledAgent pooled;
+        synchronized ( this )
+        {
+            pooled = agent == null ? null : borrowed.remove( agent );
+        }
+        if ( pooled == null )
+        {
+            return false;
+        }
+        if ( maxSize == 0 || !pooled.reset() )
+        {
+            pooled.dispose();
+            return true;
+        }
+        final List<PooledAgent> toDispose;
+        synchronized ( this )
+        {
+            toDispose = removeExpired();
+            if ( closed || idle.size() >= maxSize )
+            {
+                toDispose.add( pooled );
+            }
+            else
+            {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.addFirst( pooled );
+            }
+        }
+        dispose( toDispose );
+        return true;
+    }
+
+    /**
+     * @return true if agents borrowed from this pool were not released yet
+     */
+    synchronized boolean hasBorrowed()
+    {
+        return !borrowed.isEmpty();
+    }
+
+    /**
+     * @return number of idle agents
+     */
+    synchronized int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * Stops all idle agents. Agents still borrowed are stopped when released.
+     */
+    void close()
+    {
+        final LinkedList<PooledAgent> toDispose;
+        synchronized ( this )
+        {
+            closed = true;
+            toDispose = new LinkedList<PooledAgent>( idle );
+            idle.clear();
+        }
+        for ( final PooledAgent pooled : toDispose )
+        {
+            pooled.dispose();
+        }
+    }
+
+    /**
+     * Takes the expired agents out of the idle ones. Must be called holding the pool monitor, while the returned agents
+     * must be disposed without holding it, as stopping an agent and deleting its location is slow.
+     */
+    private List<PooledAgent> removeExpired()
+    {
+        final List<PooledAgent> expired = new LinkedList<PooledAgent>();
+        final long now = System.currentTimeMillis();
+        final Iterator<PooledAgent> it = idle.iterator();
+        while ( it.hasNext() )
+        {
+            final PooledAgent pooled = it.next();
+            if ( now - pooled.lastUsed > maxIdleTime )
+            {
+                it.remove();
+                expired.add( pooled );
+            }
+        }
+        return expired;
+    }
+
+    private static void dispose( final List<PooledAgent> agents )
+    {
+        for ( final PooledAgent pooled : agents )
+        {
+            pooled.dispose();
+        }
+    }
+
+    private PooledAgent create()
+        throws ProvisionException
+    {
+        final File agentDir = Utils.temporaryAgentLocation();
+        try
+        {
+            final IProvisioningAgent agent = provider.createAgent( agentDir.toURI().resolve( ".p2" ) );
+            return new PooledAgent( agent, agentDir );
+        }
+        catch ( final ProvisionException e )
+        {
+            Utils.deleteIfPossible( agentDir );
+            throw e;
+        }
+        catch ( final RuntimeException e )
+        {
+            Utils.deleteIfPossible( agentDir );
+            throw e;
+        }
+    }
+
+    private static class PooledAgent
+    {
+
+        private final IProvisioningAgent agent;
+
+        private final File location;
+
+        private long lastUsed;
+
+        PooledAgent( final IProvisioningAgent agent, final File location )
+        {
+            this.agent = agent;
+            this.location = location;
+        }
+
+        boolean isHealthy()
+        {
+            try
+            {
+                return location.isDirectory()
+                    && agent.getService( IMetadataRepositoryManager.SERVICE_NAME ) != null
+                    && agent.getService( IArtifactRepositoryManager.SERVICE_NAME ) != null;
+            }
+            catch ( final RuntimeException e )
+            {
+                // stopped agents throw IllegalStateException
+                return false;
+            }
+        }
+
+        /**
+         * Makes the repository managers forget about all repositories loaded, created or not found while the agent
+         * was borrowed, so the next borrower sees the repositories as they are on disk.
+         *
+         * @return false if the agent could not be cleaned and should not be reused
+         */
+        boolean reset()
+        {
+            try
+            {
+                return forgetRepositories( (IRepositoryManager<?>) agent.getService( IMetadataRepositoryManager.SERVICE_NAME ) )
+                    && forgetRepositories( (IRepositoryManager<?>) agent.getService( IArtifactRepositoryManager.SERVICE_NAME ) );
+            }
+            catch ( final RuntimeException e )
+            {
+                return false;
+            }
+        }
+
+        void dispose()
+        {
+            try
+            {
+                agent.stop();
+            }
+            catch ( final RuntimeException ignore )
+            {
+                // already stopped
+            }
+            Utils.deleteIfPossible( location );
+        }
+
+        private static boolean forgetRepositories( final IRepositoryManager<?> manager )
+        {
+            if ( manager == null )
+            {
+                return false;
+            }
+            for ( final URI location : manager.getKnownRepositories( IRepositoryManager.REPOSITORIES_ALL ) )
+            {
+                manager.removeRepository( location );
+            }
+            return clearNotFound( manager );
+        }
+
+        /**
+         * p2 remembers repositories that failed to load and refuses to load them again (see the refresh hack used when
+         * creating proxy repositories). There is no API to clear that memory, so reach into the manager.
+         */
+        private static boolean clearNotFound( final IRepositoryManager<?> manager )
+        {
+            Class<?> type = manager.getClass();
+            while ( type != null )
+            {
+                try
+                {
+                    final Field field = type.getDeclaredField( "unavailableRepositories" );
+                    field.setAccessible( true );
+                    field.set( manager, null );
+                    return true;
+                }
+                catch ( final NoSuchFieldException e )
+                {
+                    type = type.getSuperclass();
+                }
+                catch ( final Exception e )
+                {
+                    warnNotFound( manager, e.toString() );
+                    return false;
+                }
+            }
+            warnNotFound( manager, "no field unavailableRepositories" );
+            return false;
+        }
+
+        private static void warnNotFound( final IRepositoryManager<?> manager, final String reason )
+        {
+            if ( notFoundWarned )
+            {
+                return;
+            }
+            notFoundWarned = true;
+            LogHelper.log( new Status( IStatus.WARNING, BUNDLE_ID, String.format(
+                "Cannot clear repositories not found by [%s] due to [%s]. Provisioning agents will not be reused.",
+                manager.getClass().getName(), reason ) ) );
+        }
+
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.sonatype.p2.bridge.GcResult;
+
+/**
+ * Finds, and deletes, the files of an artifact repository that no artifact descriptor references anymore. Only the
+ * default artifact folders and the top level folders holding referenced files are looked into, so index files and
+ * whatever else lives next to the repository is never touched. Hidden files and folders are skipped.
+ *
+ * @since 1.1.10
+ */
+class ArtifactFileCollector
+{
+
+    static final String[] DEFAULT_FOLDERS = { "plugins", "features", "binary" };
+
+    private final File directory;
+
+    private final Set<String> referenced = new HashSet<String>();
+
+    /**
+     * @param directory repository directory
+     * @param referencedFiles files of all artifact descriptors of the repository
+     */
+    ArtifactFileCollector( final File directory, final Collection<File> referencedFiles )
+    {
+        this.directory = directory.getAbsoluteFile();
+        for ( final File file : referencedFiles )
+        {
+            referenced.add( file.getAbsolutePath() );
+        }
+    }
+
+    GcResult collect( final boolean dryRun, final int threads )
+    {
+        final List<File> candidates = new ArrayList<File>();
+        final List<Callable<List<File>>> walks = new ArrayList<Callable<List<File>>>();
+        for ( final File root : getRoots() )
+        {
+            walks.add( new Callable<List<File>>()
+            {
+                public List<File> call()
+                {
+                    final List<File> files = new ArrayList<File>();
+                    walk( root, files );
+                    return files;
+                }
+            } );
+        }
+        for ( final Future<List<File>> future : ParallelTasks.invokeAll( walks, threads ) )
+        {
+            candidates.addAll( ParallelTasks.get( future ) );
+        }
+
+        final List<Outcome> outcomes =
+            ParallelTasks.invokeChunks( candidates, threads, new ParallelTasks.ChunkTask<File, Outcome>()
+            {
+                public Outcome call( final List<File> chunk )
+                {
+                    final Outcome outcome = new Outcome();
+                    for ( final File file : chunk )
+                    {
+                        if ( isReferenced( file ) )
+                        {
+                            continue;
+                        }
+                        final long length = file.length();
+                        if ( dryRun || file.delete() )
+                        {
+                            outcome.files.add( file );
+                            outcome.bytes += length;
+                        }
+                        else
+                        {
+                            outcome.failed++;
+                        }
+                    }
+                    return outcome;
+                }
+            } );
+        final List<File> files = new ArrayList<File>();
+        long bytes = 0;
+        int failed = 0;
+        for ( final Outcome outcome : outcomes )
+        {
+            files.addAll( outcome.files );
+            bytes += outcome.bytes;
+            failed += outcome.failed;
+        }
+        if ( !dryRun )
+        {
+            deleteEmptyFolders( files );
+        }
+        return new GcResult( files, bytes, failed, dryRun );
+    }
+
+    /**
+     * Default artifact folders plus the top level folders of referenced files.
+     */
+    private Collection<File> getRoots()
+    {
+        final Set<File> roots = new LinkedHashSet<File>();
+        for ( final String folder : DEFAULT_FOLDERS )
+        {
+            final File root = new File( directory, folder );
+            if ( root.isDirectory() )
+            {
+                roots.add( root );
+            }
+        }
+        for ( final String path : referenced )
+        {
+            File file = new File( path );
+            while ( file.getParentFile() != null && !directory.equals( file.getParentFile() ) )
+            {
+                file = file.getParentFile();
+            }
+            if ( file.getParentFile() != null && file.isDirectory() && !file.isHidden() )
+            {
+                roots.add( file );
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Collects the files of specified folder, except those of folders that are artifacts themselves.
+     */
+    private void walk( final File folder, final List<File> files )
+    {
+        final File[] children = folder.listFiles();
+        if ( children == null )
+        {
+            return;
+        }
+        for ( final File child : children )
+        {
+            if ( child.getName().startsWith( "." ) )
+            {
+                continue;
+            }
+            if ( child.isDirectory() )
+            {
+                if ( !referenced.contains( child.getAbsolutePath() ) )
+                {
+                    walk( child, files );
+                }
+            }
+            else
+            {
+                files.add( child );
+            }
+        }
+    }
+
+    /**
+     * A file is referenced if it is the file of an artifact, that file plus one or more extensions (checksums,
+     * signatures, ...), or a file within the folder of an artifact stored as a folder (artifact.folder=true).
+     */
+    private boolean isReferenced( final File file )
+    {
+        String path = file.getAbsolutePath();
+        if ( referenced.contains( path ) )
+        {
+            return true;
+        }
+        for ( File folder = file.getParentFile(); folder != null && !directory.equals( folder );
+              folder = folder.getParentFile() )
+        {
+            if ( referenced.contains( folder.getAbsolutePath() ) )
+            {
+                return true;
+            }
+        }
+        final int nameStart = path.lastIndexOf( File.separatorChar ) + 1;
+        int extension = path.lastIndexOf( '.' );
+        while ( extension > nameStart )
+        {
+            path = path.substring( 0, extension );
+            if ( referenced.contains( path ) )
+            {
+                return true;
+            }
+            extension = path.lastIndexOf( '.' );
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the folders left empty by deleting specified files, deepest first, up to (excluding) the top level
+     * folders of the repository.
+     */
+    private void deleteEmptyFolders( final List<File> deleted )
+    {
+        final Set<File> folders = new HashSet<File>();
+        for ( final File file : deleted )
+        {
+            File folder = file.getParentFile();
+            while ( folder != null && !directory.equals( folder ) && folders.add( folder ) )
+            {
+                folder = folder.getParentFile();
+            }
+        }
+        final List<File> sorted = new ArrayList<File>( folders );
+        Collections.sort( sorted, new Comparator<File>()
+        {
+            public int compare( final File f1, final File f2 )
+            {
+                return f2.getPath().length() - f1.getPath().length();
+            }
+        } );
+        for ( final File folder : sorted )
+        {
+            if ( !directory.equals( folder.getParentFile() ) )
+            {
+                // fails, as it should, if the folder is not empty
+                folder.delete();
+            }
+        }
+    }
+
+    private static class Outcome
+    {
+
+        private final List<File> files = new ArrayList<File>();
+
+        private long bytes;
+
+        private int failed;
+
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.eclipse.equinox.p2.repository.IRepository;
+
+/**
+ * Streams the artifact mappings file of a proxy repository (the remote path of each artifact, grouped by member
+ * repository), so the file content is never held in memory.
+ * <p>
+ * StAX is not part of the execution environment we compile against (J2SE-1.5), hence the hand written XML.
+ *
+ * @since 1.1.10
+ */
+class ArtifactMappingsWriter
+{
+
+    private static final String INDENT = "  ";
+
+    private final Writer out;
+
+    private final int repositoryCount;
+
+    private boolean repositoryOpen;
+
+    private boolean repositoryEmpty;
+
+    ArtifactMappingsWriter( final File file, final int repositoryCount )
+        throws IOException
+    {
+        this.repositoryCount = repositoryCount;
+        out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        out.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+        out.write( "<repositories size=\"" + repositoryCount + "\"" );
+        if ( repositoryCount == 0 )
+        {
+            out.write( "/>\n" );
+        }
+        else
+        {
+            out.write( ">\n" );
+        }
+    }
+
+    void startRepository( final String uri, final String mirrorsURL )
+        throws IOException
+    {
+        endRepository();
+        out.write( INDENT );
+        out.write( "<repository" );
+        attribute( IRepository.PROP_MIRRORS_URL, mirrorsURL );
+        attribute( "uri", uri );
+        repositoryOpen = true;
+        repositoryEmpty = true;
+    }
+
+    void artifact( final String remotePath, final String md5 )
+        throws IOException
+    {
+        if ( repositoryEmpty )
+        {
+            out.write( ">\n" );
+            repositoryEmpty = false;
+        }
+        out.write( INDENT );
+        out.write( INDENT );
+        out.write( "<artifact" );
+        attribute( "md5", md5 );
+        attribute( "remotePath", remotePath );
+        out.write( "/>\n" );
+    }
+
+    /**
+     * Finishes the document and closes the file.
+     */
+    void close()
+        throws IOException
+    {
+        try
+        {
+            endRepository();
+            if ( repositoryCount > 0 )
+            {
+                out.write( "</repositories>\n" );
+            }
+            out.flush();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Closes the file without finishing the document (on failures).
+     */
+    void abort()
+    {
+        try
+        {
+            out.close();
+        }
+        catch ( final IOException ignore )
+        {
+        }
+    }
+
+    private void endRepository()
+        throws IOException
+    {
+        if ( !repositoryOpen )
+        {
+            return;
+        }
+        if ( repositoryEmpty )
+        {
+            out.write( "/>\n" );
+        }
+        else
+        {
+            out.write( INDENT );
+            out.write( "</repository>\n" );
+        }
+        repositoryOpen = false;
+    }
+
+    private void attribute( final String name, final String value )
+        throws IOException
+    {
+        if ( value == null )
+        {
+            return;
+        }
+        out.write( ' ' );
+        out.write( name );
+        out.write( "=\"" );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            final char c = value.charAt( i );
+            switch ( c )
+            {
+                case '&':
+                    out.write( "&amp;" );
+                    break;
+                case '<':
+                    out.write( "&lt;" );
+                    break;
+                case '>':
+                    out.write( "&gt;" );
+                    break;
+                case '"':
+                    out.write( "&quot;" );
+                    break;
+                case '\n':
+                    out.write( "&#10;" );
+                    break;
+                case '\r':
+                    out.write( "&#13;" );
+                    break;
+                case '\t':
+                    out.write( "&#9;" );
+                    break;
+                default:
+                    out.write( c );
+            }
+        }
+        out.write( '"' );
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.net.URI;
+
+import org.eclipse.equinox.internal.p2.artifact.repository.simple.SimpleArtifactRepository;
+import org.eclipse.equinox.p2.core.ProvisionException;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepository;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
+
+/**
+ * Process wide cache of loaded local simple artifact repositories, so repeated calls against the same repository do not
+ * parse artifacts.xml/artifacts.jar again. Bounded by the total number of cached artifact descriptors.
+ * <p>
+ * Cached repositories are shared between callers and must only be queried, never modified. Repositories are modified
+ * as private instances loaded from disk, and handed to the cache via {@link #update(URI, IArtifactRepository)} once
+ * saved.
+ *
+ * @since 1.1.10
+ */
+class ArtifactRepositoryCache
+    extends RepositoryCache<IArtifactRepository, IArtifactRepositoryManager>
+{
+
+    /**
+     * Key of property containing the maximum number of artifact descriptors kept in the cache. 0 disables caching.
+     */
+    static final String MAX_DESCRIPTORS_PROPERTY = "p2.bridge.artifactCache.maxDescriptors";
+
+    private static final int DEFAULT_MAX_DESCRIPTORS = 250000;
+
+    private static final ArtifactRepositoryCache INSTANCE =
+        new ArtifactRepositoryCache( Utils.getIntProperty( MAX_DESCRIPTORS_PROPERTY, DEFAULT_MAX_DESCRIPTORS ) );
+
+    ArtifactRepositoryCache( final int maxDescriptors )
+    {
+        super( maxDescriptors, "artifacts.jar", "artifacts.xml" );
+    }
+
+    static ArtifactRepositoryCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    @Override
+    IArtifactRepository loadRepository( final IArtifactRepositoryManager manager, final URI location )
+        throws ProvisionException
+    {
+        return manager.loadRepository( location, null );
+    }
+
+    @Override
+    boolean isCacheable( final IArtifactRepository repository )
+    {
+        return repository instanceof SimpleArtifactRepository;
+    }
+
+    @Override
+    int weigh( final IArtifactRepository repository )
+    {
+        return ( (SimpleArtifactRepository) repository ).getDescriptors().size();
+    }
+
+}
@@ -7,36 +7,27 @@
  */
 package org.sonatype.p2.bridge.internal;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.equinox.internal.p2.artifact.repository.simple.SimpleArtifactRepository;
-import org.eclipse.equinox.internal.p2.core.helpers.FileUtils;
 import org.eclipse.equinox.p2.core.IProvisioningAgent;
 import org.eclipse.equinox.p2.core.ProvisionException;
 import org.eclipse.equinox.p2.metadata.IArtifactKey;
@@ -45,6 +36,7 @@ import org.eclipse.equinox.p2.publisher.PublisherInfo;
 import org.eclipse.equinox.p2.query.IQueryResult;
 import org.eclipse.equinox.p2.repository.ICompositeRepository;
 import org.eclipse.equinox.p2.repository.IRepository;
+import org.eclipse.equinox.p2.repository.IRunnableWithProgress;
 import org.eclipse.equinox.p2.repository.artifact.ArtifactDescriptorQuery;
 import org.eclipse.equinox.p2.repository.artifact.IArtifactDescriptor;
 import org.eclipse.equinox.p2.repository.artifact.IArtifactRepository;
@@ -53,32 +45,68 @@ import org.eclipse.equinox.p2.repository.artifact.spi.ArtifactDescriptor;
 import org.eclipse.equinox.spi.p2.publisher.PublisherHelper;
 import org.sonatype.p2.bridge.ArtifactRepository;
 import org.sonatype.p2.bridge.ArtifactResolver;
+import org.sonatype.p2.bridge.ArtifactWriteResult;
+import org.sonatype.p2.bridge.CopyStrategy;
+import org.sonatype.p2.bridge.GcResult;
+import org.sonatype.p2.bridge.MergeResult;
+import org.sonatype.p2.bridge.ProxyResult;
+import org.sonatype.p2.bridge.ResolveListener;
+import org.sonatype.p2.bridge.ResolveOptions;
+import org.sonatype.p2.bridge.ResolveResult;
 import org.sonatype.p2.bridge.model.InstallableArtifact;
 import org.sonatype.p2.bridge.model.InstallableArtifactProperty;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 public class ArtifactRepositoryService
     extends AbstractService
     implements ArtifactRepository
 {
 
+    /**
+     * One lock per repository location, held while the repository is loaded, modified and saved, so concurrent changes
+     * of the same repository do not overwrite each other.
+     */
+    private final ConcurrentMap<URI, Object> updateLocks = new ConcurrentHashMap<URI, Object>();
+
     public void write( final URI location, final Collection<InstallableArtifact> artifacts, final String name,
                        final Map<String, String> properties, final String[][] mappings )
+    {
+        writeBatch( location, artifacts, name, properties, mappings );
+    }
+
+    public ArtifactWriteResult writeBatch( final URI location, final Collection<InstallableArtifact> artifacts,
+                                           final String name, final Map<String, String> properties,
+                                           final String[][] mappings )
     {
         IArtifactRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
-            manager = getManager( agentDir.toURI() );
-            final IArtifactRepository repository = getOrCreateRepository( location, name, properties, manager );
-            if ( mappings != null )
+            manager = getManager();
+            synchronized ( getUpdateLock( location ) )
             {
-                ( (SimpleArtifactRepository) repository ).setRules( mappings );
+                final IArtifactRepository repository = getOrCreateRepository( location, name, properties, manager );
+                final ArtifactWriteResult result;
+                try
+                {
+                    if ( mappings != null )
+                    {
+                        ( (SimpleArtifactRepository) repository ).setRules( mappings );
+                    }
+                    final ArtifactWriteResult added = addArtifacts( artifacts, repository );
+                    final long saveStart = System.currentTimeMillis();
+                    new RepositoryWriter( manager.getAgent() ).save( repository );
+                    result =
+                        new ArtifactWriteResult( added.getArtifactCount(), added.getDescriptorCreationTime(),
+                                                 added.getSaveTime() + System.currentTimeMillis() - saveStart );
+                }
+                finally
+                {
+                    RepositoryWriter.resumeSave( repository );
+                }
+                getCache().update( location, repository );
+                return result;
             }
-            addArtifacts( artifacts, repository );
         }
         catch ( final ProvisionException e )
         {
@@ -88,13 +116,16 @@ public class ArtifactRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
 
+    /**
+     * The returned repository is private to the caller, which must hold the update lock of the location. It does not
+     * save itself on changes; it has to be saved with {@link RepositoryWriter}.
+     */
     private SimpleArtifactRepository getOrCreateRepository( final URI location, final String name,
                                                             final Map<String, String> properties,
                                                             final IArtifactRepositoryManager manager )
@@ -103,12 +134,20 @@ public class ArtifactRepositoryService
         IArtifactRepository repository = null;
         try
         {
-            repository = manager.loadRepository( location, null );
+            repository = getRepositoryForUpdate( manager, location );
+            RepositoryWriter.suspendSave( repository );
             repository.removeAll( new NullProgressMonitor() );
-            repository.getProperties().clear();
+            // repository properties are read only, so they are replaced one by one
+            for ( final String key : new ArrayList<String>( repository.getProperties().keySet() ) )
+            {
+                RepositoryWriter.setProperty( repository, key, null );
+            }
             if ( properties != null )
             {
-                repository.getProperties().putAll( properties );
+                for ( final Map.Entry<String, String> entry : properties.entrySet() )
+                {
+                    RepositoryWriter.setProperty( repository, entry.getKey(), entry.getValue() );
+                }
             }
         }
         catch ( final Exception ignore )
@@ -123,6 +162,7 @@ public class ArtifactRepositoryService
         {
             throw new RuntimeException( "Cannot write artifact repository as repository could not be created" );
         }
+        RepositoryWriter.suspendSave( repository );
         if ( !( repository instanceof SimpleArtifactRepository ) )
         {
             throw new RuntimeException(
@@ -132,14 +172,33 @@ public class ArtifactRepositoryService
     }
 
     public void resolve( final URI location, final ArtifactResolver artifactResolver )
+    {
+        final ResolveOptions options = new ResolveOptions();
+        // resolvers written before parallel resolution are not expected to be thread safe
+        options.setThreads( 1 );
+        // nor to expect the repository files to be linked to their files
+        options.setCopyStrategy( CopyStrategy.TRANSFER );
+        final ResolveResult result = resolve( location, artifactResolver, options );
+        if ( result.getFailed() > 0 )
+        {
+            final Exception failure = result.getFailures().get( 0 );
+            if ( failure instanceof RuntimeException )
+            {
+                throw (RuntimeException) failure;
+            }
+            throw new RuntimeException( "Cannot resolve artifact repository. Reason: " + failure.getMessage(), failure );
+        }
+    }
+
+    public ResolveResult resolve( final URI location, final ArtifactResolver artifactResolver,
+                                  final ResolveOptions options )
     {
         IArtifactRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
-            manager = getManager( agentDir.toURI() );
+            manager = getManager();
             final IArtifactRepository repository = getRepository( manager, location );
             if ( !( repository instanceof SimpleArtifactRepository ) )
             {
@@ -153,9 +212,13 @@ public class ArtifactRepositoryService
 
             if ( descriptors.isEmpty() )
             {
-                return;
+                return new ResolveResult( 0, 0, 0, 0, null );
             }
 
+            final ResolveListener listener = options == null ? null : options.getListener();
+            final CopyStrategy copyStrategy = options == null ? CopyStrategy.TRANSFER : options.getCopyStrategy();
+            final boolean incremental = options != null && options.isIncremental();
+            final List<ResolveTask> tasks = new ArrayList<ResolveTask>();
             for ( final IArtifactDescriptor descriptor : descriptors.toSet() )
             {
                 final String groupId = descriptor.getProperty( "org.apache.maven.artifact.groupId" );
@@ -165,59 +228,55 @@ public class ArtifactRepositoryService
                 final String classifier = descriptor.getProperty( "org.apache.maven.artifact.classifier" );
                 if ( groupId != null && artifactId != null && version != null )
                 {
-                    File resolvedArtifactFile;
-                    try
+                    final ResolveTask task =
+                        new ResolveTask( artifactResolver, listener, copyStrategy, groupId, artifactId, version,
+                                         extension, classifier,
+                                         ( (SimpleArtifactRepository) repository ).getArtifactFile( descriptor ) );
+                    if ( incremental )
                     {
-                        resolvedArtifactFile =
-                            artifactResolver.resolveArtifactFile( groupId, artifactId, version, extension, classifier );
+                        task.setExpectedChecksums( descriptor );
                     }
-                    catch ( final Exception e )
-                    {
-                        throw new RuntimeException( "Cannot resolve artifact. Reason: " + e.getMessage(), e );
-                    }
-                    final File repositoryArtifactFile =
-                        ( (SimpleArtifactRepository) repository ).getArtifactFile( descriptor );
-                    repositoryArtifactFile.getParentFile().mkdirs();
+                    tasks.add( task );
+                }
+            }
 
-                    InputStream is = null;
-                    OutputStream os = null;
-                    try
+            final List<Future<Long>> futures =
+                ParallelTasks.invokeAll( tasks, options == null ? 0 : options.getThreads() );
+            int resolved = 0;
+            long bytesCopied = 0;
+            long bytesLinked = 0;
+            int skipped = 0;
+            final List<Exception> failures = new ArrayList<Exception>();
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                final Throwable failure = ParallelTasks.getFailure( futures.get( i ) );
+                final ResolveTask task = tasks.get( i );
+                if ( failure == null && task.skipped )
+                {
+                    skipped++;
+                }
+                else if ( failure == null )
+                {
+                    resolved++;
+                    if ( task.usedStrategy == CopyStrategy.LINK )
                     {
-                        is = new BufferedInputStream( new FileInputStream( resolvedArtifactFile ) );
-                        os = new BufferedOutputStream( new FileOutputStream( repositoryArtifactFile ) );
-                        FileUtils.copyStream( is, true, os, true );
+                        bytesLinked += task.bytes;
                     }
-                    catch ( final Exception e )
+                    else
                     {
-                        throw new RuntimeException( String.format(
-                            "Cannot write artifact repository as artifact %s could not be copied. Reason: %s",
-                            resolvedArtifactFile.getPath(), e.getMessage() ), e );
-                    }
-                    finally
-                    {
-                        if ( is != null )
-                        {
-                            try
-                            {
-                                is.close();
-                            }
-                            catch ( final IOException ignore )
-                            {
-                            }
-                        }
-                        if ( os != null )
-                        {
-                            try
-                            {
-                                os.close();
-                            }
-                            catch ( final IOException ignore )
-                            {
-                            }
-                        }
+                        bytesCopied += task.bytes;
                     }
                 }
+                else if ( failure instanceof Exception )
+                {
+                    failures.add( (Exception) failure );
+                }
+                else
+                {
+                    throw (Error) failure;
+                }
             }
+            return new ResolveResult( resolved, bytesCopied, bytesLinked, skipped, failures );
         }
         catch ( final ProvisionException e )
         {
@@ -227,9 +286,8 @@ public class ArtifactRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
@@ -237,14 +295,13 @@ public class ArtifactRepositoryService
     public Collection<InstallableArtifact> getInstallableArtifacts( final URI location )
     {
         IArtifactRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
             final NullProgressMonitor monitor = new NullProgressMonitor();
 
-            manager = getManager( agentDir.toURI() );
+            manager = getManager();
             final IArtifactRepository repository = getRepository( manager, location );
             final IQueryResult<IArtifactDescriptor> descriptorsQuery =
                 repository.descriptorQueryable().query( ArtifactDescriptorQuery.ALL_DESCRIPTORS, monitor );
@@ -285,9 +342,8 @@ public class ArtifactRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
@@ -295,12 +351,11 @@ public class ArtifactRepositoryService
     public Map<String, String> getProperties( final URI location )
     {
         IArtifactRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
-            manager = getManager( agentDir.toURI() );
+            manager = getManager();
             final IArtifactRepository repository = getRepository( manager, location );
 
             return Collections.unmodifiableMap( repository.getProperties() );
@@ -313,15 +368,20 @@ public class ArtifactRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
 
     public void createProxyRepository( final URI location, final String username, final String password,
                                        final URI destination, final File artifactMappingsXmlFile )
+    {
+        refreshProxyRepository( location, username, password, destination, artifactMappingsXmlFile );
+    }
+
+    public ProxyResult refreshProxyRepository( final URI location, final String username, final String password,
+                                               final URI destination, final File artifactMappingsXmlFile )
     {
         final P2AuthSession p2AuthSession = new P2AuthSession();
         IArtifactRepositoryManager manager = null;
@@ -329,9 +389,22 @@ public class ArtifactRepositoryService
         {
             getLock().readLock().lock();
 
+            final URI agentLocation = Utils.temporaryAgentLocationFor( location );
+            final File stateFile = new File( new File( agentLocation ), "artifacts-proxy.properties" );
+            final RemoteRepositoryState previousState = RemoteRepositoryState.read( stateFile );
+            final boolean isProxyPresent =
+                RemoteRepositoryState.isPresent( destination, "artifacts.jar", "artifacts.xml" )
+                    && artifactMappingsXmlFile.isFile();
+            if ( previousState != null && isProxyPresent && previousState.isUnchanged( location, username, password ) )
+            {
+                // nothing changed since last time
+                return new ProxyResult( true, null, null, null );
+            }
+            stateFile.delete();
+
             p2AuthSession.setCredentials( location, username, password );
 
-            manager = getManager( Utils.temporaryAgentLocationFor( location ) );
+            manager = getManager( agentLocation );
             final boolean isNewRepository = !manager.contains( location );
             final IProgressMonitor monitor = new NullProgressMonitor();
             try
@@ -354,10 +427,24 @@ public class ArtifactRepositoryService
             }
             try
             {
-                final IArtifactRepository remoteRepository = manager.loadRepository( location, monitor );
-
-                final Collection<SimpleArtifactRepository> memberRepositories =
-                    getMemberRepositories( manager, remoteRepository, monitor, "" /* indent */ );
+                final CompositeTree tree = CompositeTree.discoverArtifacts( manager.getAgent(), location, monitor, 0 );
+                final RemoteRepositoryState state =
+                    RemoteRepositoryState.capture( tree.getLocations(), RemoteRepositoryState.ARTIFACT_INDEX_FILES,
+                                                   location, username, password );
+                final MemberRepositories members = MemberRepositories.load( manager, tree, monitor, 0 );
+                final IArtifactRepository remoteRepository = members.getRepository();
+                final Collection<SimpleArtifactRepository> memberRepositories = members.getMembers();
+                final String timestamp = remoteRepository.getProperty( IRepository.PROP_TIMESTAMP );
+
+                // composites do not change their timestamp when their children change
+                if ( previousState != null && isProxyPresent && timestamp != null
+                    && !( remoteRepository instanceof ICompositeRepository )
+                    && timestamp.equals( previousState.getTimestamp() ) )
+                {
+                    state.write( stateFile, timestamp, members.getLocations() );
+                    return new ProxyResult( true, members.getLoadTimes(), members.getDuplicates(),
+                                            members.getCycles() );
+                }
 
                 final Map<String, String> repositoryProperties =
                     new LinkedHashMap<String, String>(
@@ -378,17 +465,32 @@ public class ArtifactRepositoryService
                 // ensure that even if the remote repository is compressed the local one is not
                 repositoryProperties.put( IRepository.PROP_COMPRESSED, "false" );
 
-                final SimpleArtifactRepository localRepository =
-                    getOrCreateRepository( destination, remoteRepository.getName(), repositoryProperties, manager );
-
                 final Set<IArtifactDescriptor> descriptors = descriptorsQuery.toSet();
-                localRepository.addDescriptors( descriptorsQuery.toArray( IArtifactDescriptor.class ), monitor );
+                synchronized ( getUpdateLock( destination ) )
+                {
+                    final SimpleArtifactRepository localRepository =
+                        getOrCreateRepository( destination, remoteRepository.getName(), repositoryProperties,
+                                               manager );
+                    try
+                    {
+                        localRepository.addDescriptors( descriptorsQuery.toArray( IArtifactDescriptor.class ),
+                                                        monitor );
 
-                final String[][] rules = mergeAllRules( localRepository, memberRepositories );
-                localRepository.setRules( rules );
-                localRepository.save();
+                        final String[][] rules = mergeAllRules( localRepository, memberRepositories );
+                        localRepository.setRules( rules );
+                        new RepositoryWriter( manager.getAgent() ).save( localRepository );
+                    }
+                    finally
+                    {
+                        RepositoryWriter.resumeSave( localRepository );
+                    }
+                    getCache().update( destination, localRepository );
+                }
 
                 generateArtifactMappings( descriptors, memberRepositories, artifactMappingsXmlFile );
+
+                state.write( stateFile, timestamp, members.getLocations() );
+                return new ProxyResult( false, members.getLoadTimes(), members.getDuplicates(), members.getCycles() );
             }
             finally
             {
@@ -416,56 +518,114 @@ public class ArtifactRepositoryService
     }
 
     public void merge( final URI location, final URI destination )
+    {
+        merge( Collections.singletonList( location ), destination );
+    }
+
+    public MergeResult merge( final List<URI> locations, final URI destination )
     {
         IArtifactRepositoryManager locationManager = null;
         IArtifactRepositoryManager destinationManager = null;
-        final File agentDir1 = Utils.temporaryAgentLocation();
-        final File agentDir2 = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
             final NullProgressMonitor monitor = new NullProgressMonitor();
 
-            locationManager = getManager( agentDir1.toURI() );
-            final IArtifactRepository sourceRepository = getRepository( locationManager, location );
-
-            final IQueryResult<IArtifactDescriptor> descriptorsQuery =
-                sourceRepository.descriptorQueryable().query( ArtifactDescriptorQuery.ALL_DESCRIPTORS, monitor );
-            if ( descriptorsQuery.isEmpty() )
+            locationManager = getManager();
+            // keyed by artifact, so an artifact present in more locations is taken from the last one
+            final Map<IArtifactKey, List<IArtifactDescriptor>> descriptors =
+                new LinkedHashMap<IArtifactKey, List<IArtifactDescriptor>>();
+            for ( final URI location : locations )
             {
-                return;
+                final IArtifactRepository sourceRepository = getRepository( locationManager, location );
+                final Map<IArtifactKey, List<IArtifactDescriptor>> sourceDescriptors =
+                    new LinkedHashMap<IArtifactKey, List<IArtifactDescriptor>>();
+                final Iterator<IArtifactDescriptor> it =
+                    sourceRepository.descriptorQueryable().query( ArtifactDescriptorQuery.ALL_DESCRIPTORS,
+                                                                  monitor ).iterator();
+                while ( it.hasNext() )
+                {
+                    final IArtifactDescriptor descriptor = it.next();
+                    List<IArtifactDescriptor> keyDescriptors = sourceDescriptors.get( descriptor.getArtifactKey() );
+                    if ( keyDescriptors == null )
+                    {
+                        keyDescriptors = new ArrayList<IArtifactDescriptor>();
+                        sourceDescriptors.put( descriptor.getArtifactKey(), keyDescriptors );
+                    }
+                    keyDescriptors.add( descriptor );
+                }
+                for ( final Map.Entry<IArtifactKey, List<IArtifactDescriptor>> entry : sourceDescriptors.entrySet() )
+                {
+                    descriptors.remove( entry.getKey() );
+                    descriptors.put( entry.getKey(), entry.getValue() );
+                }
+            }
+            if ( descriptors.isEmpty() )
+            {
+                return new MergeResult( 0, 0, 0 );
             }
 
-            destinationManager = getManager( agentDir2.toURI() );
-            final IArtifactRepository destinationRepository = getRepository( destinationManager, destination );
-
-            final IArtifactDescriptor[] newDescriptors = descriptorsQuery.toArray( IArtifactDescriptor.class );
-            // remove the old descriptors to avoid stale data (otherwise the artifact and p2 metadata don't match)
-            // as we are not living in a 'perfect' world redeploying of an IU with the same version may happen
-            for ( IArtifactDescriptor d : newDescriptors )
+            destinationManager = getManager();
+            synchronized ( getUpdateLock( destination ) )
             {
-                destinationRepository.removeDescriptor( d.getArtifactKey(), monitor );
+                final IArtifactRepository destinationRepository =
+                    getRepositoryForUpdate( destinationManager, destination );
+
+                final List<IArtifactDescriptor> newDescriptors = new ArrayList<IArtifactDescriptor>();
+                final List<IArtifactKey> replacedKeys = new ArrayList<IArtifactKey>();
+                for ( final Map.Entry<IArtifactKey, List<IArtifactDescriptor>> entry : descriptors.entrySet() )
+                {
+                    if ( destinationRepository.contains( entry.getKey() ) )
+                    {
+                        replacedKeys.add( entry.getKey() );
+                    }
+                    newDescriptors.addAll( entry.getValue() );
+                }
+                final long[] changedTime = new long[1];
+                // all changes are saved at once, at the end of the batch
+                final IStatus status = destinationRepository.executeBatch( new IRunnableWithProgress()
+                {
+                    public void run( final IProgressMonitor batchMonitor )
+                    {
+                        // remove the old descriptors to avoid stale data (otherwise the artifact and p2 metadata don't
+                        // match) as we are not living in a 'perfect' world redeploying of an IU with the same version
+                        // may happen
+                        if ( !replacedKeys.isEmpty() )
+                        {
+                            destinationRepository.removeDescriptors(
+                                replacedKeys.toArray( new IArtifactKey[replacedKeys.size()] ), batchMonitor );
+                        }
+                        destinationRepository.addDescriptors(
+                            newDescriptors.toArray( new IArtifactDescriptor[newDescriptors.size()] ), batchMonitor );
+                        changedTime[0] = System.currentTimeMillis();
+                    }
+                }, monitor );
+                if ( status.getSeverity() == IStatus.ERROR )
+                {
+                    throw new ProvisionException( status );
+                }
+                final long saveTime = System.currentTimeMillis() - changedTime[0];
+                getCache().update( destination, destinationRepository );
+                return new MergeResult( descriptors.size() - replacedKeys.size(), replacedKeys.size(), 0, saveTime );
             }
-            destinationRepository.addDescriptors( newDescriptors, monitor );
         }
         catch ( final ProvisionException e )
         {
             throw new RuntimeException( String.format( "Cannot merge artifact repository [%s] into [%s] due to [%s]",
-                                                       location, destination, e.getMessage() ), e );
+                                                       locations.size() == 1 ? locations.get( 0 ) : locations,
+                                                       destination, e.getMessage() ), e );
         }
         finally
         {
             if ( locationManager != null )
             {
-                locationManager.getAgent().stop();
+                releaseProvisioningAgent( locationManager.getAgent() );
             }
             if ( destinationManager != null )
             {
-                destinationManager.getAgent().stop();
+                releaseProvisioningAgent( destinationManager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir1 );
-            Utils.deleteIfPossible( agentDir2 );
             getLock().readLock().unlock();
         }
     }
@@ -474,15 +634,13 @@ public class ArtifactRepositoryService
     {
         IArtifactRepositoryManager locationManager = null;
         IArtifactRepositoryManager destinationManager = null;
-        final File agentDir1 = Utils.temporaryAgentLocation();
-        final File agentDir2 = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
             final NullProgressMonitor monitor = new NullProgressMonitor();
 
-            locationManager = getManager( agentDir1.toURI() );
+            locationManager = getManager();
             final IArtifactRepository sourceRepository = getRepository( locationManager, location );
             final IQueryResult<IArtifactDescriptor> descriptorsQuery =
                 sourceRepository.descriptorQueryable().query( ArtifactDescriptorQuery.ALL_DESCRIPTORS, monitor );
@@ -491,10 +649,15 @@ public class ArtifactRepositoryService
                 return;
             }
 
-            destinationManager = getManager( agentDir2.toURI() );
-            final IArtifactRepository destinationRepository = getRepository( destinationManager, destination );
-
-            destinationRepository.removeDescriptors( descriptorsQuery.toArray( IArtifactDescriptor.class ), monitor );
+            destinationManager = getManager();
+            synchronized ( getUpdateLock( destination ) )
+            {
+                final IArtifactRepository destinationRepository =
+                    getRepositoryForUpdate( destinationManager, destination );
+                destinationRepository.removeDescriptors( descriptorsQuery.toArray( IArtifactDescriptor.class ),
+                                                         monitor );
+                getCache().update( destination, destinationRepository );
+            }
         }
         catch ( final ProvisionException e )
         {
@@ -505,14 +668,99 @@ public class ArtifactRepositoryService
         {
             if ( locationManager != null )
             {
-                locationManager.getAgent().stop();
+                releaseProvisioningAgent( locationManager.getAgent() );
             }
             if ( destinationManager != null )
             {
-                destinationManager.getAgent().stop();
+                releaseProvisioningAgent( destinationManager.getAgent() );
+            }
+            getLock().readLock().unlock();
+        }
+    }
+
+    public GcResult remove( final URI location, final URI destination, final boolean gc )
+    {
+        // nothing can be added to destination between the removal and the collection
+        synchronized ( getUpdateLock( destination ) )
+        {
+            remove( location, destination );
+            if ( !gc )
+            {
+                return new GcResult( null, 0, 0, false );
+            }
+            return gc( destination, false );
+        }
+    }
+
+    public GcResult gc( final URI location, final boolean dryRun )
+    {
+        IArtifactRepositoryManager manager = null;
+        try
+        {
+            getLock().readLock().lock();
+
+            manager = getManager();
+            // nothing can be added between reading the descriptors and collecting, so new files are not orphans
+            synchronized ( getUpdateLock( location ) )
+            {
+                final IArtifactRepository repository = getRepository( manager, location );
+                if ( !( repository instanceof SimpleArtifactRepository ) )
+                {
+                    throw new RuntimeException(
+                        "Cannot load artifact repository as repository is not of expected type (SimpleArtifactRepository)" );
+                }
+                if ( !"file".equals( repository.getLocation().getScheme() ) )
+                {
+                    throw new RuntimeException( String.format(
+                        "Cannot collect orphaned artifact files of [%s] as it is not a local repository", location ) );
+                }
+
+                final Collection<File> referencedFiles = new ArrayList<File>();
+                final Iterator<IArtifactDescriptor> it =
+                    repository.descriptorQueryable().query( ArtifactDescriptorQuery.ALL_DESCRIPTORS,
+                                                            new NullProgressMonitor() ).iterator();
+                while ( it.hasNext() )
+                {
+                    final File file = ( (SimpleArtifactRepository) repository ).getArtifactFile( it.next() );
+                    if ( file != null )
+                    {
+                        referencedFiles.add( file );
+                    }
+                }
+                return new ArtifactFileCollector( new File( repository.getLocation() ), referencedFiles ).collect(
+                    dryRun, 0 );
+            }
+        }
+        catch ( final ProvisionException e )
+        {
+            throw new RuntimeException( String.format( "Cannot collect orphaned artifact files of [%s] due to [%s]",
+                                                       location, e.getMessage() ), e );
+        }
+        finally
+        {
+            if ( manager != null )
+            {
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir1 );
-            Utils.deleteIfPossible( agentDir2 );
+            getLock().readLock().unlock();
+        }
+    }
+
+    public GcResult gcBlobStore( final boolean dryRun )
+    {
+        final BlobStore blobStore = BlobStore.getInstance();
+        if ( blobStore == null )
+        {
+            return new GcResult( new ArrayList<File>(), 0, 0, dryRun );
+        }
+        try
+        {
+            getLock().readLock().lock();
+
+            return blobStore.gc( dryRun, 0 );
+        }
+        finally
+        {
             getLock().readLock().unlock();
         }
     }
@@ -591,153 +839,144 @@ public class ArtifactRepositoryService
     }
 
     /**
-     * Gathers all SimpleArtifactRepositories referenced from the specified repository (recursively). If the specified
-     * artifact repository is a SimpleArtifactRepository, the returned list will only contain the specified artifact
-     * repository.
-     *
-     * @param manager    The artifact repository manager that will be used to load all repositories
-     * @param repository The start artifact repository
-     * @param result     The list of all referenced simple artifact repositories
+     * Writes the remote path of each artifact descriptor, grouped by the first member repository able to serve it.
+     * Candidate member repositories are looked up via an artifact key index instead of asking every repository about
+     * every descriptor.
      */
-    private Collection<SimpleArtifactRepository> getMemberRepositories( final IArtifactRepositoryManager manager,
-                                                                        final IArtifactRepository repository,
-                                                                        final IProgressMonitor monitor, String indent )
-        throws ProvisionException
+    private void generateArtifactMappings( final Collection<IArtifactDescriptor> artifactDescriptors,
+                                           final Collection<SimpleArtifactRepository> artifactRepositories,
+                                           final File destination )
     {
-        indent += "   ";
-        final Collection<SimpleArtifactRepository> memberRepositories = new LinkedHashSet<SimpleArtifactRepository>();
-        if ( repository instanceof SimpleArtifactRepository )
-        {
-            memberRepositories.add( (SimpleArtifactRepository) repository );
-            return memberRepositories;
-        }
-        if ( repository instanceof ICompositeRepository )
+        final SimpleArtifactRepository[] repositories =
+            artifactRepositories.toArray( new SimpleArtifactRepository[artifactRepositories.size()] );
+
+        final Map<IArtifactKey, List<Integer>> repositoriesByKey = new HashMap<IArtifactKey, List<Integer>>();
+        for ( int i = 0; i < repositories.length; i++ )
         {
-            final ICompositeRepository<?> compositeRepository = (ICompositeRepository) repository;
-            final List<URI> childURIs = compositeRepository.getChildren();
-            for ( final URI childURI : childURIs )
+            for ( final IArtifactDescriptor descriptor : repositories[i].getDescriptors() )
             {
-                final IArtifactRepository childRepository = manager.loadRepository( childURI, monitor );
-                memberRepositories.addAll( getMemberRepositories( manager, childRepository, monitor, indent ) );
+                List<Integer> indexes = repositoriesByKey.get( descriptor.getArtifactKey() );
+                if ( indexes == null )
+                {
+                    indexes = new ArrayList<Integer>( 1 );
+                    repositoriesByKey.put( descriptor.getArtifactKey(), indexes );
+                }
+                if ( indexes.isEmpty() || indexes.get( indexes.size() - 1 ) != i )
+                {
+                    indexes.add( i );
+                }
             }
-            return memberRepositories;
         }
-        throw new RuntimeException( "Unknown repository type " + repository.getClass().getCanonicalName() );
-    }
 
-    private void generateArtifactMappings( final Collection<IArtifactDescriptor> artifactDescriptors,
-                                           final Collection<SimpleArtifactRepository> artifactRepositories,
-                                           final File destination )
-    {
-        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        try
+        // remotePath / md5 pairs per repository
+        final List<List<String[]>> mappings = new ArrayList<List<String[]>>( repositories.length );
+        for ( int i = 0; i < repositories.length; i++ )
+        {
+            mappings.add( new ArrayList<String[]>() );
+        }
+        for ( final IArtifactDescriptor artifactDescriptor : artifactDescriptors )
         {
-            final DocumentBuilder db = dbf.newDocumentBuilder();
-            final Document doc = db.newDocument();
-            doc.setXmlStandalone( true );
-            final Element rootElement = doc.createElement( "repositories" );
-            doc.appendChild( rootElement );
-            for ( final SimpleArtifactRepository repository : artifactRepositories )
+            if ( "0".equals( artifactDescriptor.getProperty( "download.size" ) ) )
             {
-                final URI repositoryURI = repository.getLocation();
-
-                final Element repositoryElement = doc.createElement( "repository" );
-                rootElement.appendChild( repositoryElement );
-                repositoryElement.setAttribute( "uri", repositoryURI.toString() );
-                final String mirrorsURL = repository.getProperties().get( IRepository.PROP_MIRRORS_URL );
-                if ( mirrorsURL != null )
+                continue;
+            }
+            final List<Integer> candidates = repositoriesByKey.get( artifactDescriptor.getArtifactKey() );
+            if ( candidates == null )
+            {
+                continue;
+            }
+            for ( final Integer index : candidates )
+            {
+                final SimpleArtifactRepository repository = repositories[index];
+                if ( !repository.contains( artifactDescriptor ) )
                 {
-                    repositoryElement.setAttribute( IRepository.PROP_MIRRORS_URL, mirrorsURL );
+                    continue;
                 }
-
-                final Iterator<IArtifactDescriptor> iterArtifactDescriptors = artifactDescriptors.iterator();
-                while ( iterArtifactDescriptors.hasNext() )
+                final URI remoteArtifactUri = repository.getLocation( artifactDescriptor );
+                if ( remoteArtifactUri == null )
                 {
-                    final IArtifactDescriptor artifactDescriptor = iterArtifactDescriptors.next();
-                    if ( repository.contains( artifactDescriptor ) )
+                    if ( "packed".equals( artifactDescriptor.getProperty( "format" ) ) )
                     {
-                        final Element artifactElement = doc.createElement( "artifact" );
-                        if ( "0".equals( artifactDescriptor.getProperty( "download.size" ) ) )
-                        {
-                            continue;
-                        }
-                        final URI remoteArtifactUri = repository.getLocation( artifactDescriptor );
-                        if ( remoteArtifactUri == null )
-                        {
-                            if ( "packed".equals( artifactDescriptor.getProperty( "format" ) ) )
-                            {
-                                // Some repositories contain packed artifacts,
-                                // but they don't have rules to handle them,
-                                // so the packed artifacts cannot be reached,
-                                // but that's usually fine because the same
-                                // artifact is available unpacked too (usually).
-                            }
-                            else
-                            {
-                                throw new RuntimeException( "Cannot get remote path for repository '"
-                                                                + repository.getName() + "', artifact '"
-                                                                + artifactDescriptor + "'." );
-                            }
-                        }
-                        else
-                        {
-                            String remotePath = remoteArtifactUri.getPath();
-                            if ( remotePath.startsWith( repositoryURI.getPath() ) )
-                            {
-                                remotePath = remotePath.substring( repositoryURI.getPath().length() );
-                                if ( !remotePath.startsWith( "/" ) )
-                                {
-                                    remotePath = "/" + remotePath;
-                                }
-                                artifactElement.setAttribute( "remotePath", remotePath );
-
-                                final String md5 = artifactDescriptor.getProperty( "download.md5" );
-                                if ( md5 != null )
-                                {
-                                    artifactElement.setAttribute( "md5", md5 );
-                                }
-
-                                repositoryElement.appendChild( artifactElement );
-                            }
-                            else
-                            {
-                                throw new RuntimeException( "Could not get remote path for artifact "
-                                                                + artifactDescriptor );
-                            }
-
-                            iterArtifactDescriptors.remove();
-                        }
+                        // Some repositories contain packed artifacts,
+                        // but they don't have rules to handle them,
+                        // so the packed artifacts cannot be reached,
+                        // but that's usually fine because the same
+                        // artifact is available unpacked too (usually).
+                        continue;
                     }
+                    throw new RuntimeException( "Cannot get remote path for repository '" + repository.getName()
+                        + "', artifact '" + artifactDescriptor + "'." );
+                }
+                final URI repositoryURI = repository.getLocation();
+                String remotePath = remoteArtifactUri.getPath();
+                if ( !remotePath.startsWith( repositoryURI.getPath() ) )
+                {
+                    throw new RuntimeException( "Could not get remote path for artifact " + artifactDescriptor );
+                }
+                remotePath = remotePath.substring( repositoryURI.getPath().length() );
+                if ( !remotePath.startsWith( "/" ) )
+                {
+                    remotePath = "/" + remotePath;
                 }
+                mappings.get( index ).add(
+                    new String[] { remotePath, artifactDescriptor.getProperty( "download.md5" ) } );
+                break;
             }
-            rootElement.setAttribute( "size", "" + artifactRepositories.size() );
+        }
 
-            final TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            // transformerFactory.setAttribute( "indent-number", "2" );
-            final Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty( OutputKeys.INDENT, "yes" );
-            transformer.setOutputProperty( "{http://xml.apache.org/xslt}indent-amount", "2" );
-            final DOMSource source = new DOMSource( doc );
-            final OutputStream os = new FileOutputStream( destination );
-            try
-            {
-                final StreamResult result = new StreamResult( os );
-                transformer.transform( source, result );
-            }
-            finally
+        ArtifactMappingsWriter writer = null;
+        try
+        {
+            writer = new ArtifactMappingsWriter( destination, repositories.length );
+            for ( int i = 0; i < repositories.length; i++ )
             {
-                os.close();
+                writer.startRepository( repositories[i].getLocation().toString(),
+                                        repositories[i].getProperties().get( IRepository.PROP_MIRRORS_URL ) );
+                for ( final String[] mapping : mappings.get( i ) )
+                {
+                    writer.artifact( mapping[0], mapping[1] );
+                }
+                // release memory as we go
+                mappings.set( i, null );
             }
+            writer.close();
+            writer = null;
         }
         catch ( final Exception e )
         {
             throw new RuntimeException( "Could not generate artifact mappings file", e );
         }
+        finally
+        {
+            if ( writer != null )
+            {
+                writer.abort();
+            }
+        }
     }
 
     private IArtifactRepository getRepository( final IArtifactRepositoryManager manager, final URI location )
         throws ProvisionException
     {
+        final IArtifactRepository repository = getCache().load( manager, location );
+        if ( repository == null )
+        {
+            throw new RuntimeException( "Cannot load artifact repository as repository could not be created" );
+        }
+        return repository;
+    }
+
+    /**
+     * Loads a repository to be modified. Repository is loaded from disk and dropped from the shared cache, so callers
+     * reading the cached repository never see it half modified. Once modified and saved, the repository should be
+     * handed to the cache via {@link ArtifactRepositoryCache#update(URI, IArtifactRepository)}.
+     */
+    private IArtifactRepository getRepositoryForUpdate( final IArtifactRepositoryManager manager, final URI location )
+        throws ProvisionException
+    {
+        getCache().invalidate( location );
+        // the manager keeps what it loaded, which may be the instance shared via the cache
+        manager.removeRepository( location );
         final IArtifactRepository repository = manager.loadRepository( location, null );
         if ( repository == null )
         {
@@ -746,6 +985,41 @@ public class ArtifactRepositoryService
         return repository;
     }
 
+    private Object getUpdateLock( final URI location )
+    {
+        final Object lock = new Object();
+        final Object existing = updateLocks.putIfAbsent( location, lock );
+        return existing == null ? lock : existing;
+    }
+
+    private ArtifactRepositoryCache getCache()
+    {
+        return ArtifactRepositoryCache.getInstance();
+    }
+
+    /**
+     * Returns the artifact repository manager of an agent borrowed from the pool. The agent must be released via
+     * {@link #releaseProvisioningAgent(IProvisioningAgent)}.
+     */
+    private IArtifactRepositoryManager getManager()
+        throws ProvisionException
+    {
+        if ( getProvider() == null )
+        {
+            throw new RuntimeException( "Cannot load artifact repository as there is no provisioning agent provider" );
+        }
+        final IProvisioningAgent agent = acquireProvisioningAgent();
+        try
+        {
+            return getManager( agent );
+        }
+        catch ( final RuntimeException e )
+        {
+            releaseProvisioningAgent( agent );
+            throw e;
+        }
+    }
+
     private IArtifactRepositoryManager getManager( final URI location )
         throws ProvisionException
     {
@@ -753,7 +1027,11 @@ public class ArtifactRepositoryService
         {
             throw new RuntimeException( "Cannot load artifact repository as there is no provisioning agent provider" );
         }
-        final IProvisioningAgent agent = createProvisioningAgent( location );
+        return getManager( createProvisioningAgent( location ) );
+    }
+
+    private IArtifactRepositoryManager getManager( final IProvisioningAgent agent )
+    {
         final IArtifactRepositoryManager manager =
             (IArtifactRepositoryManager) agent.getService( IArtifactRepositoryManager.SERVICE_NAME );
         if ( manager == null )
@@ -764,9 +1042,16 @@ public class ArtifactRepositoryService
         return manager;
     }
 
-    private void addArtifacts( final Collection<InstallableArtifact> artifacts, final IArtifactRepository repository )
+    /**
+     * Creates the descriptors of all artifacts first and then adds them to the repository at once.
+     */
+    private ArtifactWriteResult addArtifacts( final Collection<InstallableArtifact> artifacts,
+                                              final IArtifactRepository repository )
         throws ProvisionException
     {
+        final long start = System.currentTimeMillis();
+        final IArtifactDescriptor[] descriptors = new IArtifactDescriptor[artifacts.size()];
+        int index = 0;
         for ( final InstallableArtifact artifact : artifacts )
         {
             final IArtifactKey artifactKey =
@@ -792,8 +1077,14 @@ public class ArtifactRepositoryService
                     "Cannot write artifact repository as created artifact descriptor is not of expected type (ArtifactDescriptor)" );
             }
             addArtifactProperties( artifact, (ArtifactDescriptor) descriptor );
-            repository.addDescriptor( descriptor, new NullProgressMonitor() );
+            descriptors[index++] = descriptor;
+        }
+        final long created = System.currentTimeMillis();
+        if ( descriptors.length > 0 )
+        {
+            repository.addDescriptors( descriptors, new NullProgressMonitor() );
         }
+        return new ArtifactWriteResult( descriptors.length, created - start, System.currentTimeMillis() - created );
     }
 
     private void addArtifactProperties( final InstallableArtifact artifact, final ArtifactDescriptor descriptor )
@@ -811,4 +1102,179 @@ public class ArtifactRepositoryService
         }
     }
 
+    /**
+     * Resolves one artifact and copies (or links) it into the p2 repository.
+     */
+    private static class ResolveTask
+        implements Callable<Long>
+    {
+
+        private final ArtifactResolver artifactResolver;
+
+        private final ResolveListener listener;
+
+        private final CopyStrategy copyStrategy;
+
+        private final String groupId;
+
+        private final String artifactId;
+
+        private final String version;
+
+        private final String extension;
+
+        private final String classifier;
+
+        private final File repositoryArtifactFile;
+
+        private boolean incremental;
+
+        /**
+         * Expected checksums of repository file, as algorithm / hex value pairs.
+         */
+        private final List<String[]> checksums = new ArrayList<String[]>();
+
+        private boolean skipped;
+
+        private CopyStrategy usedStrategy;
+
+        private long bytes;
+
+        ResolveTask( final ArtifactResolver artifactResolver, final ResolveListener listener,
+                     final CopyStrategy copyStrategy, final String groupId, final String artifactId,
+                     final String version, final String extension, final String classifier,
+                     final File repositoryArtifactFile )
+        {
+            this.artifactResolver = artifactResolver;
+            this.listener = listener;
+            this.copyStrategy = copyStrategy;
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.version = version;
+            this.extension = extension;
+            this.classifier = classifier;
+            this.repositoryArtifactFile = repositoryArtifactFile;
+        }
+
+        void setExpectedChecksums( final IArtifactDescriptor descriptor )
+        {
+            incremental = true;
+            addChecksum( "MD5", descriptor.getProperty( "download.md5" ) );
+            addChecksum( "MD5", descriptor.getProperty( "download.checksum.md5" ) );
+            addChecksum( "SHA-1", descriptor.getProperty( "download.checksum.sha-1" ) );
+            addChecksum( "SHA-256", descriptor.getProperty( "download.checksum.sha-256" ) );
+        }
+
+        private void addChecksum( final String algorithm, final String value )
+        {
+            if ( value != null && value.trim().length() > 0 )
+            {
+                checksums.add( new String[] { algorithm, value.trim() } );
+            }
+        }
+
+        /**
+         * Repository file is unchanged if it has the size of the resolved file and it matches the checksums of the
+         * descriptor or, if there are none, it is not older than the resolved file.
+         */
+        private boolean isUpToDate( final File resolvedArtifactFile )
+        {
+            if ( !repositoryArtifactFile.isFile() || repositoryArtifactFile.length() != resolvedArtifactFile.length() )
+            {
+                return false;
+            }
+            if ( checksums.isEmpty() )
+            {
+                return repositoryArtifactFile.lastModified() >= resolvedArtifactFile.lastModified();
+            }
+            for ( final String[] checksum : checksums )
+            {
+                if ( !checksum[1].equalsIgnoreCase( Utils.getDigest( checksum[0], repositoryArtifactFile ) ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Long call()
+            throws Exception
+        {
+            try
+            {
+                File resolvedArtifactFile;
+                try
+                {
+                    resolvedArtifactFile =
+                        artifactResolver.resolveArtifactFile( groupId, artifactId, version, extension, classifier );
+                }
+                catch ( final Exception e )
+                {
+                    throw new RuntimeException( "Cannot resolve artifact. Reason: " + e.getMessage(), e );
+                }
+                if ( incremental && isUpToDate( resolvedArtifactFile ) )
+                {
+                    skipped = true;
+                }
+                else
+                {
+                    copy( resolvedArtifactFile );
+                }
+            }
+            catch ( final RuntimeException e )
+            {
+                if ( listener != null )
+                {
+                    synchronized ( listener )
+                    {
+                        listener.artifactFailed( groupId, artifactId, version, extension, classifier, e );
+                    }
+                }
+                throw e;
+            }
+            if ( listener != null )
+            {
+                synchronized ( listener )
+                {
+                    if ( skipped )
+                    {
+                        listener.artifactSkipped( groupId, artifactId, version, extension, classifier,
+                                                  repositoryArtifactFile );
+                    }
+                    else
+                    {
+                        listener.artifactResolved( groupId, artifactId, version, extension, classifier,
+                                                   repositoryArtifactFile );
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        private void copy( final File resolvedArtifactFile )
+        {
+            repositoryArtifactFile.getParentFile().mkdirs();
+            try
+            {
+                final BlobStore blobStore = BlobStore.getInstance();
+                if ( copyStrategy == CopyStrategy.LINK && blobStore != null )
+                {
+                    usedStrategy = blobStore.add( resolvedArtifactFile, repositoryArtifactFile, copyStrategy );
+                }
+                else
+                {
+                    usedStrategy = FileTransfer.transfer( resolvedArtifactFile, repositoryArtifactFile, copyStrategy );
+                }
+                bytes = resolvedArtifactFile.length();
+            }
+            catch ( final IOException e )
+            {
+                throw new RuntimeException( String.format(
+                    "Cannot write artifact repository as artifact %s could not be copied. Reason: %s",
+                    resolvedArtifactFile.getPath(), e.getMessage() ), e );
+            }
+        }
+
+    }
+
 }
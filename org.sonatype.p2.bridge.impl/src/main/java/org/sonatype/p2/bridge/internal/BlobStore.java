@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.osgi.framework.internal.core.FrameworkProperties;
+import org.sonatype.p2.bridge.CopyStrategy;
+import org.sonatype.p2.bridge.GcResult;
+
+/**
+ * Content addressed store of artifact files shared by all repositories of the process. Each distinct content is stored
+ * once, as a blob named after its SHA-256, and repository files are hard links to the blob. Next to each blob, a
+ * references file lists the repository files linked to it.
+ * <p>
+ * A reference is alive as long as the repository file exists and still has the size and last modified time of the
+ * blob, which hard links share. Blobs without live references are reclaimed by {@link #gc(boolean, int)}.
+ * <p>
+ * Blobs are never modified once stored, so repository files linked to them must never be written in place.
+ *
+ * @since 1.1.10
+ */
+class BlobStore
+{
+
+    /**
+     * Key of property containing the directory of the store. The store is not used if not set.
+     */
+    static final String DIRECTORY_PROPERTY = "p2.bridge.blobStore.directory";
+
+    private static final String REFERENCES_SUFFIX = ".refs";
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final BlobStore INSTANCE;
+
+    static
+    {
+        final String directory = FrameworkProperties.getProperty( DIRECTORY_PROPERTY );
+        INSTANCE = directory == null || directory.trim().length() == 0 ? null : new BlobStore( new File( directory ) );
+    }
+
+    private final File directory;
+
+    /**
+     * Guard the blobs and references files, by hash. Striped, as there is no need for one lock per blob.
+     */
+    private final Object[] locks = new Object[64];
+
+    BlobStore( final File directory )
+    {
+        this.directory = directory.getAbsoluteFile();
+        for ( int i = 0; i < locks.length; i++ )
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the configured store or null if there is none
+     */
+    static BlobStore getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Replaces target with the content of source, via the store: source is copied into the store unless a blob with the
+     * same content is there already, then target is linked to the blob.
+     *
+     * @param strategy how source is copied into the store. Source is never linked into the store, as it could be
+     *            modified in place afterwards
+     * @return {@link CopyStrategy#LINK} if target was linked to the blob, otherwise the strategy used to copy the blob
+     *         to target (e.g. store and target are on different file systems)
+     */
+    CopyStrategy add( final File source, final File target, final CopyStrategy strategy )
+        throws IOException
+    {
+        final String hash = Utils.getDigest( ALGORITHM, source );
+        if ( hash == null )
+        {
+            throw new IOException( String.format( "Cannot compute %s of [%s]", ALGORITHM, source ) );
+        }
+        final File blob = getBlob( hash );
+        synchronized ( lock( hash ) )
+        {
+            if ( !blob.isFile() )
+            {
+                blob.getParentFile().mkdirs();
+                final File temp = Utils.createTempFile( "." + hash + "-", ".tmp", blob.getParentFile() );
+                try
+                {
+                    FileTransfer.transfer( source, temp, strategy == CopyStrategy.LINK ? CopyStrategy.TRANSFER
+                                    : strategy );
+                    if ( !temp.renameTo( blob ) )
+                    {
+                        throw new IOException( String.format( "Cannot rename [%s] to [%s]", temp, blob ) );
+                    }
+                }
+                finally
+                {
+                    temp.delete();
+                }
+            }
+            final CopyStrategy used = FileTransfer.transfer( blob, target, CopyStrategy.LINK );
+            if ( used == CopyStrategy.LINK )
+            {
+                final Set<String> references = readReferences( hash );
+                if ( references.add( target.getAbsolutePath() ) )
+                {
+                    writeReferences( hash, references );
+                }
+            }
+            return used;
+        }
+    }
+
+    /**
+     * Deletes the blobs no repository file is linked to anymore, and forgets the references that are not alive.
+     *
+     * @param dryRun if true, unreferenced blobs are only reported, nothing is deleted
+     */
+    GcResult gc( final boolean dryRun, final int threads )
+    {
+        final List<File> blobs = new ArrayList<File>();
+        final File[] folders = directory.listFiles();
+        if ( folders != null )
+        {
+            for ( final File folder : folders )
+            {
+                final File[] files = folder.listFiles();
+                if ( files == null )
+                {
+                    continue;
+                }
+                for ( final File file : files )
+                {
+                    if ( !file.getName().startsWith( "." ) && !file.getName().endsWith( REFERENCES_SUFFIX ) )
+                    {
+                        blobs.add( file );
+                    }
+                }
+            }
+        }
+
+        final List<GcResult> results =
+            ParallelTasks.invokeChunks( blobs, threads, new ParallelTasks.ChunkTask<File, GcResult>()
+            {
+                public GcResult call( final List<File> chunk )
+                    throws IOException
+                {
+                    final List<File> reclaimed = new ArrayList<File>();
+                    long bytes = 0;
+                    int failed = 0;
+                    for ( final File blob : chunk )
+                    {
+                        final long length = blob.length();
+                        final Boolean deleted = collect( blob, dryRun );
+                        if ( deleted == null )
+                        {
+                            continue;
+                        }
+                        if ( deleted )
+                        {
+                            reclaimed.add( blob );
+                            bytes += length;
+                        }
+                        else
+                        {
+                            failed++;
+                        }
+                    }
+                    return new GcResult( reclaimed, bytes, failed, dryRun );
+                }
+            } );
+        final List<File> files = new ArrayList<File>();
+        long bytes = 0;
+        int failed = 0;
+        for ( final GcResult result : results )
+        {
+            files.addAll( result.getFiles() );
+            bytes += result.getBytesReclaimed();
+            failed += result.getFailed();
+        }
+        return new GcResult( files, bytes, failed, dryRun );
+    }
+
+    /**
+     * @return null if blob is still referenced, otherwise whether it was (or, on a dry run, could be) deleted
+     */
+    private Boolean collect( final File blob, final boolean dryRun )
+        throws IOException
+    {
+        final String hash = blob.getName();
+        synchronized ( lock( hash ) )
+        {
+            final Set<String> references = readReferences( hash );
+            final Set<String> alive = new LinkedHashSet<String>();
+            for ( final String reference : references )
+            {
+                final File file = new File( reference );
+                if ( file.isFile() && file.length() == blob.length() && file.lastModified() == blob.lastModified() )
+                {
+                    alive.add( reference );
+                }
+            }
+            if ( dryRun )
+            {
+                return alive.isEmpty() ? Boolean.TRUE : null;
+            }
+            if ( !alive.isEmpty() )
+            {
+                if ( alive.size() < references.size() )
+                {
+                    writeReferences( hash, alive );
+                }
+                return null;
+            }
+            if ( !blob.delete() )
+            {
+                return Boolean.FALSE;
+            }
+            getReferencesFile( hash ).delete();
+            return Boolean.TRUE;
+        }
+    }
+
+    private File getBlob( final String hash )
+    {
+        return new File( new File( directory, hash.substring( 0, 2 ) ), hash );
+    }
+
+    private File getReferencesFile( final String hash )
+    {
+        return new File( getBlob( hash ).getPath() + REFERENCES_SUFFIX );
+    }
+
+    private Object lock( final String hash )
+    {
+        return locks[( hash.hashCode() & 0x7fffffff ) % locks.length];
+    }
+
+    private Set<String> readReferences( final String hash )
+        throws IOException
+    {
+        final Set<String> references = new LinkedHashSet<String>();
+        final File file = getReferencesFile( hash );
+        if ( !file.isFile() )
+        {
+            return references;
+        }
+        final BufferedReader reader =
+            new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                if ( line.length() > 0 )
+                {
+                    references.add( line );
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return references;
+    }
+
+    private void writeReferences( final String hash, final Set<String> references )
+        throws IOException
+    {
+        final File file = getReferencesFile( hash );
+        final File temp = Utils.createTempFile( "." + file.getName() + "-", ".tmp", file.getParentFile() );
+        try
+        {
+            final Writer writer = new OutputStreamWriter( new FileOutputStream( temp ), "UTF-8" );
+            try
+            {
+                for ( final String reference : references )
+                {
+                    writer.write( reference );
+                    writer.write( '\n' );
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+            if ( !temp.renameTo( file ) && !( file.delete() && temp.renameTo( file ) ) )
+            {
+                throw new IOException( String.format( "Cannot rename [%s] to [%s]", temp, file ) );
+            }
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+}
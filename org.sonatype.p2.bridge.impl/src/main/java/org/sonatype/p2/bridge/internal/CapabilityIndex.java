@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.eclipse.equinox.internal.p2.metadata.RequiredCapability;
+import org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IProvidedCapability;
+import org.eclipse.equinox.p2.metadata.IRequirement;
+import org.eclipse.equinox.p2.metadata.Version;
+import org.eclipse.equinox.p2.metadata.VersionRange;
+import org.eclipse.equinox.p2.metadata.expression.IMatchExpression;
+import org.eclipse.equinox.p2.query.QueryUtil;
+import org.eclipse.equinox.p2.repository.IRepository;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepository;
+
+/**
+ * Installable units of a set of metadata repositories by the capabilities they provide: namespace, then name, then
+ * provided version (sorted). Built with one pass over the repositories, so any number of provider lookups can be
+ * answered without querying them again. Not modified once built, so it can be shared between threads.
+ * <p>
+ * Indexes of local simple repositories are kept in a process wide cache keyed by repository location, last modified
+ * and size of the content files and p2.timestamp, so the index is reused for as long as the repositories do not change.
+ * The cache does not reference repository instances, so it does not keep repositories evicted from the repository cache
+ * in memory. It is bounded by the total number of units indexed, evicted in least recently used order.
+ *
+ * @since 1.1.10
+ */
+class CapabilityIndex
+{
+
+    /**
+     * Key of property containing the maximum number of units (summed over all indexes) kept in the cache. 0 disables
+     * caching.
+     */
+    static final String MAX_UNITS_PROPERTY = "p2.bridge.capabilityIndex.maxUnits";
+
+    private static final int DEFAULT_MAX_UNITS = 250000;
+
+    private static final String[] CONTENT_FILES = { "content.jar", "content.xml" };
+
+    private static final Cache CACHE = new Cache( Utils.getIntProperty( MAX_UNITS_PROPERTY, DEFAULT_MAX_UNITS ) );
+
+    private final Map<String, Map<String, SortedMap<Version, List<IInstallableUnit>>>> capabilities =
+        new HashMap<String, Map<String, SortedMap<Version, List<IInstallableUnit>>>>();
+
+    private final Collection<IInstallableUnit> units = new LinkedHashSet<IInstallableUnit>();
+
+    /**
+     * Returns the index of specified repositories, out of cache if it was already built for the same unchanged
+     * repositories.
+     */
+    static CapabilityIndex get( final Collection<IMetadataRepository> repositories )
+    {
+        return CACHE.get( repositories );
+    }
+
+    static CapabilityIndex build( final Collection<IMetadataRepository> repositories )
+    {
+        final CapabilityIndex index = new CapabilityIndex();
+        for ( final IMetadataRepository repository : repositories )
+        {
+            final Iterator<IInstallableUnit> it = repository.query( QueryUtil.ALL_UNITS, null ).iterator();
+            while ( it.hasNext() )
+            {
+                index.add( it.next() );
+            }
+        }
+        return index;
+    }
+
+    void add( final IInstallableUnit iu )
+    {
+        if ( !units.add( iu ) )
+        {
+            // same unit in more repositories
+            return;
+        }
+        for ( final IProvidedCapability capability : iu.getProvidedCapabilities() )
+        {
+            Map<String, SortedMap<Version, List<IInstallableUnit>>> names =
+                capabilities.get( capability.getNamespace() );
+            if ( names == null )
+            {
+                names = new HashMap<String, SortedMap<Version, List<IInstallableUnit>>>();
+                capabilities.put( capability.getNamespace(), names );
+            }
+            SortedMap<Version, List<IInstallableUnit>> versions = names.get( capability.getName() );
+            if ( versions == null )
+            {
+                versions = new TreeMap<Version, List<IInstallableUnit>>();
+                names.put( capability.getName(), versions );
+            }
+            List<IInstallableUnit> providers = versions.get( capability.getVersion() );
+            if ( providers == null )
+            {
+                providers = new ArrayList<IInstallableUnit>( 1 );
+                versions.put( capability.getVersion(), providers );
+            }
+            providers.add( iu );
+        }
+    }
+
+    /**
+     * @return all indexed units, each once
+     */
+    Collection<IInstallableUnit> getUnits()
+    {
+        return units;
+    }
+
+    /**
+     * Returns the units providing specified capability, ordered by provided version. A unit providing the capability
+     * in more versions of the range is returned once.
+     *
+     * @param range range of provided version (null for any version)
+     */
+    Collection<IInstallableUnit> getProviders( final String namespace, final String name, final VersionRange range )
+    {
+        final Collection<IInstallableUnit> providers = new LinkedHashSet<IInstallableUnit>();
+        final Map<String, SortedMap<Version, List<IInstallableUnit>>> names = capabilities.get( namespace );
+        if ( names == null )
+        {
+            return providers;
+        }
+        final SortedMap<Version, List<IInstallableUnit>> versions = names.get( name );
+        if ( versions == null )
+        {
+            return providers;
+        }
+        if ( range == null )
+        {
+            for ( final List<IInstallableUnit> ius : versions.values() )
+            {
+                providers.addAll( ius );
+            }
+            return providers;
+        }
+        final SortedMap<Version, List<IInstallableUnit>> candidates = versions.tailMap( range.getMinimum() );
+        for ( final Map.Entry<Version, List<IInstallableUnit>> entry : candidates.entrySet() )
+        {
+            if ( range.isIncluded( entry.getKey() ) )
+            {
+                providers.addAll( entry.getValue() );
+            }
+            else if ( entry.getKey().compareTo( range.getMaximum() ) > 0 )
+            {
+                break;
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * Returns the units satisfying specified requirement. Requirements on a namespace, name and range are looked up in
+     * the index, all others are matched against every unit.
+     */
+    Collection<IInstallableUnit> getProviders( final IRequirement requirement )
+    {
+        final IMatchExpression<IInstallableUnit> match = requirement.getMatches();
+        if ( RequiredCapability.isSimpleRequirement( match ) )
+        {
+            return getProviders( RequiredCapability.extractNamespace( match ), RequiredCapability.extractName( match ),
+                                 RequiredCapability.extractRange( match ) );
+        }
+        final Collection<IInstallableUnit> providers = new ArrayList<IInstallableUnit>();
+        for ( final IInstallableUnit iu : units )
+        {
+            if ( requirement.isMatch( iu ) )
+            {
+                providers.add( iu );
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * Indexes by the repositories they were built from, bounded by number of units.
+     */
+    static class Cache
+    {
+
+        private final long maxUnits;
+
+        private final LinkedHashMap<Key, CapabilityIndex> entries =
+            new LinkedHashMap<Key, CapabilityIndex>( 16, 0.75f, true );
+
+        private long totalUnits;
+
+        Cache( final long maxUnits )
+        {
+            this.maxUnits = Math.max( 0, maxUnits );
+        }
+
+        CapabilityIndex get( final Collection<IMetadataRepository> repositories )
+        {
+            final Key key = maxUnits == 0 ? null : Key.of( repositories, System.currentTimeMillis() );
+            if ( key == null )
+            {
+                return build( repositories );
+            }
+            synchronized ( this )
+            {
+                final CapabilityIndex cached = entries.get( key );
+                if ( cached != null )
+                {
+                    return cached;
+                }
+            }
+            // built outside of the lock; two threads may build the same index at once and the last one wins
+            final CapabilityIndex index = build( repositories );
+            put( key, index );
+            return index;
+        }
+
+        /**
+         * @return total number of units of the cached indexes
+         */
+        synchronized long getTotalUnits()
+        {
+            return totalUnits;
+        }
+
+        synchronized int size()
+        {
+            return entries.size();
+        }
+
+        private synchronized void put( final Key key, final CapabilityIndex index )
+        {
+            remove( key );
+            final int units = index.getUnits().size();
+            if ( units > maxUnits )
+            {
+                return;
+            }
+            entries.put( key, index );
+            totalUnits += units;
+            final Iterator<Map.Entry<Key, CapabilityIndex>> it = entries.entrySet().iterator();
+            while ( totalUnits > maxUnits && it.hasNext() )
+            {
+                totalUnits -= it.next().getValue().getUnits().size();
+                it.remove();
+            }
+        }
+
+        private void remove( final Key key )
+        {
+            final CapabilityIndex removed = entries.remove( key );
+            if ( removed != null )
+            {
+                totalUnits -= removed.getUnits().size();
+            }
+        }
+
+    }
+
+    /**
+     * Identifies the content of a set of local simple repositories: location, last modified and size of the content
+     * files and p2.timestamp of each. The timestamp tells apart a repository instance loaded before its content files
+     * last changed.
+     */
+    static class Key
+    {
+
+        private final URI[] locations;
+
+        private final long[][] fingerprints;
+
+        private final String[] timestamps;
+
+        private final int hashCode;
+
+        private Key( final URI[] locations, final long[][] fingerprints, final String[] timestamps )
+        {
+            this.locations = locations;
+            this.fingerprints = fingerprints;
+            this.timestamps = timestamps;
+            hashCode =
+                31 * ( 31 * Arrays.hashCode( locations ) + Arrays.deepHashCode( fingerprints ) )
+                    + Arrays.hashCode( timestamps );
+        }
+
+        /**
+         * @param time time the repositories are indexed at
+         * @return key of specified repositories, null if any of them is not a local simple repository or has content
+         *         files modified too shortly before time to be told apart from a later change
+         */
+        static Key of( final Collection<IMetadataRepository> repositories, final long time )
+        {
+            final URI[] locations = new URI[repositories.size()];
+            final long[][] fingerprints = new long[locations.length][];
+            final String[] timestamps = new String[locations.length];
+            int i = 0;
+            for ( final IMetadataRepository repository : repositories )
+            {
+                final File directory = RepositoryCache.getDirectory( repository.getLocation() );
+                if ( !( repository instanceof LocalMetadataRepository ) || directory == null )
+                {
+                    return null;
+                }
+                locations[i] = repository.getLocation();
+                fingerprints[i] = RepositoryCache.fingerprint( directory, CONTENT_FILES );
+                if ( RepositoryCache.isRacy( fingerprints[i], time ) )
+                {
+                    return null;
+                }
+                timestamps[i] = repository.getProperty( IRepository.PROP_TIMESTAMP );
+                i++;
+            }
+            return new Key( locations, fingerprints, timestamps );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals( final Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( !( obj instanceof Key ) )
+            {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return Arrays.equals( locations, other.locations ) && Arrays.deepEquals( fingerprints, other.fingerprints )
+                && Arrays.equals( timestamps, other.timestamps );
+        }
+
+    }
+
+}
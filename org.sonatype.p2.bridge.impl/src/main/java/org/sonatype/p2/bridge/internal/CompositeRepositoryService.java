@@ -7,7 +7,6 @@
  */
 package org.sonatype.p2.bridge.internal;
 
-import java.io.File;
 import java.net.URI;
 
 import org.eclipse.equinox.internal.p2.artifact.repository.CompositeArtifactRepository;
@@ -31,11 +30,10 @@ public class CompositeRepositoryService
     public void addArtifactsRepository( final URI location, final URI... childLocations )
     {
         IArtifactRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
-            manager = getArtifactRepositoryManager( agentDir.toURI() );
+            manager = getArtifactRepositoryManager();
             final ICompositeRepository<IArtifactKey> compositeRepository = loadArtifactsCompositeRepository(
                 manager, location
             );
@@ -52,9 +50,8 @@ public class CompositeRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
@@ -62,11 +59,10 @@ public class CompositeRepositoryService
     public void removeArtifactsRepository( final URI location, final URI... childLocations )
     {
         IArtifactRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
-            manager = getArtifactRepositoryManager( agentDir.toURI() );
+            manager = getArtifactRepositoryManager();
             final ICompositeRepository<IArtifactKey> compositeRepository = loadArtifactsCompositeRepository(
                 manager, location
             );
@@ -83,9 +79,8 @@ public class CompositeRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
@@ -93,11 +88,10 @@ public class CompositeRepositoryService
     public void addMetadataRepository( final URI location, final URI... childLocations )
     {
         IMetadataRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
-            manager = getMetadataRepositoryManager( agentDir.toURI() );
+            manager = getMetadataRepositoryManager();
             final ICompositeRepository<IInstallableUnit> compositeRepository = loadMetadataCompositeRepository(
                 manager, location
             );
@@ -114,9 +108,8 @@ public class CompositeRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
@@ -124,11 +117,10 @@ public class CompositeRepositoryService
     public void removeMetadataRepository( final URI location, final URI... childLocations )
     {
         IMetadataRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
-            manager = getMetadataRepositoryManager( agentDir.toURI() );
+            manager = getMetadataRepositoryManager();
             final ICompositeRepository<IInstallableUnit> compositeRepository = loadMetadataCompositeRepository(
                 manager, location
             );
@@ -145,9 +137,8 @@ public class CompositeRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
@@ -191,18 +182,19 @@ public class CompositeRepositoryService
         }
     }
 
-    private IArtifactRepositoryManager getArtifactRepositoryManager( final URI location )
+    private IArtifactRepositoryManager getArtifactRepositoryManager()
         throws ProvisionException
     {
         if ( getProvider() == null )
         {
             throw new RuntimeException( "Cannot load composite repository as there is no provisioning agent provider" );
         }
-        final IProvisioningAgent agent = createProvisioningAgent( location );
+        final IProvisioningAgent agent = acquireProvisioningAgent();
         final IArtifactRepositoryManager manager =
             (IArtifactRepositoryManager) agent.getService( IArtifactRepositoryManager.SERVICE_NAME );
         if ( manager == null )
         {
+            releaseProvisioningAgent( agent );
             throw new RuntimeException(
                 "Cannot load composite repository as artifact repository manager coud not be created" );
         }
@@ -248,18 +240,19 @@ public class CompositeRepositoryService
         }
     }
 
-    private IMetadataRepositoryManager getMetadataRepositoryManager( final URI location )
+    private IMetadataRepositoryManager getMetadataRepositoryManager()
         throws ProvisionException
     {
         if ( getProvider() == null )
         {
             throw new RuntimeException( "Cannot load composite repository as there is no provisioning agent provider" );
         }
-        final IProvisioningAgent agent = createProvisioningAgent( location );
+        final IProvisioningAgent agent = acquireProvisioningAgent();
         final IMetadataRepositoryManager manager =
             (IMetadataRepositoryManager) agent.getService( IMetadataRepositoryManager.SERVICE_NAME );
         if ( manager == null )
         {
+            releaseProvisioningAgent( agent );
             throw new RuntimeException(
                 "Cannot load composite repository as metadata repository manager coud not be created" );
         }
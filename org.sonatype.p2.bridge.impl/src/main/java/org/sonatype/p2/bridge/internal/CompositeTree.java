@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.URIUtil;
+import org.eclipse.equinox.internal.p2.artifact.repository.CompositeArtifactRepository;
+import org.eclipse.equinox.internal.p2.metadata.repository.CompositeMetadataRepository;
+import org.eclipse.equinox.internal.p2.metadata.repository.CompositeMetadataRepositoryFactory;
+import org.eclipse.equinox.internal.p2.persistence.CompositeRepositoryIO;
+import org.eclipse.equinox.internal.p2.repository.Transport;
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+
+/**
+ * Locations of all repositories of a composite tree, found by reading the composite files only (via the p2 transport of
+ * an agent), level by level, without loading any repository. Lets composite children be loaded concurrently and remote
+ * repositories be validated before they are loaded.
+ *
+ * @since 1.1.10
+ */
+class CompositeTree
+{
+
+    private final URI location;
+
+    private final Set<URI> locations;
+
+    private final List<URI> leaves;
+
+    private final boolean complete;
+
+    private CompositeTree( final URI location, final Set<URI> locations, final List<URI> leaves,
+                           final boolean complete )
+    {
+        this.location = location;
+        this.locations = locations;
+        this.leaves = leaves;
+        this.complete = complete;
+    }
+
+    static CompositeTree discoverArtifacts( final IProvisioningAgent agent, final URI location,
+                                            final IProgressMonitor monitor, final int threads )
+    {
+        return discover( agent, location, CompositeArtifactRepository.CONTENT_FILENAME,
+                         CompositeArtifactRepository.PI_REPOSITORY_TYPE, monitor, threads );
+    }
+
+    static CompositeTree discoverMetadata( final IProvisioningAgent agent, final URI location,
+                                           final IProgressMonitor monitor, final int threads )
+    {
+        return discover( agent, location, CompositeMetadataRepositoryFactory.CONTENT_FILENAME,
+                         CompositeMetadataRepository.PI_REPOSITORY_TYPE, monitor, threads );
+    }
+
+    /**
+     * @return location the tree was discovered from
+     */
+    URI getLocation()
+    {
+        return location;
+    }
+
+    /**
+     * @return locations of all repositories of the tree (including the composites and the root), in breadth first order
+     */
+    Set<URI> getLocations()
+    {
+        return locations;
+    }
+
+    /**
+     * @return locations of non composite repositories of the tree, the root excluded
+     */
+    List<URI> getLeaves()
+    {
+        return leaves;
+    }
+
+    /**
+     * @return false if the children of some composites could not be read (or there is no transport), in which case the
+     *         tree lacks these children
+     */
+    boolean isComplete()
+    {
+        return complete;
+    }
+
+    private static CompositeTree discover( final IProvisioningAgent agent, final URI location,
+                                           final String contentFilename, final String type,
+                                           final IProgressMonitor monitor, final int threads )
+    {
+        final Set<URI> locations = new LinkedHashSet<URI>();
+        locations.add( location );
+        final List<URI> leaves = new ArrayList<URI>();
+        final Transport transport = (Transport) agent.getService( Transport.SERVICE_NAME );
+        if ( transport == null )
+        {
+            return new CompositeTree( location, locations, leaves, false );
+        }
+
+        boolean complete = true;
+        List<URI> level = Collections.singletonList( location );
+        while ( !level.isEmpty() )
+        {
+            final List<Callable<URI[]>> tasks = new ArrayList<Callable<URI[]>>();
+            for ( final URI uri : level )
+            {
+                tasks.add( new Callable<URI[]>()
+                {
+                    public URI[] call()
+                        throws IOException
+                    {
+                        return readChildren( transport, uri, contentFilename, type, monitor );
+                    }
+                } );
+            }
+            final List<Future<URI[]>> futures = ParallelTasks.invokeAll( tasks, threads );
+            final List<URI> next = new ArrayList<URI>();
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                if ( ParallelTasks.getFailure( futures.get( i ) ) != null )
+                {
+                    complete = false;
+                    continue;
+                }
+                final URI[] children = ParallelTasks.get( futures.get( i ) );
+                if ( children == null )
+                {
+                    if ( !location.equals( level.get( i ) ) )
+                    {
+                        leaves.add( level.get( i ) );
+                    }
+                    continue;
+                }
+                for ( final URI child : children )
+                {
+                    if ( locations.add( child ) )
+                    {
+                        next.add( child );
+                    }
+                }
+            }
+            level = next;
+        }
+        return new CompositeTree( location, locations, leaves, complete );
+    }
+
+    /**
+     * @return absolute locations of the children of the composite at location, null if there is no composite there
+     * @throws IOException if there is a composite that could not be read
+     */
+    private static URI[] readChildren( final Transport transport, final URI location, final String contentFilename,
+                                       final String type, final IProgressMonitor monitor )
+        throws IOException
+    {
+        for ( final String extension : new String[] { ".jar", ".xml" } )
+        {
+            InputStream is = null;
+            try
+            {
+                is = transport.stream( URIUtil.append( location, contentFilename + extension ), monitor );
+                if ( ".jar".equals( extension ) )
+                {
+                    final JarInputStream jar = new JarInputStream( is );
+                    is = jar;
+                    JarEntry entry;
+                    while ( ( entry = jar.getNextJarEntry() ) != null
+                        && !( contentFilename + ".xml" ).equals( entry.getName() ) )
+                    {
+                        // skip to the composite file
+                    }
+                    if ( entry == null )
+                    {
+                        throw new IOException( String.format( "No %s.xml in [%s]", contentFilename, location ) );
+                    }
+                }
+                final URI[] children =
+                    new CompositeRepositoryIO().read( location.toURL(), is, type, monitor ).getChildren();
+                for ( int i = 0; i < children.length; i++ )
+                {
+                    // same as p2 does, so children are known under the location p2 looks them up with
+                    children[i] = URIUtil.makeAbsolute( children[i], location );
+                }
+                return children;
+            }
+            catch ( final FileNotFoundException e )
+            {
+                // try next extension
+            }
+            catch ( final IOException e )
+            {
+                throw e;
+            }
+            catch ( final Exception e )
+            {
+                final IOException ioe =
+                    new IOException( String.format( "Cannot read composite [%s] due to [%s]", location,
+                                                    e.getMessage() ) );
+                ioe.initCause( e );
+                throw ioe;
+            }
+            finally
+            {
+                if ( is != null )
+                {
+                    try
+                    {
+                        is.close();
+                    }
+                    catch ( final IOException ignore )
+                    {
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+}
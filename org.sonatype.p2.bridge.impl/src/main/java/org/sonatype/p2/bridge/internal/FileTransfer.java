@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+import org.eclipse.equinox.internal.p2.core.helpers.FileUtils;
+import org.sonatype.p2.bridge.CopyStrategy;
+
+/**
+ * Brings a file to another location using the cheapest of hard link, channel transfer and stream copy allowed by a
+ * {@link CopyStrategy}.
+ *
+ * @since 1.1.10
+ */
+class FileTransfer
+{
+
+    /**
+     * java.nio.file is not available on the execution environment we compile against (J2SE-1.5), so hard links are
+     * created reflectively when running on Java 7 or newer.
+     */
+    private static final Method TO_PATH;
+
+    private static final Method CREATE_LINK;
+
+    static
+    {
+        Method toPath = null;
+        Method createLink = null;
+        try
+        {
+            final Class<?> pathClass = Class.forName( "java.nio.file.Path" );
+            toPath = File.class.getMethod( "toPath" );
+            createLink = Class.forName( "java.nio.file.Files" ).getMethod( "createLink", pathClass, pathClass );
+        }
+        catch ( final Exception e )
+        {
+            toPath = null;
+            createLink = null;
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+    }
+
+    private static final FileTransfer INSTANCE = new FileTransfer();
+
+    FileTransfer()
+    {
+    }
+
+    /**
+     * Replaces target with the content of source.
+     *
+     * @return the strategy that was actually used
+     */
+    static CopyStrategy transfer( final File source, final File target, final CopyStrategy strategy )
+        throws IOException
+    {
+        return INSTANCE.copy( source, target, strategy );
+    }
+
+    /**
+     * Tries link, channel transfer and stream copy in this order, starting with the given strategy.
+     */
+    CopyStrategy copy( final File source, final File target, final CopyStrategy strategy )
+        throws IOException
+    {
+        final CopyStrategy effective = strategy == null ? CopyStrategy.STREAM : strategy;
+        if ( effective == CopyStrategy.LINK && link( source, target ) )
+        {
+            return CopyStrategy.LINK;
+        }
+        // target may be a hard link (e.g. into the blob store), never write through it
+        if ( target.exists() && !target.delete() )
+        {
+            throw new IOException( String.format( "Cannot delete [%s]", target ) );
+        }
+        if ( effective != CopyStrategy.STREAM && channelCopy( source, target ) )
+        {
+            return CopyStrategy.TRANSFER;
+        }
+        streamCopy( source, target );
+        return CopyStrategy.STREAM;
+    }
+
+    /**
+     * @return false if source could not be linked, e.g. different file systems
+     */
+    boolean link( final File source, final File target )
+    {
+        if ( CREATE_LINK == null )
+        {
+            return false;
+        }
+        if ( target.exists() && !target.delete() )
+        {
+            return false;
+        }
+        try
+        {
+            CREATE_LINK.invoke( null, TO_PATH.invoke( target ), TO_PATH.invoke( source ) );
+            return true;
+        }
+        catch ( final Exception e )
+        {
+            // different file systems, links not supported, ...
+            return false;
+        }
+    }
+
+    /**
+     * @return false if the channel does not support transfers, in which case target must be written again
+     */
+    boolean channelCopy( final File source, final File target )
+        throws IOException
+    {
+        FileInputStream is = null;
+        FileOutputStream os = null;
+        try
+        {
+            is = new FileInputStream( source );
+            os = new FileOutputStream( target );
+            final FileChannel in = is.getChannel();
+            final FileChannel out = os.getChannel();
+            final long size = in.size();
+            long position = 0;
+            while ( position < size )
+            {
+                final long transferred = in.transferTo( position, size - position, out );
+                if ( transferred <= 0 )
+                {
+                    // channel does not support zero copy transfer (or file shrunk meanwhile)
+                    break;
+                }
+                position += transferred;
+            }
+            return position == size;
+        }
+        finally
+        {
+            close( is );
+            close( os );
+        }
+    }
+
+    void streamCopy( final File source, final File target )
+        throws IOException
+    {
+        final InputStream is = new BufferedInputStream( new FileInputStream( source ) );
+        OutputStream os = null;
+        try
+        {
+            os = new BufferedOutputStream( new FileOutputStream( target ) );
+        }
+        finally
+        {
+            if ( os == null )
+            {
+                close( is );
+            }
+        }
+        FileUtils.copyStream( is, true, os, true );
+    }
+
+    private static void close( final Closeable closeable )
+    {
+        if ( closeable != null )
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch ( final IOException ignore )
+            {
+            }
+        }
+    }
+
+}
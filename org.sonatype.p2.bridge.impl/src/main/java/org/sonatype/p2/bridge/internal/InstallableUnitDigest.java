@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.equinox.p2.metadata.IArtifactKey;
+import org.eclipse.equinox.p2.metadata.ICopyright;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IInstallableUnitFragment;
+import org.eclipse.equinox.p2.metadata.IInstallableUnitPatch;
+import org.eclipse.equinox.p2.metadata.ILicense;
+import org.eclipse.equinox.p2.metadata.IProvidedCapability;
+import org.eclipse.equinox.p2.metadata.IRequirement;
+import org.eclipse.equinox.p2.metadata.IRequirementChange;
+import org.eclipse.equinox.p2.metadata.ITouchpointData;
+import org.eclipse.equinox.p2.metadata.ITouchpointInstruction;
+import org.eclipse.equinox.p2.metadata.IUpdateDescriptor;
+import org.eclipse.equinox.p2.metadata.expression.IMatchExpression;
+
+/**
+ * Content hash of an installable unit. p2 considers units with same id and version equal, this hash covers
+ * everything written to the repository (properties, capabilities, requirements, touchpoint payload, artifacts, ...)
+ * so it tells if a unit with same identity really changed.
+ *
+ * @since 1.1.10
+ */
+class InstallableUnitDigest
+{
+
+    private final ParseCache parseCache = ParseCache.getInstance();
+
+    private final MessageDigest digest;
+
+    InstallableUnitDigest()
+    {
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( final NoSuchAlgorithmException e )
+        {
+            // will not happen
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * @return hex encoded content hash of specified unit
+     */
+    String digest( final IInstallableUnit iu )
+    {
+        digest.reset();
+        update( iu.getId() );
+        update( iu.getVersion().toString() );
+        update( String.valueOf( iu.isSingleton() ) );
+        updateFilter( iu.getFilter() );
+
+        // property order is not significant
+        update( iu.getProperties().size() );
+        for ( final Map.Entry<String, String> property : new TreeMap<String, String>( iu.getProperties() ).entrySet() )
+        {
+            update( property.getKey() );
+            update( property.getValue() );
+        }
+        update( iu.getProvidedCapabilities().size() );
+        for ( final IProvidedCapability capability : iu.getProvidedCapabilities() )
+        {
+            update( capability.getNamespace() );
+            update( capability.getName() );
+            update( capability.getVersion().toString() );
+        }
+        update( iu.getRequirements() );
+        update( iu.getMetaRequirements() );
+        if ( iu instanceof IInstallableUnitFragment )
+        {
+            update( ( (IInstallableUnitFragment) iu ).getHost() );
+        }
+        if ( iu instanceof IInstallableUnitPatch )
+        {
+            updatePatch( (IInstallableUnitPatch) iu );
+        }
+        updateUpdateDescriptor( iu.getUpdateDescriptor() );
+        update( iu.getTouchpointType().getId() );
+        update( iu.getTouchpointType().getVersion().toString() );
+        update( iu.getTouchpointData().size() );
+        for ( final ITouchpointData data : iu.getTouchpointData() )
+        {
+            final Map<String, ITouchpointInstruction> instructions =
+                new TreeMap<String, ITouchpointInstruction>( data.getInstructions() );
+            update( instructions.size() );
+            for ( final Map.Entry<String, ITouchpointInstruction> instruction : instructions.entrySet() )
+            {
+                update( instruction.getKey() );
+                update( instruction.getValue().getBody() );
+                update( instruction.getValue().getImportAttribute() );
+            }
+        }
+        update( iu.getArtifacts().size() );
+        for ( final IArtifactKey artifact : iu.getArtifacts() )
+        {
+            update( artifact.toExternalForm() );
+        }
+        update( iu.getLicenses().size() );
+        for ( final ILicense license : iu.getLicenses() )
+        {
+            update( license.getLocation() == null ? null : license.getLocation().toString() );
+            update( license.getBody() );
+        }
+        final ICopyright copyright = iu.getCopyright();
+        if ( copyright != null )
+        {
+            update( copyright.getLocation() == null ? null : copyright.getLocation().toString() );
+            update( copyright.getBody() );
+        }
+        return new String( Utils.encodeHex( digest.digest() ) );
+    }
+
+    private void updatePatch( final IInstallableUnitPatch iu )
+    {
+        final IRequirement[][] scope = iu.getApplicabilityScope();
+        if ( scope != null )
+        {
+            update( scope.length );
+            for ( final IRequirement[] requirements : scope )
+            {
+                update( requirements == null ? 0 : requirements.length );
+                if ( requirements != null )
+                {
+                    for ( final IRequirement requirement : requirements )
+                    {
+                        update( requirement );
+                    }
+                }
+            }
+        }
+        if ( iu.getRequirementsChange() != null )
+        {
+            update( iu.getRequirementsChange().size() );
+            for ( final IRequirementChange change : iu.getRequirementsChange() )
+            {
+                update( change.applyOn() );
+                update( change.newValue() );
+            }
+        }
+        update( iu.getLifeCycle() );
+    }
+
+    private void updateUpdateDescriptor( final IUpdateDescriptor descriptor )
+    {
+        if ( descriptor == null )
+        {
+            update( (String) null );
+            return;
+        }
+        update( descriptor.getIUsBeingUpdated().size() );
+        for ( final IMatchExpression<IInstallableUnit> match : descriptor.getIUsBeingUpdated() )
+        {
+            update( parseCache.getMatchText( match ) );
+            update( parseCache.getMatchParametersText( match ) );
+        }
+        update( String.valueOf( descriptor.getSeverity() ) );
+        update( descriptor.getDescription() );
+    }
+
+    private void update( final Collection<IRequirement> requirements )
+    {
+        update( requirements.size() );
+        for ( final IRequirement requirement : requirements )
+        {
+            update( requirement );
+        }
+    }
+
+    private void update( final IRequirement requirement )
+    {
+        if ( requirement == null )
+        {
+            update( (String) null );
+            return;
+        }
+        update( parseCache.getMatchText( requirement.getMatches() ) );
+        update( parseCache.getMatchParametersText( requirement.getMatches() ) );
+        updateFilter( requirement.getFilter() );
+        update( requirement.getMin() + ":" + requirement.getMax() + ":" + requirement.isGreedy() );
+    }
+
+    private void updateFilter( final IMatchExpression<IInstallableUnit> filter )
+    {
+        update( filter == null ? null : parseCache.getFilterText( filter ) );
+    }
+
+    private void update( final int count )
+    {
+        update( String.valueOf( count ) );
+    }
+
+    /**
+     * Length prefixed, so consecutive values cannot be confused with each other.
+     */
+    private void update( final String value )
+    {
+        if ( value == null )
+        {
+            digest.update( (byte) 0 );
+            return;
+        }
+        try
+        {
+            final byte[] bytes = value.getBytes( "UTF-8" );
+            digest.update( (byte) 1 );
+            digest.update( (byte) ( bytes.length >>> 24 ) );
+            digest.update( (byte) ( bytes.length >>> 16 ) );
+            digest.update( (byte) ( bytes.length >>> 8 ) );
+            digest.update( (byte) bytes.length );
+            digest.update( bytes );
+        }
+        catch ( final UnsupportedEncodingException e )
+        {
+            // will not happen
+            throw new RuntimeException( e );
+        }
+    }
+
+}
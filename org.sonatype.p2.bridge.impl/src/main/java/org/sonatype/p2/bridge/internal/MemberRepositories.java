@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.equinox.internal.p2.artifact.repository.simple.SimpleArtifactRepository;
+import org.eclipse.equinox.p2.core.ProvisionException;
+import org.eclipse.equinox.p2.repository.ICompositeRepository;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepository;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
+
+/**
+ * All SimpleArtifactRepositories referenced (recursively) from an artifact repository. A child referenced more than
+ * once is loaded only once and a child referencing one of its parents is ignored.
+ * <p>
+ * p2 loads the children of a composite one after the other, while loading the composite itself. To load them
+ * concurrently, the composite tree is first discovered by reading the composite files only, level by level, then all
+ * non composite children are loaded at once. The manager keeps what it loaded, so p2 finds the children loaded when
+ * the composite is loaded afterwards.
+ *
+ * @since 1.1.10
+ */
+class MemberRepositories
+{
+
+    /**
+     * Key of property containing the maximum number of composite children loaded concurrently. Defaults to
+     * {@link ParallelTasks#THREADS_PROPERTY}.
+     */
+    static final String THREADS_PROPERTY = "p2.bridge.compositeLoad.threads";
+
+    private final IArtifactRepository repository;
+
+    private final Collection<SimpleArtifactRepository> members;
+
+    private final Set<URI> locations;
+
+    private final Map<URI, Long> loadTimes;
+
+    private final Set<URI> duplicates;
+
+    private final Set<URI> cycles;
+
+    private MemberRepositories( final IArtifactRepository repository,
+                                final Collection<SimpleArtifactRepository> members, final Set<URI> locations,
+                                final Map<URI, Long> loadTimes, final Set<URI> duplicates, final Set<URI> cycles )
+    {
+        this.repository = repository;
+        this.members = members;
+        this.locations = locations;
+        this.loadTimes = loadTimes;
+        this.duplicates = duplicates;
+        this.cycles = cycles;
+    }
+
+    /**
+     * @return member repositories, in depth first order of the composite tree (same order as when loaded
+     *         sequentially)
+     */
+    Collection<SimpleArtifactRepository> getMembers()
+    {
+        return members;
+    }
+
+    /**
+     * @return locations of all repositories in the composite tree (including the composites), in breadth first order
+     */
+    Set<URI> getLocations()
+    {
+        return locations;
+    }
+
+    /**
+     * @return the repository the members were gathered from
+     */
+    IArtifactRepository getRepository()
+    {
+        return repository;
+    }
+
+    /**
+     * @return time (in milliseconds) spent loading each non composite child repository
+     */
+    Map<URI, Long> getLoadTimes()
+    {
+        return loadTimes;
+    }
+
+    /**
+     * @return children referenced more than once
+     */
+    Set<URI> getDuplicates()
+    {
+        return duplicates;
+    }
+
+    /**
+     * @return children referencing one of their parents (references were ignored)
+     */
+    Set<URI> getCycles()
+    {
+        return cycles;
+    }
+
+    /**
+     * Loads the specified repository and gathers all SimpleArtifactRepositories referenced from it (recursively). If
+     * the repository is a SimpleArtifactRepository, the result will only contain that repository.
+     *
+     * @param manager The artifact repository manager that will be used to load all repositories
+     * @param location The start artifact repository
+     * @param threads maximum number of children loaded concurrently (0 for default)
+     */
+    static MemberRepositories load( final IArtifactRepositoryManager manager, final URI location,
+                                    final IProgressMonitor monitor, final int threads )
+        throws ProvisionException
+    {
+        final int poolSize = threads > 0 ? threads : Utils.getIntProperty( THREADS_PROPERTY, 0 );
+        return load( manager, CompositeTree.discoverArtifacts( manager.getAgent(), location, monitor, poolSize ),
+                     monitor, poolSize );
+    }
+
+    /**
+     * Same as {@link #load(IArtifactRepositoryManager, URI, IProgressMonitor, int)}, for an already discovered tree.
+     */
+    static MemberRepositories load( final IArtifactRepositoryManager manager, final CompositeTree tree,
+                                    final IProgressMonitor monitor, final int threads )
+        throws ProvisionException
+    {
+        final int poolSize = threads > 0 ? threads : Utils.getIntProperty( THREADS_PROPERTY, 0 );
+        final Map<URI, Long> loadTimes = preload( manager, tree.getLeaves(), monitor, poolSize );
+        final IArtifactRepository repository = manager.loadRepository( tree.getLocation(), monitor );
+
+        final Node root = new Node( repository.getLocation() );
+        root.repository = repository;
+
+        final Map<URI, Node> nodes = new LinkedHashMap<URI, Node>();
+        nodes.put( root.location, root );
+        final Set<URI> duplicates = new LinkedHashSet<URI>();
+
+        List<Node> level = Collections.singletonList( root );
+        while ( !level.isEmpty() )
+        {
+            final List<Node> toLoad = new ArrayList<Node>();
+            for ( final Node node : level )
+            {
+                if ( node.repository instanceof SimpleArtifactRepository )
+                {
+                    continue;
+                }
+                if ( !( node.repository instanceof ICompositeRepository ) )
+                {
+                    throw new RuntimeException( "Unknown repository type "
+                        + node.repository.getClass().getCanonicalName() );
+                }
+                for ( final URI childURI : ( (ICompositeRepository<?>) node.repository ).getChildren() )
+                {
+                    Node child = nodes.get( childURI );
+                    if ( child == null )
+                    {
+                        child = new Node( childURI );
+                        nodes.put( childURI, child );
+                        toLoad.add( child );
+                    }
+                    else
+                    {
+                        duplicates.add( childURI );
+                    }
+                    node.children.add( child );
+                }
+            }
+
+            // already loaded by p2 while loading their parents, unless preloading failed and p2 skipped them
+            final List<Callable<IArtifactRepository>> tasks = new ArrayList<Callable<IArtifactRepository>>();
+            for ( final Node node : toLoad )
+            {
+                tasks.add( new Callable<IArtifactRepository>()
+                {
+                    public IArtifactRepository call()
+                        throws Exception
+                    {
+                        return manager.loadRepository( node.location, monitor );
+                    }
+                } );
+            }
+            final List<Future<IArtifactRepository>> futures = ParallelTasks.invokeAll( tasks, poolSize );
+            for ( int i = 0; i < futures.size(); i++ )
+            {
+                final Throwable failure = ParallelTasks.getFailure( futures.get( i ) );
+                if ( failure instanceof ProvisionException )
+                {
+                    throw (ProvisionException) failure;
+                }
+                final Node node = toLoad.get( i );
+                node.repository = ParallelTasks.get( futures.get( i ) );
+            }
+            level = toLoad;
+        }
+
+        final Collection<SimpleArtifactRepository> members = new LinkedHashSet<SimpleArtifactRepository>();
+        final Set<URI> cycles = new LinkedHashSet<URI>();
+        collect( root, new HashSet<Node>(), new HashSet<Node>(), members, cycles );
+        duplicates.removeAll( cycles );
+        return new MemberRepositories( repository, members, nodes.keySet(), loadTimes, duplicates, cycles );
+    }
+
+    /**
+     * Loads specified repositories concurrently. Failures are left for p2 to report when it loads their composite.
+     *
+     * @return time (in milliseconds) spent loading each loaded repository
+     */
+    private static Map<URI, Long> preload( final IArtifactRepositoryManager manager, final List<URI> leaves,
+                                           final IProgressMonitor monitor, final int poolSize )
+    {
+        final List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for ( final URI leaf : leaves )
+        {
+            tasks.add( new Callable<Long>()
+            {
+                public Long call()
+                    throws Exception
+                {
+                    final long start = System.currentTimeMillis();
+                    manager.loadRepository( leaf, monitor );
+                    return System.currentTimeMillis() - start;
+                }
+            } );
+        }
+        final Map<URI, Long> loadTimes = new LinkedHashMap<URI, Long>();
+        final List<Future<Long>> futures = ParallelTasks.invokeAll( tasks, poolSize );
+        for ( int i = 0; i < futures.size(); i++ )
+        {
+            if ( ParallelTasks.getFailure( futures.get( i ) ) == null )
+            {
+                loadTimes.put( leaves.get( i ), ParallelTasks.get( futures.get( i ) ) );
+            }
+        }
+        return loadTimes;
+    }
+
+    private static void collect( final Node node, final Set<Node> path, final Set<Node> visited,
+                                 final Collection<SimpleArtifactRepository> members, final Set<URI> cycles )
+    {
+        if ( node.repository instanceof SimpleArtifactRepository )
+        {
+            members.add( (SimpleArtifactRepository) node.repository );
+            return;
+        }
+        path.add( node );
+        visited.add( node );
+        for ( final Node child : node.children )
+        {
+            if ( path.contains( child ) )
+            {
+                cycles.add( child.location );
+            }
+            else if ( !visited.contains( child ) )
+            {
+                collect( child, path, visited, members, cycles );
+            }
+        }
+        path.remove( node );
+    }
+
+    private static class Node
+    {
+
+        private final URI location;
+
+        private final List<Node> children = new ArrayList<Node>();
+
+        private IArtifactRepository repository;
+
+        Node( final URI location )
+        {
+            this.location = location;
+        }
+
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.net.URI;
+import java.util.Iterator;
+
+import org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository;
+import org.eclipse.equinox.p2.core.ProvisionException;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.query.QueryUtil;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepository;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepositoryManager;
+
+/**
+ * Process wide cache of loaded local simple metadata repositories, so repeated queries against the same repository do
+ * not parse content.xml/content.jar again. Bounded by the total number of cached installable units.
+ * <p>
+ * Cached repositories are shared between callers and must only be queried, never modified.
+ *
+ * @since 1.1.10
+ */
+class MetadataRepositoryCache
+    extends RepositoryCache<IMetadataRepository, IMetadataRepositoryManager>
+{
+
+    /**
+     * Key of property containing the maximum number of installable units kept in the cache. 0 disables caching.
+     */
+    static final String MAX_UNITS_PROPERTY = "p2.bridge.metadataCache.maxUnits";
+
+    private static final int DEFAULT_MAX_UNITS = 250000;
+
+    private static final MetadataRepositoryCache INSTANCE =
+        new MetadataRepositoryCache( Utils.getIntProperty( MAX_UNITS_PROPERTY, DEFAULT_MAX_UNITS ) );
+
+    MetadataRepositoryCache( final int maxUnits )
+    {
+        super( maxUnits, "content.jar", "content.xml" );
+    }
+
+    static MetadataRepositoryCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    @Override
+    IMetadataRepository loadRepository( final IMetadataRepositoryManager manager, final URI location )
+        throws ProvisionException
+    {
+        return manager.loadRepository( location, null );
+    }
+
+    @Override
+    boolean isCacheable( final IMetadataRepository repository )
+    {
+        return repository instanceof LocalMetadataRepository;
+    }
+
+    @Override
+    int weigh( final IMetadataRepository repository )
+    {
+        int count = 0;
+        final Iterator<IInstallableUnit> it = repository.query( QueryUtil.ALL_UNITS, null ).iterator();
+        while ( it.hasNext() )
+        {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+}
@@ -10,19 +10,31 @@ package org.sonatype.p2.bridge.internal;
 import java.io.File;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.equinox.internal.p2.metadata.ArtifactKey;
+import org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository;
 import org.eclipse.equinox.p2.core.IProvisioningAgent;
 import org.eclipse.equinox.p2.core.ProvisionException;
+import org.eclipse.equinox.p2.metadata.IArtifactKey;
 import org.eclipse.equinox.p2.metadata.IInstallableUnit;
 import org.eclipse.equinox.p2.metadata.IProvidedCapability;
 import org.eclipse.equinox.p2.metadata.IRequirement;
@@ -37,18 +49,25 @@ import org.eclipse.equinox.p2.metadata.MetadataFactory.InstallableUnitPatchDescr
 import org.eclipse.equinox.p2.metadata.Version;
 import org.eclipse.equinox.p2.metadata.VersionRange;
 import org.eclipse.equinox.p2.metadata.VersionedId;
-import org.eclipse.equinox.p2.metadata.expression.ExpressionUtil;
-import org.eclipse.equinox.p2.metadata.expression.IExpression;
-import org.eclipse.equinox.p2.metadata.expression.IExpressionFactory;
 import org.eclipse.equinox.p2.metadata.expression.IMatchExpression;
 import org.eclipse.equinox.p2.query.IQuery;
 import org.eclipse.equinox.p2.query.IQueryResult;
 import org.eclipse.equinox.p2.query.QueryUtil;
+import org.eclipse.equinox.p2.repository.ICompositeRepository;
 import org.eclipse.equinox.p2.repository.IRepository;
+import org.eclipse.equinox.p2.repository.IRunnableWithProgress;
+import org.eclipse.equinox.p2.repository.artifact.ArtifactKeyQuery;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepository;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
 import org.eclipse.equinox.p2.repository.metadata.IMetadataRepository;
 import org.eclipse.equinox.p2.repository.metadata.IMetadataRepositoryManager;
 import org.sonatype.p2.bridge.IUIdentity;
+import org.sonatype.p2.bridge.InstallableUnitVisitor;
+import org.sonatype.p2.bridge.MergeResult;
+import org.sonatype.p2.bridge.MetadataDiffListener;
 import org.sonatype.p2.bridge.MetadataRepository;
+import org.sonatype.p2.bridge.SliceOptions;
+import org.sonatype.p2.bridge.ValidationListener;
 import org.sonatype.p2.bridge.model.InstallableUnit;
 import org.sonatype.p2.bridge.model.InstallableUnitArtifact;
 import org.sonatype.p2.bridge.model.InstallableUnitProperty;
@@ -66,24 +85,48 @@ public class MetadataRepositoryService
     implements MetadataRepository
 {
 
+    /**
+     * Key of property containing the number of installable units from which on units are translated concurrently when
+     * writing a repository.
+     *
+     * @since 1.1.10
+     */
+    static final String TRANSLATION_THRESHOLD_PROPERTY = "p2.bridge.translation.threshold";
+
+    /**
+     * One lock per repository location, held while the repository is loaded, modified and saved and its index is
+     * written, so concurrent changes of the same repository do not overwrite each other.
+     */
+    private final ConcurrentMap<URI, Object> updateLocks = new ConcurrentHashMap<URI, Object>();
+
     public void write( final URI location, final Collection<InstallableUnit> units, final String name,
                        final Map<String, String> properties )
     {
         IMetadataRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
-            manager = getManager( agentDir.toURI() );
-
-            final IMetadataRepository repository = getOrCreateRepository( location, name, properties, manager );
+            manager = getManager();
 
-            addIUs( repository, units );
-
-            if ( repository == null )
+            synchronized ( getUpdateLock( location ) )
             {
-                throw new RuntimeException( "Cannot write metadata repository as repository coud not be created" );
+                final IMetadataRepository repository = getOrCreateRepository( location, name, properties, manager );
+
+                if ( repository == null )
+                {
+                    throw new RuntimeException( "Cannot write metadata repository as repository coud not be created" );
+                }
+                try
+                {
+                    addIUs( repository, units );
+                    new RepositoryWriter( manager.getAgent() ).save( repository );
+                }
+                finally
+                {
+                    RepositoryWriter.resumeSave( repository );
+                }
+                updateIndex( location, repository, VersionIndex.fingerprint( location ) );
             }
         }
         catch ( final ProvisionException e )
@@ -94,13 +137,16 @@ public class MetadataRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
 
+    /**
+     * The returned repository is private to the caller. It does not save itself on changes; it has to be saved with
+     * {@link RepositoryWriter}.
+     */
     private IMetadataRepository getOrCreateRepository( final URI location, final String name,
                                                        final Map<String, String> properties,
                                                        final IMetadataRepositoryManager manager )
@@ -109,20 +155,37 @@ public class MetadataRepositoryService
         IMetadataRepository repository = null;
         try
         {
-            repository = manager.loadRepository( location, null );
-            repository.removeAll();
-            repository.getProperties().clear();
-            if ( properties != null )
-            {
-                repository.getProperties().putAll( properties );
-            }
+            repository = getRepositoryForUpdate( manager, location );
         }
-        catch ( final Exception ignore )
+        catch ( final ProvisionException e )
         {
+            if ( e.getStatus().getCode() != ProvisionException.REPOSITORY_NOT_FOUND )
+            {
+                throw e;
+            }
             // repository does not exist. create it
             repository =
                 manager.createRepository( location, name, IMetadataRepositoryManager.TYPE_SIMPLE_REPOSITORY,
                                           properties );
+            if ( repository != null )
+            {
+                RepositoryWriter.suspendSave( repository );
+            }
+            return repository;
+        }
+        RepositoryWriter.suspendSave( repository );
+        repository.removeAll();
+        // repository properties are read only, so they are replaced one by one
+        for ( final String key : new ArrayList<String>( repository.getProperties().keySet() ) )
+        {
+            RepositoryWriter.setProperty( repository, key, null );
+        }
+        if ( properties != null )
+        {
+            for ( final Map.Entry<String, String> entry : properties.entrySet() )
+            {
+                RepositoryWriter.setProperty( repository, entry.getKey(), entry.getValue() );
+            }
         }
         return repository;
     }
@@ -130,12 +193,19 @@ public class MetadataRepositoryService
     public Collection<IUIdentity> getGroupIUs( final URI... metadataRepositories )
     {
         IMetadataRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
-            manager = getManager( agentDir.toURI() );
+            final VersionIndex storedIndex = VersionIndex.read( metadataRepositories );
+            if ( storedIndex != null )
+            {
+                final Collection<IUIdentity> found = new HashSet<IUIdentity>();
+                storedIndex.collectGroups( found );
+                return Collections.unmodifiableCollection( found );
+            }
+
+            manager = getManager();
             final Collection<IMetadataRepository> repositories = getRepositories( manager, metadataRepositories );
 
             final IQueryResult<IInstallableUnit> results =
@@ -157,9 +227,144 @@ public class MetadataRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
+            }
+            getLock().readLock().unlock();
+        }
+    }
+
+    public Collection<IUIdentity> getProviders( final String namespace, final String name, final String range,
+                                                final URI... metadataRepositories )
+    {
+        IMetadataRepositoryManager manager = null;
+        try
+        {
+            getLock().readLock().lock();
+
+            manager = getManager();
+            final Collection<IMetadataRepository> repositories = getRepositories( manager, metadataRepositories );
+
+            final VersionRange versionRange = range == null ? null : ParseCache.getInstance().getVersionRange( range );
+            final CapabilityIndex index = CapabilityIndex.get( repositories );
+            final Collection<IUIdentity> found = new ArrayList<IUIdentity>();
+            for ( final IInstallableUnit iu : index.getProviders( namespace, name, versionRange ) )
+            {
+                found.add( new IUIdentity( iu.getId(), iu.getVersion().toString() ) );
+            }
+            return Collections.unmodifiableCollection( found );
+        }
+        catch ( final ProvisionException e )
+        {
+            throw new RuntimeException( "Cannot load metadata repository. Reason: " + e.getMessage(), e );
+        }
+        finally
+        {
+            if ( manager != null )
+            {
+                releaseProvisioningAgent( manager.getAgent() );
+            }
+            getLock().readLock().unlock();
+        }
+    }
+
+    public Collection<IUIdentity> slice( final Collection<IUIdentity> roots, final SliceOptions options,
+                                         final URI... metadataRepositories )
+    {
+        IMetadataRepositoryManager manager = null;
+        try
+        {
+            getLock().readLock().lock();
+
+            manager = getManager();
+            final Collection<IMetadataRepository> repositories = getRepositories( manager, metadataRepositories );
+
+            final CapabilityIndex index = CapabilityIndex.get( repositories );
+            final Collection<IInstallableUnit> rootIUs = new ArrayList<IInstallableUnit>( roots.size() );
+            for ( final IUIdentity root : roots )
+            {
+                final Version version = Version.create( root.getVersion() );
+                final Collection<IInstallableUnit> found =
+                    index.getProviders( IInstallableUnit.NAMESPACE_IU_ID, root.getId(),
+                                        new VersionRange( version, true, version, true ) );
+                if ( found.isEmpty() )
+                {
+                    throw new RuntimeException( String.format(
+                        "Cannot slice metadata repositories %s as root IU [%s] could not be found",
+                        Arrays.toString( metadataRepositories ), root ) );
+                }
+                rootIUs.addAll( found );
+            }
+
+            final MetadataSlicer slicer = new MetadataSlicer( index, options == null ? new SliceOptions() : options );
+            final Collection<IUIdentity> closure = new ArrayList<IUIdentity>();
+            for ( final IInstallableUnit iu : slicer.slice( rootIUs ) )
+            {
+                closure.add( new IUIdentity( iu.getId(), iu.getVersion().toString() ) );
+            }
+            return Collections.unmodifiableCollection( closure );
+        }
+        catch ( final ProvisionException e )
+        {
+            throw new RuntimeException( "Cannot load metadata repository. Reason: " + e.getMessage(), e );
+        }
+        finally
+        {
+            if ( manager != null )
+            {
+                releaseProvisioningAgent( manager.getAgent() );
+            }
+            getLock().readLock().unlock();
+        }
+    }
+
+    public int validate( final URI location, final URI artifactLocation, final ValidationListener listener,
+                         final URI... metadataRepositories )
+    {
+        IMetadataRepositoryManager manager = null;
+        try
+        {
+            getLock().readLock().lock();
+
+            manager = getManager();
+            final IMetadataRepository repository = getRepository( manager, location );
+            final Collection<IMetadataRepository> repositories = new ArrayList<IMetadataRepository>();
+            repositories.add( repository );
+            repositories.addAll( getRepositories( manager, metadataRepositories ) );
+
+            Set<IArtifactKey> artifactKeys = null;
+            if ( artifactLocation != null )
+            {
+                final IArtifactRepositoryManager artifactManager =
+                    (IArtifactRepositoryManager) manager.getAgent().getService(
+                        IArtifactRepositoryManager.SERVICE_NAME );
+                if ( artifactManager == null )
+                {
+                    throw new RuntimeException(
+                        "Cannot load artifact repository as artifact repository manager could not be created" );
+                }
+                final IArtifactRepository artifactRepository =
+                    ArtifactRepositoryCache.getInstance().load( artifactManager, artifactLocation );
+                // one snapshot, so the checking threads do not contend on the (synchronized) repository
+                artifactKeys =
+                    new HashSet<IArtifactKey>( artifactRepository.query( ArtifactKeyQuery.ALL_KEYS, null ).toSet() );
+            }
+
+            final List<IInstallableUnit> units =
+                new ArrayList<IInstallableUnit>( repository.query( QueryUtil.ALL_UNITS, null ).toSet() );
+            return new RepositoryValidator( CapabilityIndex.get( repositories ), artifactKeys, listener ).validate(
+                units, 0 );
+        }
+        catch ( final ProvisionException e )
+        {
+            throw new RuntimeException( String.format( "Cannot validate metadata repository [%s] due to [%s]",
+                                                       location, e.getMessage() ), e );
+        }
+        finally
+        {
+            if ( manager != null )
+            {
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
@@ -168,14 +373,34 @@ public class MetadataRepositoryService
                                                final URI... metadataRepositories )
     {
         IMetadataRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
-            manager = getManager( agentDir.toURI() );
-            final Collection<IMetadataRepository> repositories = getRepositories( manager, metadataRepositories );
             final Collection<IUIdentity> found = new HashSet<IUIdentity>();
+            final VersionIndex storedIndex = VersionIndex.read( metadataRepositories );
+            if ( storedIndex != null )
+            {
+                for ( final String spec : ius )
+                {
+                    storedIndex.collectVersions( spec, onlyUpdates, found );
+                }
+                return Collections.unmodifiableCollection( found );
+            }
+
+            manager = getManager();
+            final Collection<IMetadataRepository> repositories = getRepositories( manager, metadataRepositories );
+
+            if ( ius.size() > 1 )
+            {
+                // one pass over all units instead of one query per spec
+                final VersionIndex index = VersionIndex.build( repositories );
+                for ( final String spec : ius )
+                {
+                    index.collectVersions( spec, onlyUpdates, found );
+                }
+                return Collections.unmodifiableCollection( found );
+            }
 
             for ( final String spec : ius )
             {
@@ -207,28 +432,77 @@ public class MetadataRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
 
     public Collection<InstallableUnit> getInstallableUnits( final URI location )
     {
-        // TODO Auto-generated method stub
-        return null;
+        final Collection<InstallableUnit> units = new ArrayList<InstallableUnit>();
+        visitInstallableUnits( location, null, null, new InstallableUnitVisitor()
+        {
+            public boolean visit( final InstallableUnit unit )
+            {
+                units.add( unit );
+                return true;
+            }
+        } );
+        return Collections.unmodifiableCollection( units );
+    }
+
+    public void visitInstallableUnits( final URI location, final String idPrefix, final String query,
+                                       final InstallableUnitVisitor visitor )
+    {
+        IMetadataRepositoryManager manager = null;
+        try
+        {
+            getLock().readLock().lock();
+
+            manager = getManager();
+            final IMetadataRepository repository = getRepositories( manager, location ).iterator().next();
+
+            final IQuery<IInstallableUnit> iuQuery =
+                query == null ? QueryUtil.ALL_UNITS : QueryUtil.createMatchQuery( query );
+            final ModelTranslator translator = new ModelTranslator();
+            // match queries are evaluated while iterating, so only the current unit is translated
+            final Iterator<IInstallableUnit> it = repository.query( iuQuery, null ).iterator();
+            while ( it.hasNext() )
+            {
+                final IInstallableUnit iu = it.next();
+                if ( idPrefix != null && !iu.getId().startsWith( idPrefix ) )
+                {
+                    continue;
+                }
+                if ( !visitor.visit( translator.translate( iu ) ) )
+                {
+                    return;
+                }
+            }
+        }
+        catch ( final ProvisionException e )
+        {
+            throw new RuntimeException( "Cannot load metadata repository. Reason: " + e.getMessage(), e );
+        }
+        finally
+        {
+            if ( manager != null )
+            {
+                releaseProvisioningAgent( manager.getAgent() );
+            }
+            getLock().readLock().unlock();
+        }
     }
 
     public Map<String, String> getProperties( final URI location )
     {
         IMetadataRepositoryManager manager = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
-            manager = getManager( agentDir.toURI() );
+            manager = getManager();
             final IMetadataRepository repository = getRepositories( manager, location ).iterator().next();
 
             return Collections.unmodifiableMap( repository.getProperties() );
@@ -241,9 +515,8 @@ public class MetadataRepositoryService
         {
             if ( manager != null )
             {
-                manager.getAgent().stop();
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir );
             getLock().readLock().unlock();
         }
     }
@@ -255,9 +528,20 @@ public class MetadataRepositoryService
         IMetadataRepositoryManager manager = null;
         try
         {
+            final URI agentLocation = Utils.temporaryAgentLocationFor( location );
+            final File stateFile = new File( new File( agentLocation ), "metadata-proxy.properties" );
+            final RemoteRepositoryState previousState = RemoteRepositoryState.read( stateFile );
+            final boolean isProxyPresent = RemoteRepositoryState.isPresent( destination, "content.jar", "content.xml" );
+            if ( previousState != null && isProxyPresent && previousState.isUnchanged( location, username, password ) )
+            {
+                // nothing changed since last time
+                return;
+            }
+            stateFile.delete();
+
             p2AuthSession.setCredentials( location, username, password );
 
-            manager = getManager( Utils.temporaryAgentLocationFor( location ) );
+            manager = getManager( agentLocation );
             final boolean isNewRepository = !manager.contains( location );
             final NullProgressMonitor monitor = new NullProgressMonitor();
             try
@@ -280,8 +564,25 @@ public class MetadataRepositoryService
             }
             try
             {
+                final CompositeTree tree = CompositeTree.discoverMetadata( manager.getAgent(), location, monitor, 0 );
+                final RemoteRepositoryState state =
+                    RemoteRepositoryState.capture( tree.getLocations(), RemoteRepositoryState.METADATA_INDEX_FILES,
+                                                   location, username, password );
                 final IMetadataRepository remoteRepository = manager.loadRepository( location, monitor );
 
+                final Set<URI> locations = new LinkedHashSet<URI>();
+                collectLocations( manager, remoteRepository, monitor, locations );
+                final String timestamp = remoteRepository.getProperty( IRepository.PROP_TIMESTAMP );
+
+                // composites do not change their timestamp when their children change
+                if ( previousState != null && isProxyPresent && timestamp != null
+                    && !( remoteRepository instanceof ICompositeRepository )
+                    && timestamp.equals( previousState.getTimestamp() ) )
+                {
+                    state.write( stateFile, timestamp, locations );
+                    return;
+                }
+
                 final IQueryResult<IInstallableUnit> unitsQuery =
                     remoteRepository.query( QueryUtil.ALL_UNITS, monitor );
 
@@ -294,10 +595,24 @@ public class MetadataRepositoryService
                 final Map<String, String> properties = new HashMap<String, String>( remoteRepository.getProperties() );
                 properties.put( IRepository.PROP_COMPRESSED, "false" );
 
-                final IMetadataRepository localRepository =
-                    getOrCreateRepository( destination, remoteRepository.getName(), properties, manager );
+                synchronized ( getUpdateLock( destination ) )
+                {
+                    final IMetadataRepository localRepository =
+                        getOrCreateRepository( destination, remoteRepository.getName(), properties, manager );
+
+                    try
+                    {
+                        localRepository.addInstallableUnits( unitsQuery.toSet() );
+                        new RepositoryWriter( manager.getAgent() ).save( localRepository );
+                    }
+                    finally
+                    {
+                        RepositoryWriter.resumeSave( localRepository );
+                    }
+                    updateIndex( destination, localRepository, VersionIndex.fingerprint( destination ) );
+                }
 
-                localRepository.addInstallableUnits( unitsQuery.toSet() );
+                state.write( stateFile, timestamp, locations );
             }
             finally
             {
@@ -323,69 +638,148 @@ public class MetadataRepositoryService
     }
 
     public void merge( final URI location, final URI destination )
+    {
+        mergeIncremental( location, destination );
+    }
+
+    public MergeResult mergeIncremental( final URI location, final URI destination )
+    {
+        return merge( Collections.singletonList( location ), destination );
+    }
+
+    public MergeResult merge( final List<URI> locations, final URI destination )
     {
         IMetadataRepositoryManager locationManager = null;
         IMetadataRepositoryManager destinationManager = null;
-        final File agentDir1 = Utils.temporaryAgentLocation();
-        final File agentDir2 = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
             final NullProgressMonitor monitor = new NullProgressMonitor();
 
-            locationManager = getManager( agentDir1.toURI() );
-            final IMetadataRepository sourceRepository = getRepository( locationManager, location );
-
-            final IQueryResult<IInstallableUnit> unitsQuery = sourceRepository.query( QueryUtil.ALL_UNITS, monitor );
-            if ( unitsQuery.isEmpty() )
+            locationManager = getManager();
+            // keyed by id/version, so an IU present in more locations is taken from the last one
+            final Map<IInstallableUnit, IInstallableUnit> units =
+                new LinkedHashMap<IInstallableUnit, IInstallableUnit>();
+            for ( final URI location : locations )
             {
-                return;
+                final IMetadataRepository sourceRepository = getRepository( locationManager, location );
+                final Iterator<IInstallableUnit> it = sourceRepository.query( QueryUtil.ALL_UNITS, monitor ).iterator();
+                while ( it.hasNext() )
+                {
+                    final IInstallableUnit unit = it.next();
+                    units.remove( unit );
+                    units.put( unit, unit );
+                }
+            }
+            if ( units.isEmpty() )
+            {
+                return new MergeResult( 0, 0, 0 );
             }
 
-            destinationManager = getManager( agentDir2.toURI() );
-            final IMetadataRepository destinationRepository = getRepository( destinationManager, destination );
+            destinationManager = getManager();
+            synchronized ( getUpdateLock( destination ) )
+            {
+                final IMetadataRepository destinationRepository =
+                    getRepositoryForUpdate( destinationManager, destination );
 
-            final Set<IInstallableUnit> newUnits = unitsQuery.toSet();
-            // remove the old descriptors to avoid stale data (otherwise the artifact and p2 metadata don't match)
-            // as we are not living in a 'perfect' world redeploying of an IU with the same version may happen
-            destinationRepository.removeInstallableUnits( newUnits );
-            destinationRepository.addInstallableUnits( newUnits );
+                final MergeResult result = mergeUnits( destinationRepository, units.values() );
+                if ( result.getAdded() > 0 || result.getReplaced() > 0 )
+                {
+                    updateIndex( destination, destinationRepository, VersionIndex.fingerprint( destination ) );
+                }
+                return result;
+            }
         }
         catch ( final ProvisionException e )
         {
             throw new RuntimeException( String.format( "Cannot merge metadata repository [%s] into [%s] due to [%s]",
-                                                       location, destination, e.getMessage() ), e );
+                                                       locations.size() == 1 ? locations.get( 0 ) : locations,
+                                                       destination, e.getMessage() ), e );
         }
         finally
         {
             if ( locationManager != null )
             {
-                locationManager.getAgent().stop();
+                releaseProvisioningAgent( locationManager.getAgent() );
             }
             if ( destinationManager != null )
             {
-                destinationManager.getAgent().stop();
+                releaseProvisioningAgent( destinationManager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir1 );
-            Utils.deleteIfPossible( agentDir2 );
             getLock().readLock().unlock();
         }
     }
 
+    /**
+     * Adds units not present in destination and replaces the ones present with a different content. Destination is
+     * saved once, and only if something changed.
+     */
+    private MergeResult mergeUnits( final IMetadataRepository destination, final Collection<IInstallableUnit> units )
+        throws ProvisionException
+    {
+        final InstallableUnitDigest digest = new InstallableUnitDigest();
+        final List<IInstallableUnit> added = new ArrayList<IInstallableUnit>();
+        final List<IInstallableUnit> replaced = new ArrayList<IInstallableUnit>();
+        int unchanged = 0;
+        for ( final IInstallableUnit unit : units )
+        {
+            final IInstallableUnit existing = find( destination, unit );
+            if ( existing == null )
+            {
+                added.add( unit );
+            }
+            // as we are not living in a 'perfect' world redeploying of an IU with the same version may happen
+            else if ( !digest.digest( existing ).equals( digest.digest( unit ) ) )
+            {
+                replaced.add( unit );
+            }
+            else
+            {
+                unchanged++;
+            }
+        }
+        if ( added.isEmpty() && replaced.isEmpty() )
+        {
+            return new MergeResult( 0, 0, unchanged );
+        }
+
+        final long[] changedTime = new long[1];
+        final IStatus status = destination.executeBatch( new IRunnableWithProgress()
+        {
+            public void run( final IProgressMonitor monitor )
+            {
+                // remove the old descriptors to avoid stale data (otherwise the artifact and p2 metadata don't match)
+                if ( !replaced.isEmpty() )
+                {
+                    destination.removeInstallableUnits( replaced );
+                }
+                final List<IInstallableUnit> changed = new ArrayList<IInstallableUnit>( added );
+                changed.addAll( replaced );
+                destination.addInstallableUnits( changed );
+                changedTime[0] = System.currentTimeMillis();
+            }
+        }, null );
+        if ( status.getSeverity() == IStatus.ERROR )
+        {
+            throw new ProvisionException( status );
+        }
+        // the batch saves once, after the changes
+        return new MergeResult( added.size(), replaced.size(), unchanged,
+                                System.currentTimeMillis() - changedTime[0] );
+    }
+
     public void remove( final URI location, final URI destination )
     {
         IMetadataRepositoryManager locationManager = null;
         IMetadataRepositoryManager destinationManager = null;
-        final File agentDir1 = Utils.temporaryAgentLocation();
-        final File agentDir2 = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
             final NullProgressMonitor monitor = new NullProgressMonitor();
 
-            locationManager = getManager( agentDir1.toURI() );
+            locationManager = getManager();
             final IMetadataRepository sourceRepository = getRepository( locationManager, location );
 
             final IQueryResult<IInstallableUnit> unitsQuery = sourceRepository.query( QueryUtil.ALL_UNITS, monitor );
@@ -394,10 +788,16 @@ public class MetadataRepositoryService
                 return;
             }
 
-            destinationManager = getManager( agentDir2.toURI() );
-            final IMetadataRepository destinationRepository = getRepository( destinationManager, destination );
+            destinationManager = getManager();
+            synchronized ( getUpdateLock( destination ) )
+            {
+                final IMetadataRepository destinationRepository =
+                    getRepositoryForUpdate( destinationManager, destination );
 
-            destinationRepository.removeInstallableUnits( unitsQuery.toSet() );
+                // saved by p2
+                destinationRepository.removeInstallableUnits( unitsQuery.toSet() );
+                updateIndex( destination, destinationRepository, VersionIndex.fingerprint( destination ) );
+            }
         }
         catch ( final ProvisionException e )
         {
@@ -408,21 +808,161 @@ public class MetadataRepositoryService
         {
             if ( locationManager != null )
             {
-                locationManager.getAgent().stop();
+                releaseProvisioningAgent( locationManager.getAgent() );
             }
             if ( destinationManager != null )
             {
-                destinationManager.getAgent().stop();
+                releaseProvisioningAgent( destinationManager.getAgent() );
+            }
+            getLock().readLock().unlock();
+        }
+    }
+
+    public void diff( final URI oldLocation, final URI newLocation, final MetadataDiffListener listener )
+    {
+        IMetadataRepositoryManager manager = null;
+        try
+        {
+            getLock().readLock().lock();
+
+            final NullProgressMonitor monitor = new NullProgressMonitor();
+
+            manager = getManager();
+            final IMetadataRepository oldRepository = getRepository( manager, oldLocation );
+            final IMetadataRepository newRepository = getRepository( manager, newLocation );
+
+            final ModelTranslator translator = new ModelTranslator();
+            final InstallableUnitDigest digest = new InstallableUnitDigest();
+            // only ids are collected up front; units are looked up one id at a time, on both sides
+            final Set<String> ids = new TreeSet<String>( getIndex( oldLocation, oldRepository ).getIds() );
+            ids.addAll( getIndex( newLocation, newRepository ).getIds() );
+            for ( final String id : ids )
+            {
+                final SortedMap<Version, IInstallableUnit> oldUnits = getUnits( oldRepository, id, monitor );
+                final SortedMap<Version, IInstallableUnit> newUnits = getUnits( newRepository, id, monitor );
+                for ( final IInstallableUnit newUnit : newUnits.values() )
+                {
+                    final IInstallableUnit oldUnit = oldUnits.remove( newUnit.getVersion() );
+                    if ( oldUnit == null )
+                    {
+                        listener.added( translator.translate( newUnit ) );
+                    }
+                    else if ( !digest.digest( oldUnit ).equals( digest.digest( newUnit ) ) )
+                    {
+                        listener.changed( translator.translate( oldUnit ), translator.translate( newUnit ) );
+                    }
+                }
+                for ( final IInstallableUnit oldUnit : oldUnits.values() )
+                {
+                    listener.removed( translator.translate( oldUnit ) );
+                }
+            }
+        }
+        catch ( final ProvisionException e )
+        {
+            throw new RuntimeException( String.format( "Cannot compare metadata repository [%s] with [%s] due to [%s]",
+                                                       oldLocation, newLocation, e.getMessage() ), e );
+        }
+        finally
+        {
+            if ( manager != null )
+            {
+                releaseProvisioningAgent( manager.getAgent() );
             }
-            Utils.deleteIfPossible( agentDir1 );
-            Utils.deleteIfPossible( agentDir2 );
             getLock().readLock().unlock();
         }
     }
 
+    public long getParseCacheHits()
+    {
+        return ParseCache.getInstance().getHits();
+    }
+
+    public long getParseCacheMisses()
+    {
+        return ParseCache.getInstance().getMisses();
+    }
+
+    /**
+     * @return stored id/version index of repository at location if up to date, otherwise one built from repository
+     */
+    private static VersionIndex getIndex( final URI location, final IMetadataRepository repository )
+    {
+        final VersionIndex index = VersionIndex.read( location );
+        return index != null ? index : VersionIndex.build( Collections.singleton( repository ) );
+    }
+
+    /**
+     * @return units with specified id present in specified repository, by version
+     */
+    private static SortedMap<Version, IInstallableUnit> getUnits( final IMetadataRepository repository,
+                                                                  final String id, final IProgressMonitor monitor )
+    {
+        final SortedMap<Version, IInstallableUnit> units = new TreeMap<Version, IInstallableUnit>();
+        final Iterator<IInstallableUnit> it = repository.query( QueryUtil.createIUQuery( id ), monitor ).iterator();
+        while ( it.hasNext() )
+        {
+            final IInstallableUnit unit = it.next();
+            units.put( unit.getVersion(), unit );
+        }
+        return units;
+    }
+
+    /**
+     * @return unit with same id and version as specified one present in specified repository, null if none
+     */
+    private static IInstallableUnit find( final IMetadataRepository repository, final IInstallableUnit unit )
+    {
+        final Iterator<IInstallableUnit> it =
+            repository.query( QueryUtil.createIUQuery( unit.getId(), unit.getVersion() ), null ).iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Collects the locations of specified repository and of all its (recursive) composite children. Children are
+     * already loaded as part of their parent, so loading them again is served out of the manager.
+     */
+    private void collectLocations( final IMetadataRepositoryManager manager, final IMetadataRepository repository,
+                                   final IProgressMonitor monitor, final Set<URI> locations )
+        throws ProvisionException
+    {
+        if ( !locations.add( repository.getLocation() ) || !( repository instanceof ICompositeRepository ) )
+        {
+            return;
+        }
+        for ( final URI childURI : ( (ICompositeRepository<?>) repository ).getChildren() )
+        {
+            if ( !locations.contains( childURI ) )
+            {
+                collectLocations( manager, manager.loadRepository( childURI, monitor ), monitor, locations );
+            }
+        }
+    }
+
+    /**
+     * Loads a repository to be queried. Repository may come out of the shared cache so it must not be modified.
+     */
     private IMetadataRepository getRepository( final IMetadataRepositoryManager manager, final URI location )
         throws ProvisionException
     {
+        final IMetadataRepository repository = getCache().load( manager, location );
+        if ( repository == null )
+        {
+            throw new RuntimeException( "Cannot load metadata repository as repository could not be created" );
+        }
+        return repository;
+    }
+
+    /**
+     * Loads a repository to be modified. Repository is loaded from disk and dropped from the shared cache, so callers
+     * reading the cached repository never see it half modified.
+     */
+    private IMetadataRepository getRepositoryForUpdate( final IMetadataRepositoryManager manager, final URI location )
+        throws ProvisionException
+    {
+        getCache().invalidate( location );
+        // the manager keeps what it loaded, which may be the instance shared via the cache
+        manager.removeRepository( location );
         final IMetadataRepository repository = manager.loadRepository( location, null );
         if ( repository == null )
         {
@@ -438,7 +978,7 @@ public class MetadataRepositoryService
         final Collection<IMetadataRepository> repos = new ArrayList<IMetadataRepository>();
         for ( final URI location : locations )
         {
-            final IMetadataRepository repository = manager.loadRepository( location, null );
+            final IMetadataRepository repository = getCache().load( manager, location );
             if ( repository == null )
             {
                 throw new RuntimeException( "Cannot load metadata repository as repository could not be created" );
@@ -448,6 +988,59 @@ public class MetadataRepositoryService
         return repos;
     }
 
+    /**
+     * Stores the id/version index of specified (just saved) repository next to it, so versions can be looked up
+     * without loading the repository. To be called with the update lock of the location held.
+     *
+     * @param fingerprint of the content files, as taken by {@link VersionIndex#fingerprint(URI)} right after the save
+     */
+    private void updateIndex( final URI location, final IMetadataRepository repository, final long[] fingerprint )
+    {
+        if ( repository instanceof LocalMetadataRepository )
+        {
+            VersionIndex.build( Collections.singleton( repository ) ).write( location, fingerprint );
+        }
+        else
+        {
+            VersionIndex.delete( location );
+        }
+    }
+
+    private Object getUpdateLock( final URI location )
+    {
+        final Object lock = new Object();
+        final Object existing = updateLocks.putIfAbsent( location, lock );
+        return existing == null ? lock : existing;
+    }
+
+    private MetadataRepositoryCache getCache()
+    {
+        return MetadataRepositoryCache.getInstance();
+    }
+
+    /**
+     * Returns the metadata repository manager of an agent borrowed from the pool. The agent must be released via
+     * {@link #releaseProvisioningAgent(IProvisioningAgent)}.
+     */
+    private IMetadataRepositoryManager getManager()
+        throws ProvisionException
+    {
+        if ( getProvider() == null )
+        {
+            throw new RuntimeException( "Cannot load metadata repository as there is no provisioning agent provider" );
+        }
+        final IProvisioningAgent agent = acquireProvisioningAgent();
+        try
+        {
+            return getManager( agent );
+        }
+        catch ( final RuntimeException e )
+        {
+            releaseProvisioningAgent( agent );
+            throw e;
+        }
+    }
+
     private IMetadataRepositoryManager getManager( final URI location )
         throws ProvisionException
     {
@@ -455,7 +1048,11 @@ public class MetadataRepositoryService
         {
             throw new RuntimeException( "Cannot load metadata repository as there is no provisioning agent provider" );
         }
-        final IProvisioningAgent agent = createProvisioningAgent( location );
+        return getManager( createProvisioningAgent( location ) );
+    }
+
+    private IMetadataRepositoryManager getManager( final IProvisioningAgent agent )
+    {
         final IMetadataRepositoryManager manager =
             (IMetadataRepositoryManager) agent.getService( IMetadataRepositoryManager.SERVICE_NAME );
         if ( manager == null )
@@ -468,50 +1065,88 @@ public class MetadataRepositoryService
 
     private void addIUs( final IMetadataRepository repository, final Collection<InstallableUnit> units )
     {
-        final Collection<IInstallableUnit> ius = new ArrayList<IInstallableUnit>();
-        for ( final InstallableUnit unit : units )
+        repository.addInstallableUnits( translate( units ) );
+    }
+
+    /**
+     * Translates model units into p2 installable units, keeping their order. Big collections are split in chunks
+     * translated concurrently.
+     */
+    private List<IInstallableUnit> translate( final Collection<InstallableUnit> units )
+    {
+        final int threads = ParallelTasks.threads( 0 );
+        if ( threads <= 1 || units.size() < Utils.getIntProperty( TRANSLATION_THRESHOLD_PROPERTY, 1000 ) )
         {
-            final InstallableUnitDescription description;
-            if ( unit.getHostRequirements() != null && !unit.getHostRequirements().isEmpty() )
+            final List<IInstallableUnit> ius = new ArrayList<IInstallableUnit>( units.size() );
+            for ( final InstallableUnit unit : units )
             {
-                description = new InstallableUnitFragmentDescription();
+                ius.add( translate( unit ) );
             }
-            else if ( unit.getPatchScope() != null && !unit.getPatchChanges().isEmpty() )
-            {
-                description = new InstallableUnitPatchDescription();
-            }
-            else
+            return ius;
+        }
+
+        final List<InstallableUnit> unitList = new ArrayList<InstallableUnit>( units );
+        final ParallelTasks.ChunkTask<InstallableUnit, List<IInstallableUnit>> translation =
+            new ParallelTasks.ChunkTask<InstallableUnit, List<IInstallableUnit>>()
             {
-                description = new InstallableUnitDescription();
-            }
+                public List<IInstallableUnit> call( final List<InstallableUnit> chunk )
+                {
+                    final List<IInstallableUnit> ius = new ArrayList<IInstallableUnit>( chunk.size() );
+                    for ( final InstallableUnit unit : chunk )
+                    {
+                        ius.add( translate( unit ) );
+                    }
+                    return ius;
+                }
+            };
+        final List<IInstallableUnit> ius = new ArrayList<IInstallableUnit>( unitList.size() );
+        for ( final List<IInstallableUnit> chunk : ParallelTasks.invokeChunks( unitList, threads, translation ) )
+        {
+            ius.addAll( chunk );
+        }
+        return ius;
+    }
 
-            description.setId( unit.getId() );
-            description.setVersion( Version.create( unit.getVersion() ) );
-            description.setSingleton( unit.isSingleton() );
-            description.setFilter( unit.getFilter() );
+    private IInstallableUnit translate( final InstallableUnit unit )
+    {
+        final InstallableUnitDescription description;
+        if ( unit.getHostRequirements() != null && !unit.getHostRequirements().isEmpty() )
+        {
+            description = new InstallableUnitFragmentDescription();
+        }
+        else if ( unit.getPatchScope() != null && !unit.getPatchChanges().isEmpty() )
+        {
+            description = new InstallableUnitPatchDescription();
+        }
+        else
+        {
+            description = new InstallableUnitDescription();
+        }
 
-            addProperties( unit, description );
-            addUpdateDescriptor( unit, description );
-            addTouchpointType( unit, description );
-            addProvidedCapabilities( unit, description );
-            addRequirements( unit, description );
-            addMetaRequirements( unit, description );
-            if ( description instanceof InstallableUnitFragmentDescription )
-            {
-                addHostRequirements( unit, (InstallableUnitFragmentDescription) description );
-            }
-            if ( description instanceof InstallableUnitPatchDescription )
-            {
-                addPatchScope( unit, (InstallableUnitPatchDescription) description );
-                addPatchChanges( unit, (InstallableUnitPatchDescription) description );
-                addPatchLifecycle( unit, (InstallableUnitPatchDescription) description );
-            }
-            addArtifacts( unit, description );
-            addTouchpointData( unit, description );
-            final IInstallableUnit iu = MetadataFactory.createInstallableUnit( description );
-            ius.add( iu );
+        description.setId( unit.getId() );
+        description.setVersion( Version.create( unit.getVersion() ) );
+        description.setSingleton( unit.isSingleton() );
+        description.setFilter( unit.getFilter() );
+
+        addProperties( unit, description );
+        addUpdateDescriptor( unit, description );
+        addTouchpointType( unit, description );
+        addProvidedCapabilities( unit, description );
+        addRequirements( unit, description );
+        addMetaRequirements( unit, description );
+        if ( description instanceof InstallableUnitFragmentDescription )
+        {
+            addHostRequirements( unit, (InstallableUnitFragmentDescription) description );
         }
-        repository.addInstallableUnits( ius );
+        if ( description instanceof InstallableUnitPatchDescription )
+        {
+            addPatchScope( unit, (InstallableUnitPatchDescription) description );
+            addPatchChanges( unit, (InstallableUnitPatchDescription) description );
+            addPatchLifecycle( unit, (InstallableUnitPatchDescription) description );
+        }
+        addArtifacts( unit, description );
+        addTouchpointData( unit, description );
+        return MetadataFactory.createInstallableUnit( description );
     }
 
     private void addTouchpointData( final InstallableUnit unit, final InstallableUnitDescription description )
@@ -675,35 +1310,21 @@ public class MetadataRepositoryService
 
     private IRequirement createRequirement( final RequiredCapability unitRC )
     {
+        final ParseCache parseCache = ParseCache.getInstance();
         IRequirement requirement;
         if ( unitRC.getMatch() == null )
         {
             requirement =
                 MetadataFactory.createRequirement( unitRC.getNamespace(), unitRC.getName(),
-                                                   new VersionRange( unitRC.getRange() ), unitRC.getFilter(),
-                                                   unitRC.isOptional(),
-                                                   unitRC.isMultiple(), unitRC.isGreedy() );
+                                                   parseCache.getVersionRange( unitRC.getRange() ),
+                                                   parseCache.getFilter( unitRC.getFilter() ),
+                                                   unitRC.isOptional() ? 0 : 1,
+                                                   unitRC.isMultiple() ? Integer.MAX_VALUE : 1, unitRC.isGreedy() );
         }
         else
         {
-            final IExpressionFactory factory = ExpressionUtil.getFactory();
-            final IExpression expr = ExpressionUtil.parse( unitRC.getMatch() );
-            Object[] params;
-            if ( unitRC.getMatchParameters() == null )
-            {
-                params = new Object[0];
-            }
-            else
-            {
-                final IExpression[] arrayExpr =
-                    ExpressionUtil.getOperands( ExpressionUtil.parse( unitRC.getMatchParameters() ) );
-                params = new Object[arrayExpr.length];
-                for ( int idx = 0; idx < arrayExpr.length; ++idx )
-                {
-                    params[idx] = arrayExpr[idx].evaluate( null );
-                }
-            }
-            final IMatchExpression<IInstallableUnit> matchExpr = factory.matchExpression( expr, params );
+            final IMatchExpression<IInstallableUnit> matchExpr =
+                parseCache.getMatchExpression( unitRC.getMatch(), unitRC.getMatchParameters() );
             // TODO handle filter
             requirement =
                 MetadataFactory.createRequirement( matchExpr, null /* filter */, unitRC.getMin(), unitRC.getMax(),
@@ -740,8 +1361,13 @@ public class MetadataRepositoryService
         {
             return;
         }
-        final ITouchpointType touchpointType =
-            MetadataFactory.createTouchpointType( unitTP.getId(), Version.create( unitTP.getVersion() ) );
+        final ITouchpointType touchpointType;
+        // MetadataFactory caches touchpoint types in an unguarded static array
+        synchronized ( MetadataFactory.class )
+        {
+            touchpointType =
+                MetadataFactory.createTouchpointType( unitTP.getId(), Version.create( unitTP.getVersion() ) );
+        }
         description.setTouchpointType( touchpointType );
     }
 
@@ -758,8 +1384,9 @@ public class MetadataRepositoryService
             unitUD.getSeverity() == null ? IUpdateDescriptor.NORMAL : Integer.valueOf( unitUD.getSeverity() );
 
         final IUpdateDescriptor updateDescriptor =
-            MetadataFactory.createUpdateDescriptor( unitUD.getId(), new VersionRange( unitUD.getRange() ), severity,
-                                                    null );
+            MetadataFactory.createUpdateDescriptor( unitUD.getId(),
+                                                    ParseCache.getInstance().getVersionRange( unitUD.getRange() ),
+                                                    severity, null );
 
         description.setUpdateDescriptor( updateDescriptor );
     }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.equinox.internal.p2.metadata.InstallableUnit;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IInstallableUnitFragment;
+import org.eclipse.equinox.p2.metadata.IInstallableUnitPatch;
+import org.eclipse.equinox.p2.metadata.IRequirement;
+import org.eclipse.equinox.p2.metadata.IRequirementChange;
+import org.eclipse.equinox.p2.metadata.expression.IMatchExpression;
+import org.sonatype.p2.bridge.SliceOptions;
+
+/**
+ * Computes the dependency closure of a set of installable units, over a capability index. Expands breadth first: the
+ * requirements of all units of one level are looked up concurrently, then the providers not seen before make the next
+ * level. The result does not depend on the number of threads.
+ *
+ * @since 1.1.10
+ */
+class MetadataSlicer
+{
+
+    private final CapabilityIndex index;
+
+    /**
+     * Unit filters are evaluated against, null if filters are ignored.
+     */
+    private final IInstallableUnit context;
+
+    private final boolean includeOptional;
+
+    private final boolean includeNonGreedy;
+
+    private final int threads;
+
+    MetadataSlicer( final CapabilityIndex index, final SliceOptions options )
+    {
+        this.index = index;
+        context = options.getEnvironment() == null ? null : InstallableUnit.contextIU( options.getEnvironment() );
+        includeOptional = options.isIncludeOptional();
+        includeNonGreedy = options.isIncludeNonGreedy();
+        threads = ParallelTasks.threads( options.getThreads() );
+    }
+
+    /**
+     * @return roots and all units they (transitively) require, roots first, then in order of discovery
+     */
+    Collection<IInstallableUnit> slice( final Collection<IInstallableUnit> roots )
+    {
+        final Set<IInstallableUnit> closure = new LinkedHashSet<IInstallableUnit>();
+        List<IInstallableUnit> level = new ArrayList<IInstallableUnit>();
+        for ( final IInstallableUnit root : roots )
+        {
+            if ( isApplicable( root.getFilter() ) && closure.add( root ) )
+            {
+                level.add( root );
+            }
+        }
+        while ( !level.isEmpty() )
+        {
+            final List<IInstallableUnit> next = new ArrayList<IInstallableUnit>();
+            for ( final Collection<IInstallableUnit> providers : expand( level ) )
+            {
+                for ( final IInstallableUnit provider : providers )
+                {
+                    if ( closure.add( provider ) )
+                    {
+                        next.add( provider );
+                    }
+                }
+            }
+            level = next;
+        }
+        return closure;
+    }
+
+    /**
+     * @return providers of the requirements of specified units, one collection per chunk of units, in order
+     */
+    private List<Collection<IInstallableUnit>> expand( final List<IInstallableUnit> level )
+    {
+        final ParallelTasks.ChunkTask<IInstallableUnit, Collection<IInstallableUnit>> expansion =
+            new ParallelTasks.ChunkTask<IInstallableUnit, Collection<IInstallableUnit>>()
+            {
+                public Collection<IInstallableUnit> call( final List<IInstallableUnit> chunk )
+                {
+                    final Collection<IInstallableUnit> providers = new LinkedHashSet<IInstallableUnit>();
+                    for ( final IInstallableUnit iu : chunk )
+                    {
+                        for ( final IRequirement requirement : getRequirements( iu ) )
+                        {
+                            if ( isFollowed( requirement ) )
+                            {
+                                addProviders( requirement, providers );
+                            }
+                        }
+                    }
+                    return providers;
+                }
+            };
+        return ParallelTasks.invokeChunks( level, threads, expansion );
+    }
+
+    private static Collection<IRequirement> getRequirements( final IInstallableUnit iu )
+    {
+        final Collection<IRequirement> requirements = new ArrayList<IRequirement>( iu.getRequirements() );
+        if ( iu instanceof IInstallableUnitFragment )
+        {
+            requirements.addAll( ( (IInstallableUnitFragment) iu ).getHost() );
+        }
+        if ( iu instanceof IInstallableUnitPatch )
+        {
+            for ( final IRequirementChange change : ( (IInstallableUnitPatch) iu ).getRequirementsChange() )
+            {
+                if ( change.newValue() != null )
+                {
+                    requirements.add( change.newValue() );
+                }
+            }
+        }
+        return requirements;
+    }
+
+    private boolean isFollowed( final IRequirement requirement )
+    {
+        if ( requirement.getMax() == 0 )
+        {
+            // negative requirement: says what must not be there
+            return false;
+        }
+        if ( requirement.getMin() == 0 && !includeOptional )
+        {
+            return false;
+        }
+        if ( !requirement.isGreedy() && !includeNonGreedy )
+        {
+            return false;
+        }
+        return isApplicable( requirement.getFilter() );
+    }
+
+    private void addProviders( final IRequirement requirement, final Collection<IInstallableUnit> providers )
+    {
+        for ( final IInstallableUnit provider : index.getProviders( requirement ) )
+        {
+            if ( isApplicable( provider.getFilter() ) )
+            {
+                providers.add( provider );
+            }
+        }
+    }
+
+    private boolean isApplicable( final IMatchExpression<IInstallableUnit> filter )
+    {
+        return context == null || filter == null || filter.isMatch( context );
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.equinox.p2.metadata.IArtifactKey;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IInstallableUnitFragment;
+import org.eclipse.equinox.p2.metadata.IInstallableUnitPatch;
+import org.eclipse.equinox.p2.metadata.IProvidedCapability;
+import org.eclipse.equinox.p2.metadata.IRequirement;
+import org.eclipse.equinox.p2.metadata.IRequirementChange;
+import org.eclipse.equinox.p2.metadata.ITouchpointData;
+import org.eclipse.equinox.p2.metadata.ITouchpointInstruction;
+import org.eclipse.equinox.p2.metadata.ITouchpointType;
+import org.eclipse.equinox.p2.metadata.IUpdateDescriptor;
+import org.eclipse.equinox.p2.metadata.expression.IMatchExpression;
+import org.sonatype.p2.bridge.model.InstallableUnit;
+import org.sonatype.p2.bridge.model.InstallableUnitArtifact;
+import org.sonatype.p2.bridge.model.InstallableUnitProperty;
+import org.sonatype.p2.bridge.model.PatchChange;
+import org.sonatype.p2.bridge.model.PatchChangeRequirement;
+import org.sonatype.p2.bridge.model.PatchScope;
+import org.sonatype.p2.bridge.model.ProvidedCapability;
+import org.sonatype.p2.bridge.model.RequiredCapability;
+import org.sonatype.p2.bridge.model.TouchpointData;
+import org.sonatype.p2.bridge.model.TouchpointInstruction;
+import org.sonatype.p2.bridge.model.TouchpointType;
+import org.sonatype.p2.bridge.model.UpdateDescriptor;
+
+/**
+ * Translates p2 installable units into model installable units. The opposite of the translation done when writing a
+ * metadata repository, so units read and written back are equivalent.
+ *
+ * @since 1.1.10
+ */
+class ModelTranslator
+{
+
+    private final ParseCache parseCache = ParseCache.getInstance();
+
+    InstallableUnit translate( final IInstallableUnit iu )
+    {
+        final InstallableUnit unit = new InstallableUnit();
+        unit.setId( iu.getId() );
+        unit.setVersion( iu.getVersion().toString() );
+        unit.setSingleton( iu.isSingleton() );
+        if ( iu.getFilter() != null )
+        {
+            unit.setFilter( parseCache.getFilterText( iu.getFilter() ) );
+        }
+
+        addProperties( iu, unit );
+        addUpdateDescriptor( iu, unit );
+        addTouchpointType( iu, unit );
+        addProvidedCapabilities( iu, unit );
+        for ( final IRequirement requirement : iu.getRequirements() )
+        {
+            unit.addRequiredCapability( createRequiredCapability( requirement ) );
+        }
+        for ( final IRequirement requirement : iu.getMetaRequirements() )
+        {
+            unit.addMetaRequirement( createRequiredCapability( requirement ) );
+        }
+        if ( iu instanceof IInstallableUnitFragment )
+        {
+            for ( final IRequirement requirement : ( (IInstallableUnitFragment) iu ).getHost() )
+            {
+                unit.addHostRequirement( createRequiredCapability( requirement ) );
+            }
+        }
+        if ( iu instanceof IInstallableUnitPatch )
+        {
+            addPatch( (IInstallableUnitPatch) iu, unit );
+        }
+        addArtifacts( iu, unit );
+        addTouchpointData( iu, unit );
+        return unit;
+    }
+
+    private void addProperties( final IInstallableUnit iu, final InstallableUnit unit )
+    {
+        for ( final Map.Entry<String, String> entry : iu.getProperties().entrySet() )
+        {
+            final InstallableUnitProperty property = new InstallableUnitProperty();
+            property.setName( entry.getKey() );
+            property.setValue( entry.getValue() );
+            unit.addProperty( property );
+        }
+    }
+
+    /**
+     * Only update descriptors in the form created by the metadata factory (id and version range) can be translated.
+     */
+    private void addUpdateDescriptor( final IInstallableUnit iu, final InstallableUnit unit )
+    {
+        final IUpdateDescriptor iuUD = iu.getUpdateDescriptor();
+        if ( iuUD == null || iuUD.getIUsBeingUpdated().isEmpty() )
+        {
+            return;
+        }
+        final IMatchExpression<IInstallableUnit> match = iuUD.getIUsBeingUpdated().iterator().next();
+        if ( !org.eclipse.equinox.internal.p2.metadata.RequiredCapability.isSimpleRequirement( match ) )
+        {
+            return;
+        }
+        final UpdateDescriptor unitUD = new UpdateDescriptor();
+        unitUD.setId( org.eclipse.equinox.internal.p2.metadata.RequiredCapability.extractName( match ) );
+        unitUD.setRange( org.eclipse.equinox.internal.p2.metadata.RequiredCapability.extractRange( match ).toString() );
+        unitUD.setSeverity( String.valueOf( iuUD.getSeverity() ) );
+        unit.setUpdateDescriptor( unitUD );
+    }
+
+    private void addTouchpointType( final IInstallableUnit iu, final InstallableUnit unit )
+    {
+        final ITouchpointType iuTP = iu.getTouchpointType();
+        if ( iuTP == null || ITouchpointType.NONE.equals( iuTP ) )
+        {
+            return;
+        }
+        final TouchpointType unitTP = new TouchpointType();
+        unitTP.setId( iuTP.getId() );
+        unitTP.setVersion( iuTP.getVersion().toString() );
+        unit.setTouchpointType( unitTP );
+    }
+
+    private void addProvidedCapabilities( final IInstallableUnit iu, final InstallableUnit unit )
+    {
+        for ( final IProvidedCapability iuPC : iu.getProvidedCapabilities() )
+        {
+            final ProvidedCapability unitPC = new ProvidedCapability();
+            unitPC.setNamespace( iuPC.getNamespace() );
+            unitPC.setName( iuPC.getName() );
+            unitPC.setVersion( iuPC.getVersion().toString() );
+            unit.addProvidedCapability( unitPC );
+        }
+    }
+
+    private void addPatch( final IInstallableUnitPatch iu, final InstallableUnit unit )
+    {
+        final IRequirement[][] scope = iu.getApplicabilityScope();
+        if ( scope != null )
+        {
+            for ( final IRequirement[] requirements : scope )
+            {
+                final PatchScope unitPS = new PatchScope();
+                if ( requirements != null )
+                {
+                    for ( final IRequirement requirement : requirements )
+                    {
+                        unitPS.addRequire( createRequiredCapability( requirement ) );
+                    }
+                }
+                unit.addPatchScope( unitPS );
+            }
+        }
+        final List<IRequirementChange> changes = iu.getRequirementsChange();
+        if ( changes != null )
+        {
+            for ( final IRequirementChange change : changes )
+            {
+                final PatchChange unitPC = new PatchChange();
+                unitPC.setFrom( createPatchChangeRequirement( change.applyOn() ) );
+                unitPC.setTo( createPatchChangeRequirement( change.newValue() ) );
+                unit.addPatchChange( unitPC );
+            }
+        }
+        if ( iu.getLifeCycle() != null )
+        {
+            unit.setPatchLifeCycle( createRequiredCapability( iu.getLifeCycle() ) );
+        }
+    }
+
+    private PatchChangeRequirement createPatchChangeRequirement( final IRequirement requirement )
+    {
+        if ( requirement == null )
+        {
+            return null;
+        }
+        final PatchChangeRequirement result = new PatchChangeRequirement();
+        result.setRequired( createRequiredCapability( requirement ) );
+        return result;
+    }
+
+    private void addArtifacts( final IInstallableUnit iu, final InstallableUnit unit )
+    {
+        for ( final IArtifactKey key : iu.getArtifacts() )
+        {
+            unit.addArtifact( createArtifact( key ) );
+        }
+    }
+
+    InstallableUnitArtifact createArtifact( final IArtifactKey key )
+    {
+        final InstallableUnitArtifact unitA = new InstallableUnitArtifact();
+        unitA.setClassifier( key.getClassifier() );
+        unitA.setId( key.getId() );
+        unitA.setVersion( key.getVersion().toString() );
+        return unitA;
+    }
+
+    private void addTouchpointData( final IInstallableUnit iu, final InstallableUnit unit )
+    {
+        final Collection<ITouchpointData> iuTDs = iu.getTouchpointData();
+        if ( iuTDs == null || iuTDs.isEmpty() )
+        {
+            return;
+        }
+        final TouchpointData unitTD = new TouchpointData();
+        for ( final ITouchpointData iuTD : iuTDs )
+        {
+            for ( final Map.Entry<String, ITouchpointInstruction> entry : iuTD.getInstructions().entrySet() )
+            {
+                final TouchpointInstruction unitTI = new TouchpointInstruction();
+                unitTI.setKey( entry.getKey() );
+                unitTI.setBody( entry.getValue().getBody() );
+                unitTD.addInstruction( unitTI );
+            }
+        }
+        unit.setTouchpointData( unitTD );
+    }
+
+    /**
+     * Plain namespace/name/range requirements are kept as such, all others as match expression.
+     */
+    RequiredCapability createRequiredCapability( final IRequirement requirement )
+    {
+        final RequiredCapability unitRC = new RequiredCapability();
+        final IMatchExpression<IInstallableUnit> match = requirement.getMatches();
+        // p2 uses the same requirement class for both forms, only the expression tells them apart
+        if ( org.eclipse.equinox.internal.p2.metadata.RequiredCapability.isSimpleRequirement( match ) )
+        {
+            unitRC.setNamespace(
+                org.eclipse.equinox.internal.p2.metadata.RequiredCapability.extractNamespace( match ) );
+            unitRC.setName( org.eclipse.equinox.internal.p2.metadata.RequiredCapability.extractName( match ) );
+            unitRC.setRange(
+                org.eclipse.equinox.internal.p2.metadata.RequiredCapability.extractRange( match ).toString() );
+        }
+        else
+        {
+            unitRC.setMatch( parseCache.getMatchText( match ) );
+            unitRC.setMatchParameters( parseCache.getMatchParametersText( match ) );
+        }
+        if ( requirement.getFilter() != null )
+        {
+            unitRC.setFilter( parseCache.getFilterText( requirement.getFilter() ) );
+        }
+        unitRC.setMin( requirement.getMin() );
+        unitRC.setMax( requirement.getMax() );
+        unitRC.setOptional( requirement.getMin() == 0 );
+        unitRC.setMultiple( requirement.getMax() > 1 );
+        unitRC.setGreedy( requirement.isGreedy() );
+        return unitRC;
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent tasks on a bounded number of short lived worker threads.
+ *
+ * @since 1.1.10
+ */
+class ParallelTasks
+{
+
+    /**
+     * Key of property containing the default number of worker threads used by parallel operations. Defaults to the
+     * number of available processors.
+     */
+    static final String THREADS_PROPERTY = "p2.bridge.threads";
+
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    private ParallelTasks()
+    {
+    }
+
+    /**
+     * @return number of worker threads to be used when caller did not specify one (value &lt;= 0)
+     */
+    static int threads( final int requested )
+    {
+        if ( requested > 0 )
+        {
+            return requested;
+        }
+        return Math.max( 1, Utils.getIntProperty( THREADS_PROPERTY, Runtime.getRuntime().availableProcessors() ) );
+    }
+
+    /**
+     * Executes all tasks, using at most specified number of threads, and waits for them to finish. With one thread (or
+     * one task) tasks are executed in the calling thread. Failures of individual tasks do not stop the others; they are
+     * reported by the returned futures, in the same order as the tasks.
+     */
+    static <T> List<Future<T>> invokeAll( final List<? extends Callable<T>> tasks, final int threads )
+    {
+        final int poolSize = Math.min( threads( threads ), tasks.size() );
+        if ( poolSize <= 1 )
+        {
+            final List<Future<T>> futures = new ArrayList<Future<T>>( tasks.size() );
+            for ( final Callable<T> task : tasks )
+            {
+                final FutureTask<T> future = new FutureTask<T>( task );
+                future.run();
+                futures.add( future );
+            }
+            return futures;
+        }
+
+        final ExecutorService executor =
+            new ThreadPoolExecutor( poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                                    new WorkerThreadFactory() );
+        try
+        {
+            return executor.invokeAll( tasks );
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while waiting for parallel tasks to finish", e );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits items in chunks processed by specified task, using at most specified number of threads, and waits for
+     * them to finish. Items are split in a few chunks per thread, so an unlucky chunk of costly items does not keep the
+     * other threads waiting.
+     *
+     * @return result of each chunk, in order
+     * @throws RuntimeException failure of the first failed chunk, thrown once all chunks finished
+     */
+    static <T, R> List<R> invokeChunks( final List<T> items, final int threads, final ChunkTask<T, R> task )
+    {
+        final int poolSize = threads( threads );
+        final int chunkSize = Math.max( 1, ( items.size() + poolSize * 4 - 1 ) / ( poolSize * 4 ) );
+        final List<Callable<R>> tasks = new ArrayList<Callable<R>>();
+        for ( int start = 0; start < items.size(); start += chunkSize )
+        {
+            final List<T> chunk = items.subList( start, Math.min( start + chunkSize, items.size() ) );
+            tasks.add( new Callable<R>()
+            {
+                public R call()
+                    throws Exception
+                {
+                    return task.call( chunk );
+                }
+            } );
+        }
+        final List<R> results = new ArrayList<R>( tasks.size() );
+        for ( final Future<R> future : invokeAll( tasks, poolSize ) )
+        {
+            results.add( get( future ) );
+        }
+        return results;
+    }
+
+    /**
+     * Returns the result of a finished task, rethrowing its failure as unchecked exception.
+     */
+    static <T> T get( final Future<T> future )
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while waiting for parallel task to finish", e );
+        }
+        catch ( final ExecutionException e )
+        {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new RuntimeException( cause.getMessage(), cause );
+        }
+    }
+
+    /**
+     * Returns the failure of a finished task, or null if it succeeded.
+     */
+    static Throwable getFailure( final Future<?> future )
+    {
+        try
+        {
+            future.get();
+            return null;
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return e;
+        }
+        catch ( final ExecutionException e )
+        {
+            return e.getCause();
+        }
+    }
+
+    /**
+     * Processing of a chunk of items, see {@link ParallelTasks#invokeChunks(List, int, ChunkTask)}.
+     */
+    interface ChunkTask<T, R>
+    {
+
+        R call( List<T> chunk )
+            throws Exception;
+
+    }
+
+    private static class WorkerThreadFactory
+        implements ThreadFactory
+    {
+
+        private final int pool = POOL_COUNTER.incrementAndGet();
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public Thread newThread( final Runnable runnable )
+        {
+            final Thread thread = new Thread( runnable, "p2-bridge-" + pool + "-worker-" + counter.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+
+    }
+
+}
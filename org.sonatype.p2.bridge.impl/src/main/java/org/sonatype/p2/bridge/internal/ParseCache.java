@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.equinox.internal.p2.metadata.InstallableUnit;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.VersionRange;
+import org.eclipse.equinox.p2.metadata.expression.ExpressionUtil;
+import org.eclipse.equinox.p2.metadata.expression.IExpression;
+import org.eclipse.equinox.p2.metadata.expression.IExpressionFactory;
+import org.eclipse.equinox.p2.metadata.expression.IMatchExpression;
+
+/**
+ * Process wide cache of parsed match expressions, LDAP filters and version ranges (and of their textual form), as the
+ * same few of them repeat for thousands of requirements of a repository. All cached objects are immutable so they can
+ * be shared between installable units. Bounded by number of entries, evicted in least recently used order.
+ *
+ * @since 1.1.10
+ */
+class ParseCache
+{
+
+    /**
+     * Key of property containing the maximum number of entries kept in the cache. 0 disables caching.
+     */
+    static final String MAX_ENTRIES_PROPERTY = "p2.bridge.parseCache.maxEntries";
+
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final ParseCache INSTANCE =
+        new ParseCache( Utils.getIntProperty( MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES ) );
+
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final int maxEntries;
+
+    private final Map<Key, Object> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    ParseCache( final int maxEntries )
+    {
+        this.maxEntries = Math.max( 0, maxEntries );
+        entries = new LinkedHashMap<Key, Object>( 16, 0.75f, true )
+        {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry<Key, Object> eldest )
+            {
+                return size() > ParseCache.this.maxEntries;
+            }
+
+        };
+    }
+
+    static ParseCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @return number of lookups answered out of the cache. Only the lookups of callers count, not the lookups of the
+     *         expression and parameters of a match expression that had to be parsed.
+     */
+    long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that had to parse (or format), counted the same way as {@link #getHits()}
+     */
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+    VersionRange getVersionRange( final String range )
+    {
+        if ( range == null )
+        {
+            return new VersionRange( range );
+        }
+        final Key key = new Key( Kind.VERSION_RANGE, range, null );
+        VersionRange result = (VersionRange) get( key );
+        if ( result == null )
+        {
+            result = new VersionRange( range );
+            put( key, result );
+        }
+        return result;
+    }
+
+    /**
+     * @return parsed LDAP filter or null if filter is null
+     */
+    IMatchExpression<IInstallableUnit> getFilter( final String filter )
+    {
+        if ( filter == null )
+        {
+            return null;
+        }
+        final Key key = new Key( Kind.FILTER, filter, null );
+        @SuppressWarnings( "unchecked" )
+        IMatchExpression<IInstallableUnit> result = (IMatchExpression<IInstallableUnit>) get( key );
+        if ( result == null )
+        {
+            result = InstallableUnit.parseFilter( filter );
+            put( key, result );
+        }
+        return result;
+    }
+
+    /**
+     * @param match match expression
+     * @param matchParameters array expression of parameters (can be null)
+     * @return match expression bound to parsed parameters
+     */
+    IMatchExpression<IInstallableUnit> getMatchExpression( final String match, final String matchParameters )
+    {
+        final Key key = new Key( Kind.MATCH, match, matchParameters );
+        @SuppressWarnings( "unchecked" )
+        IMatchExpression<IInstallableUnit> result = (IMatchExpression<IInstallableUnit>) get( key );
+        if ( result == null )
+        {
+            final IExpressionFactory factory = ExpressionUtil.getFactory();
+            result = factory.matchExpression( getExpression( match ), getParameters( matchParameters ) );
+            put( key, result );
+        }
+        return result;
+    }
+
+    private IExpression getExpression( final String expression )
+    {
+        final Key key = new Key( Kind.EXPRESSION, expression, null );
+        IExpression result = (IExpression) lookup( key );
+        if ( result == null )
+        {
+            result = ExpressionUtil.parse( expression );
+            put( key, result );
+        }
+        return result;
+    }
+
+    /**
+     * @return textual form of specified match expression (without parameters), as accepted by
+     *         {@link #getMatchExpression(String, String)}
+     */
+    String getMatchText( final IMatchExpression<IInstallableUnit> match )
+    {
+        final Key key = new Key( Kind.MATCH_TEXT, match, null );
+        String result = (String) get( key );
+        if ( result == null )
+        {
+            result = ExpressionUtil.getOperand( match ).toString();
+            put( key, result );
+        }
+        return result;
+    }
+
+    /**
+     * @return textual form of the parameters of specified match expression, as accepted by
+     *         {@link #getMatchExpression(String, String)}, or null if there are no parameters
+     */
+    String getMatchParametersText( final IMatchExpression<IInstallableUnit> match )
+    {
+        final Object[] params = match.getParameters();
+        if ( params.length == 0 )
+        {
+            return null;
+        }
+        final Key key = new Key( Kind.MATCH_PARAMETERS_TEXT, match, null );
+        String result = (String) get( key );
+        if ( result == null )
+        {
+            final IExpressionFactory factory = ExpressionUtil.getFactory();
+            final IExpression[] constantArray = new IExpression[params.length];
+            for ( int idx = 0; idx < params.length; ++idx )
+            {
+                constantArray[idx] = factory.constant( params[idx] );
+            }
+            result = factory.array( constantArray ).toString();
+            put( key, result );
+        }
+        return result;
+    }
+
+    /**
+     * @return textual form of specified LDAP filter, as accepted by {@link #getFilter(String)}
+     */
+    String getFilterText( final IMatchExpression<IInstallableUnit> filter )
+    {
+        final Key key = new Key( Kind.FILTER_TEXT, filter, null );
+        String result = (String) get( key );
+        if ( result == null )
+        {
+            result = filter.getParameters()[0].toString();
+            put( key, result );
+        }
+        return result;
+    }
+
+    private Object[] getParameters( final String matchParameters )
+    {
+        if ( matchParameters == null )
+        {
+            return NO_PARAMETERS;
+        }
+        final IExpression[] arrayExpr = ExpressionUtil.getOperands( getExpression( matchParameters ) );
+        final Object[] params = new Object[arrayExpr.length];
+        for ( int idx = 0; idx < arrayExpr.length; ++idx )
+        {
+            params[idx] = arrayExpr[idx].evaluate( null );
+        }
+        return params;
+    }
+
+    /**
+     * Looks up a value requested by a caller, counting a hit or a miss.
+     */
+    private Object get( final Key key )
+    {
+        final Object result = lookup( key );
+        if ( result == null )
+        {
+            misses.incrementAndGet();
+        }
+        else
+        {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    private Object lookup( final Key key )
+    {
+        if ( maxEntries == 0 )
+        {
+            return null;
+        }
+        synchronized ( entries )
+        {
+            return entries.get( key );
+        }
+    }
+
+    /**
+     * Values are parsed outside of the lock, so two threads may parse the same string at once. Both results are equal
+     * and the last one wins.
+     */
+    private void put( final Key key, final Object value )
+    {
+        if ( maxEntries > 0 && value != null )
+        {
+            synchronized ( entries )
+            {
+                entries.put( key, value );
+            }
+        }
+    }
+
+    private static enum Kind
+    {
+        VERSION_RANGE, FILTER, MATCH, EXPRESSION, MATCH_TEXT, MATCH_PARAMETERS_TEXT, FILTER_TEXT
+    }
+
+    private static class Key
+    {
+
+        private final Kind kind;
+
+        private final Object value;
+
+        private final Object qualifier;
+
+        private final int hashCode;
+
+        Key( final Kind kind, final Object value, final Object qualifier )
+        {
+            this.kind = kind;
+            this.value = value;
+            this.qualifier = qualifier;
+            hashCode =
+                31 * ( 31 * kind.hashCode() + ( value == null ? 0 : value.hashCode() ) )
+                    + ( qualifier == null ? 0 : qualifier.hashCode() );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals( final Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( !( obj instanceof Key ) )
+            {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return kind == other.kind && equal( value, other.value ) && equal( qualifier, other.qualifier );
+        }
+
+        private static boolean equal( final Object o1, final Object o2 )
+        {
+            return o1 == null ? o2 == null : o1.equals( o2 );
+        }
+
+    }
+
+}
@@ -23,9 +23,6 @@ import org.eclipse.equinox.p2.metadata.IProvidedCapability;
 import org.eclipse.equinox.p2.metadata.IRequirement;
 import org.eclipse.equinox.p2.metadata.ITouchpointData;
 import org.eclipse.equinox.p2.metadata.ITouchpointInstruction;
-import org.eclipse.equinox.p2.metadata.expression.ExpressionUtil;
-import org.eclipse.equinox.p2.metadata.expression.IExpression;
-import org.eclipse.equinox.p2.metadata.expression.IExpressionFactory;
 import org.eclipse.equinox.p2.metadata.expression.IMatchExpression;
 import org.eclipse.equinox.p2.publisher.IPublisherAction;
 import org.eclipse.equinox.p2.publisher.PublisherInfo;
@@ -49,12 +46,11 @@ public class PublisherService
     public void generateUpdateSite( final File location, final URI repositoryLocation )
     {
         IProvisioningAgent agent = null;
-        final File agentDir = Utils.temporaryAgentLocation();
         try
         {
             getLock().readLock().lock();
 
-            agent = createProvisioningAgent( agentDir.toURI() );
+            agent = acquireProvisioningAgent();
 
             final PublisherInfo info = new PublisherInfo();
             info.setArtifactRepository( org.eclipse.equinox.p2.publisher.Publisher.createArtifactRepository(
@@ -74,11 +70,7 @@ public class PublisherService
         }
         finally
         {
-            if ( agent != null )
-            {
-                agent.stop();
-            }
-            Utils.deleteIfPossible( agentDir );
+            releaseProvisioningAgent( agent );
             getLock().readLock().unlock();
         }
     }
@@ -182,25 +174,16 @@ public class PublisherService
         {
             return;
         }
+        final ParseCache parseCache = ParseCache.getInstance();
         for ( final IRequirement requirement : requirements )
         {
             final RequiredCapability resultCapability = new RequiredCapability();
             final IMatchExpression<IInstallableUnit> match = requirement.getMatches();
-            resultCapability.setMatch( ExpressionUtil.getOperand( match ).toString() );
-            final Object[] params = match.getParameters();
-            if ( params.length > 0 )
-            {
-                final IExpressionFactory factory = ExpressionUtil.getFactory();
-                final IExpression[] constantArray = new IExpression[params.length];
-                for ( int idx = 0; idx < params.length; ++idx )
-                {
-                    constantArray[idx] = factory.constant( params[idx] );
-                }
-                resultCapability.setMatchParameters( factory.array( constantArray ).toString() );
-            }
+            resultCapability.setMatch( parseCache.getMatchText( match ) );
+            resultCapability.setMatchParameters( parseCache.getMatchParametersText( match ) );
             if ( requirement.getFilter() != null )
             {
-                resultCapability.setFilter( requirement.getFilter().getParameters()[0].toString() );
+                resultCapability.setFilter( parseCache.getFilterText( requirement.getFilter() ) );
             }
             resultCapability.setMin( requirement.getMin() );
             resultCapability.setMax( requirement.getMax() );
@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.eclipse.core.internal.net.ProxyManager;
+import org.eclipse.core.net.proxy.IProxyData;
+import org.eclipse.osgi.framework.internal.core.FrameworkProperties;
+
+/**
+ * What a proxied remote repository looked like the last time it was proxied: its p2.timestamp and the HTTP validators
+ * (ETag / Last-Modified) of the index file of each repository it is made of. Allows to find out with a few conditional
+ * requests that a remote repository did not change, instead of loading it in full.
+ * <p>
+ * Validators are captured before the remote repository is loaded, so a change made meanwhile is seen next time, and
+ * written only once the proxy was saved. Requests are HEAD requests sent through the proxy configured in
+ * org.eclipse.core.net for the location, as the p2 transport does; the p2 transport itself offers neither ETags nor
+ * conditional requests.
+ *
+ * @since 1.1.10
+ */
+class RemoteRepositoryState
+{
+
+    /**
+     * Key of property that, when set to false, disables conditional refresh of proxy repositories.
+     */
+    static final String CONDITIONAL_REFRESH_PROPERTY = "p2.bridge.proxy.conditionalRefresh";
+
+    static final String[] ARTIFACT_INDEX_FILES =
+        { "artifacts.jar", "artifacts.xml", "compositeArtifacts.jar", "compositeArtifacts.xml" };
+
+    static final String[] METADATA_INDEX_FILES =
+        { "content.jar", "content.xml", "compositeContent.jar", "compositeContent.xml" };
+
+    private static final int TIMEOUT = 30 * 1000;
+
+    private static final String TIMESTAMP = "p2.timestamp";
+
+    private static final String COUNT = "count";
+
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final String timestamp;
+
+    private final Collection<URI> repositories;
+
+    private final List<Validator> validators;
+
+    private RemoteRepositoryState( final String timestamp, final Collection<URI> repositories,
+                                   final List<Validator> validators )
+    {
+        this.timestamp = timestamp;
+        this.repositories = repositories;
+        this.validators = validators;
+    }
+
+    /**
+     * @return p2.timestamp of remote repository, null if it had none
+     */
+    String getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return true if none of the recorded index files changed since the state was captured. Any failure to find out
+     *         counts as changed.
+     */
+    boolean isUnchanged( final URI root, final String username, final String password )
+    {
+        if ( validators.isEmpty() )
+        {
+            return false;
+        }
+        final List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for ( final Validator validator : validators )
+        {
+            tasks.add( new Callable<Boolean>()
+            {
+                public Boolean call()
+                    throws Exception
+                {
+                    return validator.isUnchanged( authorization( root, validator.location, username, password ) );
+                }
+            } );
+        }
+        for ( final Future<Boolean> future : ParallelTasks.invokeAll( tasks, 0 ) )
+        {
+            if ( ParallelTasks.getFailure( future ) != null || !ParallelTasks.get( future ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the validators of the index files of specified repositories. If any repository has no validators (e.g.
+     * the server does not send ETag nor Last-Modified), the state is recorded without validators, so it never
+     * considers the remote repository as unchanged.
+     */
+    static RemoteRepositoryState capture( final Collection<URI> repositories, final String[] indexFiles,
+                                          final URI root, final String username, final String password )
+    {
+        if ( !isEnabled() )
+        {
+            return new RemoteRepositoryState( null, repositories, Collections.<Validator> emptyList() );
+        }
+        final List<Callable<Validator>> tasks = new ArrayList<Callable<Validator>>();
+        for ( final URI repository : repositories )
+        {
+            tasks.add( new Callable<Validator>()
+            {
+                public Validator call()
+                    throws Exception
+                {
+                    for ( final String indexFile : indexFiles )
+                    {
+                        final URI location = resolve( repository, indexFile );
+                        final Validator validator =
+                            Validator.fetch( location, authorization( root, location, username, password ) );
+                        if ( validator != null )
+                        {
+                            return validator;
+                        }
+                    }
+                    return null;
+                }
+            } );
+        }
+        final List<Validator> validators = new ArrayList<Validator>();
+        for ( final Future<Validator> future : ParallelTasks.invokeAll( tasks, 0 ) )
+        {
+            final Validator validator = ParallelTasks.getFailure( future ) == null ? ParallelTasks.get( future ) : null;
+            if ( validator == null || !validator.isUsable() )
+            {
+                return new RemoteRepositoryState( null, repositories, Collections.<Validator> emptyList() );
+            }
+            validators.add( validator );
+        }
+        return new RemoteRepositoryState( null, repositories, validators );
+    }
+
+    /**
+     * @return state stored in specified file, null if there is none (or conditional refresh is disabled)
+     */
+    static RemoteRepositoryState read( final File file )
+    {
+        if ( !isEnabled() || !file.isFile() )
+        {
+            return null;
+        }
+        final Properties properties = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new BufferedInputStream( new FileInputStream( file ) );
+            properties.load( in );
+            final int count = Integer.parseInt( properties.getProperty( COUNT ) );
+            final List<Validator> validators = new ArrayList<Validator>( count );
+            for ( int i = 0; i < count; i++ )
+            {
+                validators.add( new Validator( URI.create( properties.getProperty( i + ".uri" ) ),
+                                               properties.getProperty( i + ".etag" ),
+                                               properties.getProperty( i + ".lastModified" ) ) );
+            }
+            return new RemoteRepositoryState( properties.getProperty( TIMESTAMP ), null, validators );
+        }
+        catch ( final Exception e )
+        {
+            // corrupt, we will just refresh in full
+            return null;
+        }
+        finally
+        {
+            close( in );
+        }
+    }
+
+    /**
+     * Stores the captured validators together with the p2.timestamp of the loaded remote repository. Nothing is stored
+     * if the validators do not cover all loaded repositories (e.g. a composite got new children since the validators
+     * were captured), so the next refresh is a full one.
+     *
+     * @param loaded locations of all repositories the remote repository was loaded from
+     */
+    void write( final File file, final String repositoryTimestamp, final Collection<URI> loaded )
+    {
+        if ( !isEnabled() || repositories == null || !repositories.containsAll( loaded ) )
+        {
+            return;
+        }
+        final Properties properties = new Properties();
+        if ( repositoryTimestamp != null )
+        {
+            properties.setProperty( TIMESTAMP, repositoryTimestamp );
+        }
+        properties.setProperty( COUNT, String.valueOf( validators.size() ) );
+        for ( int i = 0; i < validators.size(); i++ )
+        {
+            final Validator validator = validators.get( i );
+            properties.setProperty( i + ".uri", validator.location.toString() );
+            if ( validator.etag != null )
+            {
+                properties.setProperty( i + ".etag", validator.etag );
+            }
+            if ( validator.lastModified != null )
+            {
+                properties.setProperty( i + ".lastModified", validator.lastModified );
+            }
+        }
+        OutputStream out = null;
+        try
+        {
+            file.getParentFile().mkdirs();
+            out = new BufferedOutputStream( new FileOutputStream( file ) );
+            properties.store( out, null );
+        }
+        catch ( final IOException e )
+        {
+            // without state the next call will refresh in full
+            file.delete();
+        }
+        finally
+        {
+            close( out );
+        }
+    }
+
+    /**
+     * @return true if specified location is a local directory containing one of specified files
+     */
+    static boolean isPresent( final URI location, final String... files )
+    {
+        if ( location == null || !"file".equals( location.getScheme() ) )
+        {
+            return false;
+        }
+        final File directory = new File( location );
+        for ( final String file : files )
+        {
+            if ( new File( directory, file ).isFile() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isEnabled()
+    {
+        return !"false".equalsIgnoreCase( FrameworkProperties.getProperty( CONDITIONAL_REFRESH_PROPERTY ) );
+    }
+
+    private static URI resolve( final URI repository, final String file )
+    {
+        final String base = repository.toString();
+        return URI.create( base.endsWith( "/" ) ? base + file : base + "/" + file );
+    }
+
+    /**
+     * Credentials are only sent to the host of the proxied repository, as p2 does.
+     */
+    private static String authorization( final URI root, final URI location, final String username,
+                                         final String password )
+    {
+        if ( username == null || password == null || root.getHost() == null
+            || !root.getHost().equalsIgnoreCase( location.getHost() ) )
+        {
+            return null;
+        }
+        try
+        {
+            return "Basic " + base64( ( username + ":" + password ).getBytes( "UTF-8" ) );
+        }
+        catch ( final UnsupportedEncodingException e )
+        {
+            // will not happen
+            return null;
+        }
+    }
+
+    private static String base64( final byte[] data )
+    {
+        final StringBuilder out = new StringBuilder( ( data.length + 2 ) / 3 * 4 );
+        for ( int i = 0; i < data.length; i += 3 )
+        {
+            final int b0 = data[i] & 0xFF;
+            final int b1 = i + 1 < data.length ? data[i + 1] & 0xFF : 0;
+            final int b2 = i + 2 < data.length ? data[i + 2] & 0xFF : 0;
+            out.append( BASE64[b0 >>> 2] );
+            out.append( BASE64[( ( b0 & 0x03 ) << 4 ) | ( b1 >>> 4 )] );
+            out.append( i + 1 < data.length ? BASE64[( ( b1 & 0x0F ) << 2 ) | ( b2 >>> 6 )] : '=' );
+            out.append( i + 2 < data.length ? BASE64[b2 & 0x3F] : '=' );
+        }
+        return out.toString();
+    }
+
+    /**
+     * Opens a connection through the proxy p2 would use for location, if any. Proxy credentials are set as well,
+     * though HTTPS tunnels get them from the default authenticator (see {@link HttpProxyService}).
+     */
+    private static URLConnection open( final URI location )
+        throws IOException
+    {
+        final IProxyData proxy = selectProxy( location );
+        if ( proxy == null || proxy.getHost() == null )
+        {
+            return location.toURL().openConnection();
+        }
+        final URLConnection connection =
+            location.toURL().openConnection( new Proxy( Proxy.Type.HTTP, new InetSocketAddress( proxy.getHost(),
+                                                                                                proxy.getPort() ) ) );
+        if ( proxy.isRequiresAuthentication() && proxy.getUserId() != null && proxy.getPassword() != null )
+        {
+            connection.setRequestProperty( "Proxy-Authorization", "Basic "
+                + base64( ( proxy.getUserId() + ":" + proxy.getPassword() ).getBytes( "UTF-8" ) ) );
+        }
+        return connection;
+    }
+
+    private static IProxyData selectProxy( final URI location )
+    {
+        try
+        {
+            final IProxyData[] proxies = ProxyManager.getProxyManager().select( location );
+            return proxies == null || proxies.length == 0 ? null : proxies[0];
+        }
+        catch ( final RuntimeException e )
+        {
+            // proxy configuration not available (e.g. not running in OSGi)
+            return null;
+        }
+    }
+
+    private static void close( final Closeable closeable )
+    {
+        if ( closeable != null )
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch ( final IOException ignore )
+            {
+            }
+        }
+    }
+
+    /**
+     * Validators of one index file. For local files the size is used as etag.
+     */
+    private static class Validator
+    {
+
+        private final URI location;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        Validator( final URI location, final String etag, final String lastModified )
+        {
+            this.location = location;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        boolean isUsable()
+        {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * @return validators of specified index file, null if it does not exist
+         */
+        static Validator fetch( final URI location, final String authorization )
+            throws IOException
+        {
+            if ( "file".equals( location.getScheme() ) )
+            {
+                final File file = new File( location );
+                return file.isFile() ? new Validator( location, String.valueOf( file.length() ),
+                                                      String.valueOf( file.lastModified() ) ) : null;
+            }
+            final HttpURLConnection connection = head( location, authorization );
+            if ( connection == null )
+            {
+                // not http, cannot be validated
+                return new Validator( location, null, null );
+            }
+            try
+            {
+                final int status = connection.getResponseCode();
+                if ( status == HttpURLConnection.HTTP_NOT_FOUND )
+                {
+                    return null;
+                }
+                if ( status != HttpURLConnection.HTTP_OK )
+                {
+                    return new Validator( location, null, null );
+                }
+                return new Validator( location, connection.getHeaderField( "ETag" ),
+                                      connection.getHeaderField( "Last-Modified" ) );
+            }
+            finally
+            {
+                connection.disconnect();
+            }
+        }
+
+        boolean isUnchanged( final String authorization )
+            throws IOException
+        {
+            if ( "file".equals( location.getScheme() ) )
+            {
+                final File file = new File( location );
+                return file.isFile() && String.valueOf( file.length() ).equals( etag )
+                    && String.valueOf( file.lastModified() ).equals( lastModified );
+            }
+            final HttpURLConnection connection = head( location, authorization );
+            if ( connection == null )
+            {
+                return false;
+            }
+            try
+            {
+                if ( etag != null )
+                {
+                    connection.setRequestProperty( "If-None-Match", etag );
+                }
+                if ( lastModified != null )
+                {
+                    connection.setRequestProperty( "If-Modified-Since", lastModified );
+                }
+                final int status = connection.getResponseCode();
+                if ( status == HttpURLConnection.HTTP_NOT_MODIFIED )
+                {
+                    return true;
+                }
+                // some servers ignore conditional headers on HEAD requests
+                return status == HttpURLConnection.HTTP_OK && ( etag != null || lastModified != null )
+                    && equal( etag, connection.getHeaderField( "ETag" ) )
+                    && equal( lastModified, connection.getHeaderField( "Last-Modified" ) );
+            }
+            finally
+            {
+                connection.disconnect();
+            }
+        }
+
+        private static boolean equal( final String expected, final String actual )
+        {
+            return expected == null || expected.equals( actual );
+        }
+
+        private static HttpURLConnection head( final URI location, final String authorization )
+            throws IOException
+        {
+            final URLConnection connection = open( location );
+            if ( !( connection instanceof HttpURLConnection ) )
+            {
+                return null;
+            }
+            final HttpURLConnection http = (HttpURLConnection) connection;
+            http.setRequestMethod( "HEAD" );
+            http.setConnectTimeout( TIMEOUT );
+            http.setReadTimeout( TIMEOUT );
+            http.setUseCaches( false );
+            if ( authorization != null )
+            {
+                http.setRequestProperty( "Authorization", authorization );
+            }
+            return http;
+        }
+
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.equinox.p2.core.ProvisionException;
+import org.eclipse.equinox.p2.repository.IRepository;
+
+/**
+ * Process wide cache of loaded local repositories. An entry is only used as long as the repository files did not change
+ * (last modified and size) and the p2.timestamp property of the cached instance was not changed in the mean time.
+ * Entries are evicted in least recently used order once the total weight of cached repositories exceeds the configured
+ * maximum.
+ *
+ * @param <R> type of cached repositories
+ * @param <M> type of repository manager used to load repositories
+ * @since 1.1.10
+ */
+abstract class RepositoryCache<R extends IRepository<?>, M>
+{
+
+    /**
+     * Files modified less than this amount of milliseconds before they were loaded could have been changed again
+     * without changing the last modified time, so such entries are not trusted.
+     */
+    private static final long RACY_INTERVAL = 2000;
+
+    private final String[] contentFiles;
+
+    private final long maxWeight;
+
+    private final LinkedHashMap<URI, Entry<R>> entries = new LinkedHashMap<URI, Entry<R>>( 16, 0.75f, true );
+
+    private long totalWeight;
+
+    RepositoryCache( final long maxWeight, final String... contentFiles )
+    {
+        this.maxWeight = Math.max( 0, maxWeight );
+        this.contentFiles = contentFiles;
+    }
+
+    /**
+     * Returns the repository at specified location, out of cache if the cached one is still up to date, otherwise
+     * loaded via specified manager (and cached if possible).
+     */
+    R load( final M manager, final URI location )
+        throws ProvisionException
+    {
+        final File directory = getDirectory( location );
+        if ( maxWeight == 0 || directory == null )
+        {
+            return loadRepository( manager, location );
+        }
+
+        final long[] fingerprint = fingerprint( directory, contentFiles );
+        synchronized ( this )
+        {
+            final Entry<R> entry = entries.get( location );
+            if ( entry != null )
+            {
+                if ( entry.isValid( fingerprint ) )
+                {
+                    return entry.repository;
+                }
+                remove( location );
+            }
+        }
+
+        final long loadTime = System.currentTimeMillis();
+        final R repository = loadRepository( manager, location );
+        if ( isCacheable( repository ) && !isRacy( fingerprint, loadTime ) )
+        {
+            put( location, new Entry<R>( repository, fingerprint, weigh( repository ) ) );
+        }
+        return repository;
+    }
+
+    /**
+     * Records that specified repository, loaded from specified location, was modified and saved by the caller. The
+     * repository replaces the cached one, if any, so the modification does not cost a reload. As for loaded
+     * repositories, it is not cached while its files were modified too recently to be trusted, which is usually the
+     * case right after the save; the cached one is dropped then.
+     */
+    void update( final URI location, final R repository )
+    {
+        final File directory = getDirectory( location );
+        if ( maxWeight == 0 || directory == null || !isCacheable( repository ) )
+        {
+            invalidate( location );
+            return;
+        }
+        final long[] fingerprint = fingerprint( directory, contentFiles );
+        if ( isRacy( fingerprint, System.currentTimeMillis() ) )
+        {
+            invalidate( location );
+            return;
+        }
+        put( location, new Entry<R>( repository, fingerprint, weigh( repository ) ) );
+    }
+
+    /**
+     * Drops the cached repository at specified location, if any.
+     */
+    synchronized void invalidate( final URI location )
+    {
+        remove( location );
+    }
+
+    abstract R loadRepository( M manager, URI location )
+        throws ProvisionException;
+
+    abstract boolean isCacheable( R repository );
+
+    /**
+     * Weight of a repository, accounted against the maximum weight of the cache.
+     */
+    abstract int weigh( R repository );
+
+    private synchronized void put( final URI location, final Entry<R> entry )
+    {
+        remove( location );
+        if ( entry.weight > maxWeight )
+        {
+            return;
+        }
+        entries.put( location, entry );
+        totalWeight += entry.weight;
+        final Iterator<Map.Entry<URI, Entry<R>>> it = entries.entrySet().iterator();
+        while ( totalWeight > maxWeight && it.hasNext() )
+        {
+            totalWeight -= it.next().getValue().weight;
+            it.remove();
+        }
+    }
+
+    private void remove( final URI location )
+    {
+        final Entry<R> removed = entries.remove( location );
+        if ( removed != null )
+        {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    /**
+     * @return local directory of specified location, null if location is not a local directory
+     */
+    static File getDirectory( final URI location )
+    {
+        if ( location == null || !"file".equals( location.getScheme() ) )
+        {
+            return null;
+        }
+        try
+        {
+            final File directory = new File( location );
+            return directory.isDirectory() ? directory : null;
+        }
+        catch ( final IllegalArgumentException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Last modified and size of each content file, -1 for files that do not exist.
+     */
+    static long[] fingerprint( final File directory, final String... contentFiles )
+    {
+        final long[] fingerprint = new long[contentFiles.length * 2];
+        for ( int i = 0; i < contentFiles.length; i++ )
+        {
+            final File file = new File( directory, contentFiles[i] );
+            final boolean exists = file.isFile();
+            fingerprint[i * 2] = exists ? file.lastModified() : -1;
+            fingerprint[i * 2 + 1] = exists ? file.length() : -1;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return true if any of the content files was modified less than {@link #RACY_INTERVAL} before specified time,
+     *         so it could change again without its fingerprint changing
+     */
+    static boolean isRacy( final long[] fingerprint, final long loadTime )
+    {
+        for ( int i = 0; i < fingerprint.length; i += 2 )
+        {
+            if ( loadTime - fingerprint[i] < RACY_INTERVAL )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Entry<R extends IRepository<?>>
+    {
+
+        private final R repository;
+
+        private final long[] fingerprint;
+
+        private final String timestamp;
+
+        private final int weight;
+
+        Entry( final R repository, final long[] fingerprint, final int weight )
+        {
+            this.repository = repository;
+            this.fingerprint = fingerprint;
+            this.timestamp = repository.getProperty( IRepository.PROP_TIMESTAMP );
+            this.weight = weight;
+        }
+
+        boolean isValid( final long[] currentFingerprint )
+        {
+            if ( !Arrays.equals( fingerprint, currentFingerprint ) )
+            {
+                return false;
+            }
+            final String currentTimestamp = repository.getProperty( IRepository.PROP_TIMESTAMP );
+            return timestamp == null ? currentTimestamp == null : timestamp.equals( currentTimestamp );
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.equinox.p2.metadata.IArtifactKey;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IInstallableUnitFragment;
+import org.eclipse.equinox.p2.metadata.IRequirement;
+import org.sonatype.p2.bridge.IUIdentity;
+import org.sonatype.p2.bridge.ValidationListener;
+
+/**
+ * Checks installable units against a capability index (requirements) and a set of artifact keys (artifacts). Units
+ * are checked concurrently, in chunks. The same requirement is shared by many units, so whether it is satisfied is
+ * looked up once.
+ *
+ * @since 1.1.10
+ */
+class RepositoryValidator
+{
+
+    private final CapabilityIndex index;
+
+    /**
+     * Keys of available artifacts, null if artifacts are not checked.
+     */
+    private final Set<IArtifactKey> artifactKeys;
+
+    private final ValidationListener listener;
+
+    private final ModelTranslator translator = new ModelTranslator();
+
+    private final ConcurrentMap<IRequirement, Boolean> satisfied = new ConcurrentHashMap<IRequirement, Boolean>();
+
+    private final AtomicInteger problems = new AtomicInteger();
+
+    RepositoryValidator( final CapabilityIndex index, final Set<IArtifactKey> artifactKeys,
+                         final ValidationListener listener )
+    {
+        this.index = index;
+        this.artifactKeys = artifactKeys;
+        this.listener = listener;
+    }
+
+    /**
+     * @return number of problems found
+     */
+    int validate( final List<IInstallableUnit> units, final int threads )
+    {
+        ParallelTasks.invokeChunks( units, threads, new ParallelTasks.ChunkTask<IInstallableUnit, Object>()
+        {
+            public Object call( final List<IInstallableUnit> chunk )
+            {
+                for ( final IInstallableUnit iu : chunk )
+                {
+                    validate( iu );
+                }
+                return null;
+            }
+        } );
+        return problems.get();
+    }
+
+    private void validate( final IInstallableUnit iu )
+    {
+        final IUIdentity identity = new IUIdentity( iu.getId(), iu.getVersion().toString() );
+        for ( final IRequirement requirement : getRequirements( iu ) )
+        {
+            // optional requirements may stay unsatisfied; negative ones say what must not be there
+            if ( requirement.getMin() == 0 || requirement.getMax() == 0 )
+            {
+                continue;
+            }
+            if ( !isSatisfied( requirement ) )
+            {
+                problems.incrementAndGet();
+                synchronized ( listener )
+                {
+                    listener.unsatisfiedRequirement( identity, translator.createRequiredCapability( requirement ) );
+                }
+            }
+        }
+        if ( artifactKeys == null )
+        {
+            return;
+        }
+        for ( final IArtifactKey key : iu.getArtifacts() )
+        {
+            if ( !artifactKeys.contains( key ) )
+            {
+                problems.incrementAndGet();
+                synchronized ( listener )
+                {
+                    listener.missingArtifact( identity, translator.createArtifact( key ) );
+                }
+            }
+        }
+    }
+
+    private static Collection<IRequirement> getRequirements( final IInstallableUnit iu )
+    {
+        if ( !( iu instanceof IInstallableUnitFragment ) )
+        {
+            return iu.getRequirements();
+        }
+        // host requirements are usually among the requirements as well
+        final Collection<IRequirement> requirements = new LinkedHashSet<IRequirement>( iu.getRequirements() );
+        requirements.addAll( ( (IInstallableUnitFragment) iu ).getHost() );
+        return requirements;
+    }
+
+    /**
+     * Two threads may look up the same requirement at once; both get the same answer.
+     */
+    private boolean isSatisfied( final IRequirement requirement )
+    {
+        Boolean result = satisfied.get( requirement );
+        if ( result == null )
+        {
+            result = !index.getProviders( requirement ).isEmpty();
+            satisfied.put( requirement, result );
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.eclipse.equinox.internal.p2.artifact.repository.simple.SimpleArtifactRepository;
+import org.eclipse.equinox.internal.p2.artifact.repository.simple.SimpleArtifactRepositoryIO;
+import org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository;
+import org.eclipse.equinox.internal.p2.metadata.repository.MetadataRepositoryIO;
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+import org.eclipse.equinox.p2.repository.IRepository;
+import org.eclipse.osgi.framework.internal.core.FrameworkProperties;
+
+/**
+ * Saves local metadata and simple artifact repositories in place of p2. Units and descriptors are streamed straight
+ * into a temporary file next to the index file, which is renamed over the index file once complete, so a failed save
+ * never leaves a partial index file behind. The rename is atomic only where the file system can rename over an existing
+ * file; elsewhere the index file is removed before the rename. All repositories, and all variants (compressed and
+ * plain) of each, are written concurrently.
+ * <p>
+ * p2 saves a repository after every change. Changes made between {@link #suspendSave(IRepository)} and
+ * {@link #resumeSave(IRepository)} are not saved by p2, so they can be saved once by this writer.
+ *
+ * @since 1.1.10
+ */
+class RepositoryWriter
+{
+
+    /**
+     * Key of property that, when set to true, makes the writer produce both the compressed (jar) and the plain (xml)
+     * index file of each repository, instead of only the one selected by the repository p2.compressed property.
+     */
+    static final String ALL_VARIANTS_PROPERTY = "p2.bridge.writer.allVariants";
+
+    private static final String DISABLE_SAVE_FIELD = "disableSave";
+
+    private static final String PROPERTIES_FIELD = "properties";
+
+    private final IProvisioningAgent agent;
+
+    RepositoryWriter( final IProvisioningAgent agent )
+    {
+        this.agent = agent;
+    }
+
+    /**
+     * Stops p2 from saving specified repository on changes. Repositories p2 does not allow that for keep saving
+     * themselves as usual.
+     */
+    static void suspendSave( final IRepository<?> repository )
+    {
+        setDisableSave( repository, true );
+    }
+
+    /**
+     * Lets p2 save specified repository on changes again. Does not save it.
+     */
+    static void resumeSave( final IRepository<?> repository )
+    {
+        setDisableSave( repository, false );
+    }
+
+    private static void setDisableSave( final IRepository<?> repository, final boolean value )
+    {
+        final Field field = findField( repository.getClass(), DISABLE_SAVE_FIELD );
+        if ( field == null )
+        {
+            // p2 keeps saving on every change
+            return;
+        }
+        try
+        {
+            field.setBoolean( repository, value );
+        }
+        catch ( final IllegalAccessException e )
+        {
+            // as above
+        }
+    }
+
+    /**
+     * Sets (or, if value is null, removes) a property of specified repository, without saving it. Set without going
+     * through {@link IRepository#setProperty(String, String)}, which makes p2 save the repository and reload it in
+     * its manager.
+     */
+    @SuppressWarnings( "unchecked" )
+    static void setProperty( final IRepository<?> repository, final String key, final String value )
+    {
+        final Field field = findField( repository.getClass(), PROPERTIES_FIELD );
+        if ( field != null )
+        {
+            try
+            {
+                synchronized ( repository )
+                {
+                    final Map<String, String> properties = (Map<String, String>) field.get( repository );
+                    if ( value == null )
+                    {
+                        properties.remove( key );
+                    }
+                    else
+                    {
+                        properties.put( key, value );
+                    }
+                }
+                return;
+            }
+            catch ( final IllegalAccessException e )
+            {
+                // fall back to the public way
+            }
+        }
+        repository.setProperty( key, value );
+    }
+
+    private static Field findField( final Class<?> type, final String name )
+    {
+        Class<?> clazz = type;
+        while ( clazz != null )
+        {
+            try
+            {
+                final Field field = clazz.getDeclaredField( name );
+                field.setAccessible( true );
+                return field;
+            }
+            catch ( final NoSuchFieldException e )
+            {
+                clazz = clazz.getSuperclass();
+            }
+            catch ( final SecurityException e )
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Saves specified repositories, which must be local metadata repositories or simple artifact repositories. p2 is
+     * left saving them on changes afterwards.
+     *
+     * @throws RuntimeException if any of the repositories could not be saved. Index files of the others are written.
+     */
+    void save( final IRepository<?>... repositories )
+    {
+        final boolean allVariants = "true".equalsIgnoreCase( FrameworkProperties.getProperty( ALL_VARIANTS_PROPERTY ) );
+        final String timestamp = Long.toString( System.currentTimeMillis() );
+
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        final List<File> staleFiles = new ArrayList<File>();
+        try
+        {
+            for ( final IRepository<?> repository : repositories )
+            {
+                final String baseName = getBaseName( repository );
+                suspendSave( repository );
+                // as p2 does, so repository caches notice the change
+                setProperty( repository, IRepository.PROP_TIMESTAMP, timestamp );
+
+                final File directory = new File( repository.getLocation() );
+                final boolean compressed =
+                    "true".equalsIgnoreCase( repository.getProperty( IRepository.PROP_COMPRESSED ) );
+                tasks.add( new WriteTask( repository, directory, baseName, compressed ) );
+                if ( allVariants )
+                {
+                    tasks.add( new WriteTask( repository, directory, baseName, !compressed ) );
+                }
+                else
+                {
+                    staleFiles.add( new File( directory, baseName + ( compressed ? ".xml" : ".jar" ) ) );
+                }
+            }
+
+            final List<Future<Object>> futures = ParallelTasks.invokeAll( tasks, 0 );
+            for ( final Future<Object> future : futures )
+            {
+                ParallelTasks.get( future );
+            }
+        }
+        finally
+        {
+            for ( final IRepository<?> repository : repositories )
+            {
+                resumeSave( repository );
+            }
+        }
+        // the other variant would take precedence (jar) or be out of date, so remove it, as p2 does
+        for ( final File staleFile : staleFiles )
+        {
+            staleFile.delete();
+        }
+    }
+
+    private static String getBaseName( final IRepository<?> repository )
+    {
+        if ( repository instanceof LocalMetadataRepository )
+        {
+            return "content";
+        }
+        if ( repository instanceof SimpleArtifactRepository )
+        {
+            return "artifacts";
+        }
+        throw new RuntimeException( String.format(
+            "Cannot save repository [%s] as it is not of expected type (LocalMetadataRepository or SimpleArtifactRepository)",
+            repository.getLocation() ) );
+    }
+
+    private class WriteTask
+        implements Callable<Object>
+    {
+
+        private final IRepository<?> repository;
+
+        private final File directory;
+
+        private final String baseName;
+
+        private final boolean compressed;
+
+        WriteTask( final IRepository<?> repository, final File directory, final String baseName,
+                   final boolean compressed )
+        {
+            this.repository = repository;
+            this.directory = directory;
+            this.baseName = baseName;
+            this.compressed = compressed;
+        }
+
+        public Object call()
+        {
+            final File file = new File( directory, baseName + ( compressed ? ".jar" : ".xml" ) );
+            final File temp = Utils.createTempFile( "." + file.getName() + "-", ".tmp", directory );
+            try
+            {
+                directory.mkdirs();
+                final OutputStream fileStream = new BufferedOutputStream( new FileOutputStream( temp ) );
+                final JarOutputStream jarStream = compressed ? new JarOutputStream( fileStream ) : null;
+                final OutputStream out = compressed ? jarStream : fileStream;
+                try
+                {
+                    if ( compressed )
+                    {
+                        jarStream.putNextEntry( new JarEntry( baseName + ".xml" ) );
+                    }
+                    if ( repository instanceof LocalMetadataRepository )
+                    {
+                        new MetadataRepositoryIO( agent ).write( (LocalMetadataRepository) repository, out );
+                    }
+                    else
+                    {
+                        new SimpleArtifactRepositoryIO( agent ).write( (SimpleArtifactRepository) repository, out );
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+                // rename replaces the target in place on unix. Elsewhere (windows) it fails if the target exists,
+                // so the target is removed first: that fallback is not atomic, readers may briefly find no index
+                // file, and if the second rename fails too the previous index file is lost (the repository has to
+                // be saved again)
+                if ( !temp.renameTo( file ) && !( file.delete() && temp.renameTo( file ) ) )
+                {
+                    throw new IOException( String.format( "Cannot rename [%s] to [%s]", temp, file ) );
+                }
+                return null;
+            }
+            catch ( final IOException e )
+            {
+                temp.delete();
+                throw new RuntimeException( String.format( "Cannot save repository [%s] due to [%s]",
+                                                           repository.getLocation(), e.getMessage() ), e );
+            }
+        }
+
+    }
+
+}
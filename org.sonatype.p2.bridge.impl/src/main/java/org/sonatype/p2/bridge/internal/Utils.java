@@ -7,8 +7,11 @@
  */
 package org.sonatype.p2.bridge.internal;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -83,6 +86,28 @@ class Utils
         return result;
     }
 
+    static int getIntProperty( final String key, final int defaultValue )
+    {
+        return (int) getLongProperty( key, defaultValue );
+    }
+
+    static long getLongProperty( final String key, final long defaultValue )
+    {
+        final String value = FrameworkProperties.getProperty( key );
+        if ( value == null || value.trim().length() == 0 )
+        {
+            return defaultValue;
+        }
+        try
+        {
+            return Long.parseLong( value.trim() );
+        }
+        catch ( final NumberFormatException e )
+        {
+            return defaultValue;
+        }
+    }
+
     static File temporaryAgentLocation()
     {
         final File agentDir = Utils.createTempFile( "p2-agent-", "", null );
@@ -120,6 +145,25 @@ class Utils
         }
     }
 
+    /**
+     * @return hex encoded digest of file content, null if file could not be read or algorithm is not available
+     */
+    static String getDigest( final String alg, final File file )
+    {
+        try
+        {
+            return getDigest( alg, new BufferedInputStream( new FileInputStream( file ) ) );
+        }
+        catch ( final FileNotFoundException e )
+        {
+            return null;
+        }
+        catch ( final NoSuchAlgorithmException e )
+        {
+            return null;
+        }
+    }
+
     private static String getMd5Digest( final String content )
     {
         try
@@ -185,7 +229,7 @@ class Utils
     private static final char[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e',
         'f' };
 
-    private static char[] encodeHex( final byte[] data )
+    static char[] encodeHex( final byte[] data )
     {
         final int l = data.length;
 
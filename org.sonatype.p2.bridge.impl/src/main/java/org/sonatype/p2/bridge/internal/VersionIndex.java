@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IVersionedId;
+import org.eclipse.equinox.p2.metadata.Version;
+import org.eclipse.equinox.p2.metadata.VersionRange;
+import org.eclipse.equinox.p2.metadata.VersionedId;
+import org.eclipse.equinox.p2.query.QueryUtil;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepository;
+import org.sonatype.p2.bridge.IUIdentity;
+
+/**
+ * Versions of all installable units of a set of metadata repositories, by id, and whether they are groups. Built with
+ * one pass over the repositories, so any number of version lookups can be answered without querying them again.
+ * <p>
+ * The index of a local simple repository can be stored next to its content file, so it can be answered from without
+ * loading the repository. The stored index records last modified and size of the content files it was built from and
+ * is ignored as soon as they change. Content files modified shortly before the index was stored could change again
+ * without changing last modified nor size, so for them the index also records their digest, checked on every read.
+ *
+ * @since 1.1.10
+ */
+class VersionIndex
+{
+
+    static final String FILE_NAME = "content.index";
+
+    private static final String[] CONTENT_FILES = { "content.jar", "content.xml" };
+
+    private static final int MAGIC = 0x70326978;
+
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Content files modified less than this amount of milliseconds before the index was stored could have been changed
+     * again without changing the last modified time, so they are checked by digest.
+     */
+    private static final long RACY_INTERVAL = 2000;
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private final Map<String, SortedMap<Version, Boolean>> units = new HashMap<String, SortedMap<Version, Boolean>>();
+
+    static VersionIndex build( final Collection<IMetadataRepository> repositories )
+    {
+        final VersionIndex index = new VersionIndex();
+        for ( final IMetadataRepository repository : repositories )
+        {
+            final Iterator<IInstallableUnit> it = repository.query( QueryUtil.ALL_UNITS, null ).iterator();
+            while ( it.hasNext() )
+            {
+                final IInstallableUnit iu = it.next();
+                index.add( iu.getId(), iu.getVersion(), QueryUtil.isGroup( iu ) );
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads the stored indexes of specified repositories.
+     *
+     * @return merged index of all repositories or null if any of them has no stored index or an outdated one
+     */
+    static VersionIndex read( final URI... locations )
+    {
+        final VersionIndex index = new VersionIndex();
+        for ( final URI location : locations )
+        {
+            final File directory = getDirectory( location );
+            if ( directory == null || !index.read( directory ) )
+            {
+                return null;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Takes the fingerprint of the content files of the local repository at specified location, to be passed to
+     * {@link #write(URI, long[])}. To be taken right after the repository is saved, so it is the one of the content
+     * files this index is built from, even if they are saved again before the index is written.
+     *
+     * @return fingerprint or null if the location is not local
+     */
+    static long[] fingerprint( final URI location )
+    {
+        final File directory = getDirectory( location );
+        return directory == null ? null : fingerprint( directory );
+    }
+
+    /**
+     * Stores this index next to the content file of the local repository at specified location. Nothing is stored if
+     * the location is not local, and the stored index is dropped if the content files do not have specified
+     * fingerprint anymore. Failures are ignored, as the stored index is only an optimization.
+     *
+     * @param fingerprint of the content files this index was built from, as taken by {@link #fingerprint(URI)}
+     */
+    void write( final URI location, final long[] fingerprint )
+    {
+        final File directory = getDirectory( location );
+        if ( directory == null || fingerprint == null )
+        {
+            return;
+        }
+        final File file = new File( directory, FILE_NAME );
+        final File temp = Utils.createTempFile( "." + FILE_NAME + "-", ".tmp", directory );
+        try
+        {
+            final long writeTime = System.currentTimeMillis();
+            final DataOutputStream out =
+                new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+            try
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( FORMAT_VERSION );
+                for ( final long value : fingerprint )
+                {
+                    out.writeLong( value );
+                }
+                final boolean racy = isRacy( fingerprint, writeTime );
+                out.writeBoolean( racy );
+                if ( racy )
+                {
+                    for ( final String digest : digests( directory ) )
+                    {
+                        out.writeUTF( digest );
+                    }
+                }
+                out.writeInt( units.size() );
+                for ( final Map.Entry<String, SortedMap<Version, Boolean>> unit : units.entrySet() )
+                {
+                    out.writeUTF( unit.getKey() );
+                    out.writeInt( unit.getValue().size() );
+                    for ( final Map.Entry<Version, Boolean> version : unit.getValue().entrySet() )
+                    {
+                        out.writeUTF( version.getKey().toString() );
+                        out.writeBoolean( version.getValue() );
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            if ( !Arrays.equals( fingerprint, fingerprint( directory ) ) )
+            {
+                // saved again since, so the digests could be of other content and the units are outdated
+                temp.delete();
+                file.delete();
+                return;
+            }
+            // rename replaces the target in place on unix; elsewhere it has to be removed first
+            if ( !temp.renameTo( file ) && !( file.delete() && temp.renameTo( file ) ) )
+            {
+                temp.delete();
+            }
+        }
+        catch ( final IOException e )
+        {
+            temp.delete();
+            file.delete();
+        }
+    }
+
+    /**
+     * Drops the stored index of the repository at specified location, if any.
+     */
+    static void delete( final URI location )
+    {
+        final File directory = getDirectory( location );
+        if ( directory != null )
+        {
+            new File( directory, FILE_NAME ).delete();
+        }
+    }
+
+    private boolean read( final File directory )
+    {
+        final File file = new File( directory, FILE_NAME );
+        if ( !file.isFile() )
+        {
+            return false;
+        }
+        try
+        {
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try
+            {
+                if ( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION )
+                {
+                    return false;
+                }
+                for ( final long value : fingerprint( directory ) )
+                {
+                    if ( in.readLong() != value )
+                    {
+                        return false;
+                    }
+                }
+                if ( in.readBoolean() )
+                {
+                    for ( final String digest : digests( directory ) )
+                    {
+                        if ( !in.readUTF().equals( digest ) )
+                        {
+                            return false;
+                        }
+                    }
+                }
+                final int unitCount = in.readInt();
+                for ( int i = 0; i < unitCount; i++ )
+                {
+                    final String id = in.readUTF();
+                    final int versionCount = in.readInt();
+                    for ( int j = 0; j < versionCount; j++ )
+                    {
+                        add( id, Version.create( in.readUTF() ), in.readBoolean() );
+                    }
+                }
+                return true;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( final Exception e )
+        {
+            // unreadable index is as good as no index
+            return false;
+        }
+    }
+
+    /**
+     * Last modified and size of each content file, -1 for files that do not exist.
+     */
+    private static long[] fingerprint( final File directory )
+    {
+        final long[] fingerprint = new long[CONTENT_FILES.length * 2];
+        for ( int i = 0; i < CONTENT_FILES.length; i++ )
+        {
+            final File file = new File( directory, CONTENT_FILES[i] );
+            final boolean exists = file.isFile();
+            fingerprint[i * 2] = exists ? file.lastModified() : -1;
+            fingerprint[i * 2 + 1] = exists ? file.length() : -1;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return true if any of the existing content files was modified less than {@link #RACY_INTERVAL} before time
+     */
+    private static boolean isRacy( final long[] fingerprint, final long time )
+    {
+        for ( int i = 0; i < fingerprint.length; i += 2 )
+        {
+            if ( fingerprint[i] != -1 && time - fingerprint[i] < RACY_INTERVAL )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Digest of each content file, empty for files that do not exist.
+     */
+    private static String[] digests( final File directory )
+        throws IOException
+    {
+        final String[] digests = new String[CONTENT_FILES.length];
+        for ( int i = 0; i < CONTENT_FILES.length; i++ )
+        {
+            final File file = new File( directory, CONTENT_FILES[i] );
+            digests[i] = file.isFile() ? Utils.getDigest( DIGEST_ALGORITHM, file ) : "";
+            if ( digests[i] == null )
+            {
+                throw new IOException( String.format( "Cannot compute digest of [%s]", file ) );
+            }
+        }
+        return digests;
+    }
+
+    private static File getDirectory( final URI location )
+    {
+        if ( location == null || !"file".equals( location.getScheme() ) )
+        {
+            return null;
+        }
+        try
+        {
+            final File directory = new File( location );
+            return directory.isDirectory() ? directory : null;
+        }
+        catch ( final IllegalArgumentException e )
+        {
+            return null;
+        }
+    }
+
+    void add( final String id, final Version version, final boolean group )
+    {
+        SortedMap<Version, Boolean> versions = units.get( id );
+        if ( versions == null )
+        {
+            versions = new TreeMap<Version, Boolean>();
+            units.put( id, versions );
+        }
+        final Boolean previous = versions.put( version, group );
+        if ( previous != null && previous )
+        {
+            // same unit in more repositories; it is a group if any of them says so
+            versions.put( version, previous );
+        }
+    }
+
+    /**
+     * @return ids of all indexed units
+     */
+    Set<String> getIds()
+    {
+        return units.keySet();
+    }
+
+    /**
+     * Adds the versions matching specified IU spec to found. Same semantics as querying the repositories with
+     * {@link QueryUtil#createIUQuery(String, VersionRange)}.
+     *
+     * @param spec IU spec (id or id/version)
+     * @param onlyUpdates if true, only versions greater then the version from spec, otherwise only the version from spec
+     *            (all versions if spec has no version)
+     * @param found where to add the found versions
+     */
+    void collectVersions( final String spec, final boolean onlyUpdates, final Collection<IUIdentity> found )
+    {
+        final IVersionedId versionedId = VersionedId.parse( spec );
+        final SortedMap<Version, Boolean> versions = units.get( versionedId.getId() );
+        if ( versions == null )
+        {
+            return;
+        }
+        final Version version = versionedId.getVersion();
+        VersionRange range = VersionRange.emptyRange;
+        if ( !Version.emptyVersion.equals( version ) )
+        {
+            range = new VersionRange( version, !onlyUpdates, onlyUpdates ? null : version, true );
+        }
+        for ( final Version candidate : versions.tailMap( range.getMinimum() ).keySet() )
+        {
+            if ( range.isIncluded( candidate ) )
+            {
+                found.add( new IUIdentity( versionedId.getId(), candidate.toString() ) );
+            }
+            else if ( candidate.compareTo( range.getMaximum() ) > 0 )
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds all group units to found.
+     */
+    void collectGroups( final Collection<IUIdentity> found )
+    {
+        for ( final Map.Entry<String, SortedMap<Version, Boolean>> unit : units.entrySet() )
+        {
+            for ( final Map.Entry<Version, Boolean> version : unit.getValue().entrySet() )
+            {
+                if ( version.getValue() )
+                {
+                    found.add( new IUIdentity( unit.getKey(), version.getKey().toString() ) );
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+import org.eclipse.equinox.p2.core.IProvisioningAgentProvider;
+import org.eclipse.equinox.p2.query.IQuery;
+import org.eclipse.equinox.p2.query.IQueryResult;
+import org.eclipse.equinox.p2.repository.IRepositoryManager;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepositoryManager;
+import org.junit.After;
+import org.junit.Test;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class AgentPoolTest
+    extends TestSupport
+{
+
+    private final TestAgentProvider provider = new TestAgentProvider();
+
+    @After
+    public void stopAgents()
+    {
+        for ( final TestAgent agent : provider.created )
+        {
+            agent.stop();
+            Utils.deleteIfPossible( agent.getDirectory() );
+        }
+    }
+
+    @Test
+    public void releasedAgentIsResetAndReused()
+        throws Exception
+    {
+        final AgentPool pool = new AgentPool( provider, 2, 60000 );
+        final TestAgent agent = (TestAgent) pool.borrow();
+        agent.metadataManager.addRepository( new URI( "file:/repo" ) );
+        agent.metadataManager.unavailableRepositories = new Object();
+
+        assertTrue( pool.release( agent ) );
+
+        assertEquals( 0, agent.metadataManager.getKnownRepositories( IRepositoryManager.REPOSITORIES_ALL ).length );
+        assertNull( agent.metadataManager.unavailableRepositories );
+        assertEquals( 1, pool.getIdleCount() );
+        assertSame( agent, pool.borrow() );
+        assertEquals( 1, provider.created.size() );
+        assertFalse( agent.stopped );
+    }
+
+    @Test
+    public void agentsAboveMaxSizeAreDisposed()
+        throws Exception
+    {
+        final AgentPool pool = new AgentPool( provider, 1, 60000 );
+        final TestAgent agent1 = (TestAgent) pool.borrow();
+        final TestAgent agent2 = (TestAgent) pool.borrow();
+        assertNotSame( agent1, agent2 );
+
+        pool.release( agent1 );
+        pool.release( agent2 );
+
+        assertEquals( 1, pool.getIdleCount() );
+        assertFalse( agent1.stopped );
+        assertTrue( agent2.stopped );
+        assertFalse( agent2.getDirectory().exists() );
+    }
+
+    @Test
+    public void maxSizeZeroDisablesPooling()
+        throws Exception
+    {
+        final AgentPool pool = new AgentPool( provider, 0, 60000 );
+        final TestAgent agent = (TestAgent) pool.borrow();
+
+        pool.release( agent );
+
+        assertEquals( 0, pool.getIdleCount() );
+        assertTrue( agent.stopped );
+        assertFalse( agent.getDirectory().exists() );
+    }
+
+    @Test
+    public void expiredAgentsAreDisposedOnBorrow()
+        throws Exception
+    {
+        final AgentPool pool = new AgentPool( provider, 2, -1 );
+        final TestAgent agent = (TestAgent) pool.borrow();
+        pool.release( agent );
+
+        final IProvisioningAgent borrowed = pool.borrow();
+
+        assertNotSame( agent, borrowed );
+        assertTrue( agent.stopped );
+        assertFalse( agent.getDirectory().exists() );
+    }
+
+    @Test
+    public void expiredAgentsAreDisposedOnRelease()
+        throws Exception
+    {
+        final AgentPool pool = new AgentPool( provider, 2, -1 );
+        final TestAgent agent1 = (TestAgent) pool.borrow();
+        final TestAgent agent2 = (TestAgent) pool.borrow();
+        pool.release( agent1 );
+
+        pool.release( agent2 );
+
+        assertTrue( agent1.stopped );
+        assertFalse( agent1.getDirectory().exists() );
+        assertFalse( agent2.stopped );
+        assertEquals( 1, pool.getIdleCount() );
+    }
+
+    @Test
+    public void unhealthyAgentIsDiscarded()
+        throws Exception
+    {
+        final AgentPool pool = new AgentPool( provider, 2, 60000 );
+        final TestAgent agent = (TestAgent) pool.borrow();
+        pool.release( agent );
+        Utils.deleteIfPossible( agent.getDirectory() );
+
+        final IProvisioningAgent borrowed = pool.borrow();
+
+        assertNotSame( agent, borrowed );
+        assertTrue( agent.stopped );
+        assertEquals( 2, provider.created.size() );
+    }
+
+    @Test
+    public void agentIsNotReusedIfNotFoundRepositoriesCannotBeCleared()
+        throws Exception
+    {
+        final TestAgentProvider provider = new TestAgentProvider()
+        {
+            @Override
+            TestAgent create( final URI location )
+            {
+                final TestAgent agent = super.create( location );
+                agent.services.put( IArtifactRepositoryManager.SERVICE_NAME, new TestRepositoryManagerWithoutField() );
+                return agent;
+            }
+        };
+        final AgentPool pool = new AgentPool( provider, 2, 60000 );
+        final TestAgent agent = (TestAgent) pool.borrow();
+
+        pool.release( agent );
+
+        assertEquals( 0, pool.getIdleCount() );
+        assertTrue( agent.stopped );
+        assertFalse( agent.getDirectory().exists() );
+    }
+
+    @Test
+    public void foreignAgentIsLeftUntouched()
+        throws Exception
+    {
+        final AgentPool pool = new AgentPool( provider, 2, 60000 );
+        final TestAgent agent = provider.createAgent( Utils.temporaryAgentLocation().toURI().resolve( ".p2" ) );
+
+        assertFalse( pool.release( agent ) );
+        assertFalse( agent.stopped );
+        assertTrue( agent.getDirectory().exists() );
+    }
+
+    @Test
+    public void agentBorrowedBeforeProviderChangeIsDisposedOnRelease()
+        throws Exception
+    {
+        final AbstractService service = new AbstractService()
+        {
+        };
+        service.setProvisioningAgentProvider( provider );
+        final TestAgent agent = (TestAgent) service.acquireProvisioningAgent();
+        service.setProvisioningAgentProvider( new TestAgentProvider() );
+
+        service.releaseProvisioningAgent( agent );
+
+        assertTrue( agent.stopped );
+        assertFalse( agent.getDirectory().exists() );
+    }
+
+    static class TestAgentProvider
+        implements IProvisioningAgentProvider
+    {
+
+        final List<TestAgent> created = new ArrayList<TestAgent>();
+
+        public TestAgent createAgent( final URI location )
+        {
+            final TestAgent agent = create( location );
+            created.add( agent );
+            return agent;
+        }
+
+        TestAgent create( final URI location )
+        {
+            return new TestAgent( location );
+        }
+
+    }
+
+    static class TestAgent
+        implements IProvisioningAgent
+    {
+
+        final URI location;
+
+        final Map<String, Object> services = new HashMap<String, Object>();
+
+        final TestRepositoryManager metadataManager = new TestRepositoryManager();
+
+        boolean stopped;
+
+        TestAgent( final URI location )
+        {
+            this.location = location;
+            services.put( IMetadataRepositoryManager.SERVICE_NAME, metadataManager );
+            services.put( IArtifactRepositoryManager.SERVICE_NAME, new TestRepositoryManager() );
+        }
+
+        /**
+         * Directory created for the agent by the pool, parent of its p2 location.
+         */
+        File getDirectory()
+        {
+            return new File( location ).getParentFile();
+        }
+
+        public Object getService( final String serviceName )
+        {
+            if ( stopped )
+            {
+                throw new IllegalStateException( "Attempt to access stopped agent" );
+            }
+            return services.get( serviceName );
+        }
+
+        public void registerService( final String serviceName, final Object service )
+        {
+            services.put( serviceName, service );
+        }
+
+        public void unregisterService( final String serviceName, final Object service )
+        {
+            services.remove( serviceName );
+        }
+
+        public void stop()
+        {
+            stopped = true;
+        }
+
+    }
+
+    /**
+     * Has the field the pool clears in p2 repository managers.
+     */
+    static class TestRepositoryManager
+        extends TestRepositoryManagerWithoutField
+    {
+
+        Object unavailableRepositories;
+
+    }
+
+    static class TestRepositoryManagerWithoutField
+        implements IRepositoryManager<Object>
+    {
+
+        private final Set<URI> known = new LinkedHashSet<URI>();
+
+        public void addRepository( final URI location )
+        {
+            known.add( location );
+        }
+
+        public boolean removeRepository( final URI location )
+        {
+            return known.remove( location );
+        }
+
+        public boolean contains( final URI location )
+        {
+            return known.contains( location );
+        }
+
+        public URI[] getKnownRepositories( final int flags )
+        {
+            return known.toArray( new URI[known.size()] );
+        }
+
+        public IProvisioningAgent getAgent()
+        {
+            return null;
+        }
+
+        public String getRepositoryProperty( final URI location, final String key )
+        {
+            return null;
+        }
+
+        public void setRepositoryProperty( final URI location, final String key, final String value )
+        {
+        }
+
+        public boolean isEnabled( final URI location )
+        {
+            return true;
+        }
+
+        public void setEnabled( final URI location, final boolean enablement )
+        {
+        }
+
+        public IQueryResult<Object> query( final IQuery<Object> query, final IProgressMonitor monitor )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
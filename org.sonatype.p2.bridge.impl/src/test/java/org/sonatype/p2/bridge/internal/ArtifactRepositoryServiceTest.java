@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepository;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.p2.bridge.ArtifactResolver;
+import org.sonatype.p2.bridge.CopyStrategy;
+import org.sonatype.p2.bridge.GcResult;
+import org.sonatype.p2.bridge.ResolveOptions;
+import org.sonatype.p2.bridge.ResolveResult;
+import org.sonatype.p2.bridge.model.InstallableArtifact;
+import org.sonatype.p2.bridge.model.InstallableArtifactProperty;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class ArtifactRepositoryServiceTest
+    extends TestSupport
+{
+
+    private static final int ARTIFACTS = 50;
+
+    private static final String CONTENT = "resolved content";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ArtifactRepositoryService service = new ArtifactRepositoryService();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+
+    private final List<IProvisioningAgent> agents = new ArrayList<IProvisioningAgent>();
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        TestRuntime.install();
+        service.setProvisioningAgentProvider( TestRuntime.getAgentProvider() );
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        for ( final IProvisioningAgent agent : agents )
+        {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void readersNeverSeeRepositoryBeingWritten()
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, artifacts( "a", 0 ), "repo", null, null );
+        // only repositories older than the racy window are kept in the cache
+        makeOld( location );
+
+        final AtomicBoolean writing = new AtomicBoolean( true );
+        final List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+        for ( int i = 0; i < 3; i++ )
+        {
+            readers.add( executor.submit( new Callable<Integer>()
+            {
+                public Integer call()
+                {
+                    int reads = 0;
+                    do
+                    {
+                        assertEquals( ARTIFACTS, service.getInstallableArtifacts( location ).size() );
+                        reads++;
+                    }
+                    while ( writing.get() );
+                    return reads;
+                }
+            } ) );
+        }
+        try
+        {
+            for ( int version = 1; version <= 20; version++ )
+            {
+                service.write( location, artifacts( "a", version ), "repo", null, null );
+            }
+        }
+        finally
+        {
+            writing.set( false );
+        }
+        for ( final Future<Integer> reader : readers )
+        {
+            reader.get();
+        }
+        assertEquals( ARTIFACTS, service.getInstallableArtifacts( location ).size() );
+    }
+
+    @Test
+    public void concurrentMergesIntoSameDestinationKeepAllArtifacts()
+        throws Exception
+    {
+        final URI destination = TestRuntime.uri( folder.newFolder( "destination" ) );
+        service.write( destination, artifacts( "initial", 0 ), "destination", null, null );
+        makeOld( destination );
+
+        final List<URI> sources = new ArrayList<URI>();
+        for ( int i = 0; i < 8; i++ )
+        {
+            final URI source = TestRuntime.uri( folder.newFolder( "source" + i ) );
+            service.write( source, artifacts( "source" + i, 0 ), "source" + i, null, null );
+            sources.add( source );
+        }
+        final List<Future<Object>> merges = new ArrayList<Future<Object>>();
+        for ( final URI source : sources )
+        {
+            merges.add( executor.submit( new Callable<Object>()
+            {
+                public Object call()
+                {
+                    return service.merge( Collections.singletonList( source ), destination );
+                }
+            } ) );
+        }
+        for ( final Future<Object> merge : merges )
+        {
+            merge.get();
+        }
+
+        final Set<String> expected = new TreeSet<String>();
+        expected.addAll( ids( artifacts( "initial", 0 ) ) );
+        for ( int i = 0; i < sources.size(); i++ )
+        {
+            expected.addAll( ids( artifacts( "source" + i, 0 ) ) );
+        }
+        assertEquals( expected, ids( service.getInstallableArtifacts( destination ) ) );
+    }
+
+    @Test
+    public void repositoriesSavedShortlyBeforeAreNotCachedOnUpdate()
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, artifacts( "a", 0 ), "repo", null, null );
+        final ArtifactRepositoryCache cache = new ArtifactRepositoryCache( 1000 );
+        final IArtifactRepository repository = manager().loadRepository( location, null );
+
+        cache.update( location, repository );
+        assertNotSame( repository, cache.load( manager(), location ) );
+
+        makeOld( location );
+        cache.update( location, repository );
+        assertSame( repository, cache.load( manager(), location ) );
+    }
+
+    @Test
+    public void resolveCopiesByDefault()
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, mavenArtifacts( 3 ), "repo", null, null );
+
+        final ResolveResult result = service.resolve( location, resolver(), null );
+
+        assertEquals( CopyStrategy.TRANSFER, new ResolveOptions().getCopyStrategy() );
+        assertEquals( 3, result.getResolved() );
+        assertEquals( 3 * CONTENT.length(), result.getBytesCopied() );
+        assertEquals( 0, result.getBytesLinked() );
+        assertResolvedIndependently( location, 3 );
+    }
+
+    @Test
+    public void resolveLinksWhenAskedTo()
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, mavenArtifacts( 3 ), "repo", null, null );
+        final ResolveOptions options = new ResolveOptions();
+        options.setCopyStrategy( CopyStrategy.LINK );
+
+        final ResolveResult result = service.resolve( location, resolver(), options );
+
+        assertEquals( 3, result.getResolved() );
+        assertEquals( 0, result.getBytesCopied() );
+        assertEquals( 3 * CONTENT.length(), result.getBytesLinked() );
+    }
+
+    @Test
+    public void resolveStreams()
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, mavenArtifacts( 3 ), "repo", null, null );
+        final ResolveOptions options = new ResolveOptions();
+        options.setCopyStrategy( CopyStrategy.STREAM );
+
+        final ResolveResult result = service.resolve( location, resolver(), options );
+
+        assertEquals( 3, result.getResolved() );
+        assertEquals( 3 * CONTENT.length(), result.getBytesCopied() );
+        assertEquals( 0, result.getBytesLinked() );
+        assertResolvedIndependently( location, 3 );
+    }
+
+    @Test
+    public void gcKeepsFilesOfFolderArtifactsAndChecksumsOfReferencedFiles()
+        throws Exception
+    {
+        final File directory = gcRepository();
+
+        final GcResult result = service.gc( directory.toURI(), false );
+
+        assertEquals( paths( "plugins/c_1.0.0.jar", "plugins/c_1.0.0.jar.sha1", "plugins/old_1.0.0/about.html",
+                             "plugins/old_1.0.0/lib/old.jar" ), paths( directory, result.getFiles() ) );
+        assertEquals( 4 * CONTENT.length(), result.getBytesReclaimed() );
+        assertEquals( 0, result.getFailed() );
+        assertFalse( result.isDryRun() );
+        assertEquals( paths( ".lock", "a_1.0.0.jar", "a_1.0.0.jar.md5", "b_1.0.0" ),
+                      paths( new File( directory, "plugins" ).list() ) );
+        final File folderArtifact = new File( directory, "plugins/b_1.0.0" );
+        assertEquals( paths( "META-INF/MANIFEST.MF", "lib/b.jar" ), paths( folderArtifact, walk( folderArtifact ) ) );
+        assertTrue( new File( directory, "artifacts.xml" ).isFile() );
+        assertEquals( 0, service.gc( directory.toURI(), false ).getFiles().size() );
+    }
+
+    @Test
+    public void gcDryRunOnlyReportsOrphanedFiles()
+        throws Exception
+    {
+        final File directory = gcRepository();
+        final Set<String> before = paths( directory, walk( directory ) );
+
+        final GcResult result = service.gc( directory.toURI(), true );
+
+        assertEquals( paths( "plugins/c_1.0.0.jar", "plugins/c_1.0.0.jar.sha1", "plugins/old_1.0.0/about.html",
+                             "plugins/old_1.0.0/lib/old.jar" ), paths( directory, result.getFiles() ) );
+        assertEquals( 4 * CONTENT.length(), result.getBytesReclaimed() );
+        assertTrue( result.isDryRun() );
+        assertEquals( before, paths( directory, walk( directory ) ) );
+    }
+
+    @Test
+    public void gcNeverCollectsFilesOfArtifactsWrittenConcurrently()
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        final ArtifactResolver resolver = resolver();
+        final File plugins = new File( new File( location ), "plugins" );
+        service.write( location, mavenArtifacts( 3 ), "repo", null, null );
+
+        final AtomicBoolean writing = new AtomicBoolean( true );
+        final Future<Integer> collector = executor.submit( new Callable<Integer>()
+        {
+            public Integer call()
+            {
+                int collected = 0;
+                while ( writing.get() )
+                {
+                    collected += service.gc( location, false ).getFiles().size();
+                }
+                return collected;
+            }
+        } );
+        try
+        {
+            for ( int version = 1; version <= 200; version++ )
+            {
+                final List<InstallableArtifact> artifacts = mavenArtifacts( 3 );
+                for ( final InstallableArtifact artifact : artifacts )
+                {
+                    artifact.setVersion( "1.0." + version );
+                }
+                service.write( location, artifacts, "repo", null, null );
+                service.resolve( location, resolver, null );
+                // files of the former versions are orphans by now, the ones just resolved are not
+                for ( int i = 0; i < 3; i++ )
+                {
+                    assertTrue( new File( plugins, "bundle" + i + "_1.0." + version + ".jar" ).isFile() );
+                }
+            }
+        }
+        finally
+        {
+            writing.set( false );
+        }
+        collector.get();
+        service.gc( location, false );
+        assertEquals( paths( "bundle0_1.0.200.jar", "bundle1_1.0.200.jar", "bundle2_1.0.200.jar" ),
+                      paths( plugins.list() ) );
+    }
+
+    private static List<InstallableArtifact> artifacts( final String prefix, final int version )
+    {
+        final List<InstallableArtifact> artifacts = new ArrayList<InstallableArtifact>();
+        for ( int i = 0; i < ARTIFACTS; i++ )
+        {
+            final InstallableArtifact artifact = new InstallableArtifact();
+            artifact.setClassifier( "osgi.bundle" );
+            artifact.setId( prefix + "." + i );
+            artifact.setVersion( "1.0." + version );
+            artifacts.add( artifact );
+        }
+        return artifacts;
+    }
+
+    private static List<InstallableArtifact> mavenArtifacts( final int count )
+    {
+        final List<InstallableArtifact> artifacts = new ArrayList<InstallableArtifact>();
+        for ( int i = 0; i < count; i++ )
+        {
+            final InstallableArtifact artifact = new InstallableArtifact();
+            artifact.setClassifier( "osgi.bundle" );
+            artifact.setId( "bundle" + i );
+            artifact.setVersion( "1.0.0" );
+            addProperty( artifact, "org.apache.maven.artifact.groupId", "group" );
+            addProperty( artifact, "org.apache.maven.artifact.artifactId", "bundle" + i );
+            addProperty( artifact, "org.apache.maven.artifact.version", "1.0.0" );
+            addProperty( artifact, "org.apache.maven.artifact.extension", "jar" );
+            artifacts.add( artifact );
+        }
+        return artifacts;
+    }
+
+    private static void addProperty( final InstallableArtifact artifact, final String name, final String value )
+    {
+        final InstallableArtifactProperty property = new InstallableArtifactProperty();
+        property.setName( name );
+        property.setValue( value );
+        artifact.addProperty( property );
+    }
+
+    /**
+     * Resolves artifacts to files in a local "maven repository", one per artifact id.
+     */
+    private ArtifactResolver resolver()
+    {
+        final File resolved = folder.newFolder( "resolved" );
+        return new ArtifactResolver()
+        {
+            public File resolveArtifactFile( final String groupId, final String artifactId, final String version,
+                                             final String extension, final String classifier )
+                throws Exception
+            {
+                return FileTransferTest.write( new File( resolved, artifactId + "." + extension ), CONTENT );
+            }
+        };
+    }
+
+    /**
+     * Resolved files are changed after resolution, repository files must not follow.
+     */
+    private void assertResolvedIndependently( final URI location, final int count )
+        throws IOException
+    {
+        final File resolved = new File( folder.getRoot(), "resolved" );
+        for ( int i = 0; i < count; i++ )
+        {
+            FileTransferTest.write( new File( resolved, "bundle" + i + ".jar" ), "changed" );
+        }
+        final File plugins = new File( new File( location ), "plugins" );
+        for ( int i = 0; i < count; i++ )
+        {
+            assertEquals( CONTENT, FileTransferTest.read( new File( plugins, "bundle" + i + "_1.0.0.jar" ) ) );
+        }
+    }
+
+    private static Set<String> ids( final Collection<InstallableArtifact> artifacts )
+    {
+        final Set<String> ids = new TreeSet<String>();
+        for ( final InstallableArtifact artifact : artifacts )
+        {
+            ids.add( artifact.getId() + ":" + artifact.getVersion() );
+        }
+        return ids;
+    }
+
+    /**
+     * Writes a repository of a jar artifact "a" and a folder artifact "b" (artifact.folder=true), with their files, a
+     * checksum of "a", a hidden file, and the orphaned files of a jar artifact "c" (plus its checksum) and of a folder
+     * artifact "old".
+     *
+     * @return repository directory
+     */
+    private File gcRepository()
+        throws Exception
+    {
+        final File directory = folder.newFolder( "repo" );
+        final InstallableArtifact jar = new InstallableArtifact();
+        jar.setClassifier( "osgi.bundle" );
+        jar.setId( "a" );
+        jar.setVersion( "1.0.0" );
+        final InstallableArtifact dir = new InstallableArtifact();
+        dir.setClassifier( "osgi.bundle" );
+        dir.setId( "b" );
+        dir.setVersion( "1.0.0" );
+        addProperty( dir, "artifact.folder", "true" );
+        service.write( directory.toURI(), Arrays.asList( jar, dir ), "repo", null, null );
+
+        for ( final String path : new String[] { "plugins/a_1.0.0.jar", "plugins/a_1.0.0.jar.md5",
+            "plugins/b_1.0.0/META-INF/MANIFEST.MF", "plugins/b_1.0.0/lib/b.jar", "plugins/.lock",
+            "plugins/c_1.0.0.jar", "plugins/c_1.0.0.jar.sha1", "plugins/old_1.0.0/about.html",
+            "plugins/old_1.0.0/lib/old.jar" } )
+        {
+            final File file = new File( directory, path );
+            file.getParentFile().mkdirs();
+            FileTransferTest.write( file, CONTENT );
+        }
+        return directory;
+    }
+
+    private static List<File> walk( final File folder )
+    {
+        final List<File> files = new ArrayList<File>();
+        for ( final File child : folder.listFiles() )
+        {
+            if ( child.isDirectory() )
+            {
+                files.addAll( walk( child ) );
+            }
+            else
+            {
+                files.add( child );
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return paths of specified files relative to directory, with forward slashes
+     */
+    private static Set<String> paths( final File directory, final Collection<File> files )
+    {
+        final Set<String> paths = new TreeSet<String>();
+        for ( final File file : files )
+        {
+            paths.add( file.getAbsolutePath().substring( directory.getAbsolutePath().length() + 1 ).replace(
+                File.separatorChar, '/' ) );
+        }
+        return paths;
+    }
+
+    private static Set<String> paths( final String... paths )
+    {
+        return new TreeSet<String>( Arrays.asList( paths ) );
+    }
+
+    /**
+     * @return manager of a new agent, so repositories it loads are new instances
+     */
+    private IArtifactRepositoryManager manager()
+        throws Exception
+    {
+        final IProvisioningAgent agent = TestRuntime.getAgentProvider().createAgent( null );
+        agents.add( agent );
+        return (IArtifactRepositoryManager) agent.getService( IArtifactRepositoryManager.SERVICE_NAME );
+    }
+
+    private static void makeOld( final URI location )
+    {
+        final File[] files = new File( location ).listFiles();
+        if ( files != null )
+        {
+            for ( final File file : files )
+            {
+                file.setLastModified( System.currentTimeMillis() - 60000 );
+            }
+        }
+    }
+
+}
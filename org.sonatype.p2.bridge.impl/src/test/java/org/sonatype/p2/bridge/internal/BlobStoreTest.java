@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.p2.bridge.CopyStrategy;
+import org.sonatype.p2.bridge.GcResult;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class BlobStoreTest
+    extends TestSupport
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File store;
+
+    private BlobStore blobStore;
+
+    private File repo1;
+
+    private File repo2;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        store = folder.newFolder( "store" );
+        blobStore = new BlobStore( store );
+        repo1 = folder.newFolder( "repo1" );
+        repo2 = folder.newFolder( "repo2" );
+    }
+
+    @Test
+    public void sameContentIsStoredOnceAcrossRepositories()
+        throws Exception
+    {
+        final File target1 = add( "same content", repo1, "plugins/a_1.0.0.jar" );
+        final File target2 = add( "same content", repo2, "plugins/b_1.0.0.jar" );
+        add( "other content", repo2, "plugins/c_1.0.0.jar" );
+
+        assertEquals( 2, blobs().size() );
+        final File blob = blob( target1 );
+        assertEquals( "same content", FileTransferTest.read( blob ) );
+        assertEquals( paths( target1, target2 ), references( blob ) );
+        assertEquals( "same content", FileTransferTest.read( target2 ) );
+        // hard links to the blob
+        assertEquals( blob.lastModified(), target1.lastModified() );
+        assertEquals( blob.lastModified(), target2.lastModified() );
+    }
+
+    @Test
+    public void addingSameTargetAgainIsReferencedOnce()
+        throws Exception
+    {
+        final File target = add( "content", repo1, "plugins/a_1.0.0.jar" );
+        target.delete();
+        add( "content", repo1, "plugins/a_1.0.0.jar" );
+
+        assertEquals( 1, blobs().size() );
+        assertEquals( paths( target ), references( blob( target ) ) );
+    }
+
+    @Test
+    public void gcReclaimsOnlyBlobsWithoutLiveReferences()
+        throws Exception
+    {
+        final File kept1 = add( "kept", repo1, "plugins/kept_1.0.0.jar" );
+        final File kept2 = add( "kept", repo2, "plugins/kept_1.0.0.jar" );
+        final File removed = add( "removed", repo1, "plugins/removed_1.0.0.jar" );
+        final File replaced = add( "replaced", repo2, "plugins/replaced_1.0.0.jar" );
+        final File keptBlob = blob( kept1 );
+        final File removedBlob = blob( removed );
+        final File replacedBlob = blob( replaced );
+
+        // repository file deleted, or replaced by a copy instead of being written in place
+        removed.delete();
+        kept2.delete();
+        replaced.delete();
+        FileTransferTest.write( replaced, "replacement" );
+
+        final GcResult result = blobStore.gc( false, 0 );
+
+        assertEquals( paths( removedBlob, replacedBlob ), paths( result.getFiles() ) );
+        assertEquals( "removed".length() + "replaced".length(), result.getBytesReclaimed() );
+        assertEquals( 0, result.getFailed() );
+        assertEquals( paths( keptBlob ), paths( blobs() ) );
+        assertFalse( new File( removedBlob.getPath() + ".refs" ).exists() );
+        assertFalse( new File( replacedBlob.getPath() + ".refs" ).exists() );
+        // dead references of blobs still referenced are forgotten
+        assertEquals( paths( kept1 ), references( keptBlob ) );
+        assertEquals( "kept", FileTransferTest.read( kept1 ) );
+        assertEquals( "replacement", FileTransferTest.read( replaced ) );
+
+        assertEquals( 0, blobStore.gc( false, 0 ).getFiles().size() );
+    }
+
+    @Test
+    public void gcDryRunOnlyReportsUnreferencedBlobs()
+        throws Exception
+    {
+        final File kept = add( "kept", repo1, "plugins/kept_1.0.0.jar" );
+        final File removed = add( "removed", repo1, "plugins/removed_1.0.0.jar" );
+        final File dead = add( "kept", repo2, "plugins/kept_1.0.0.jar" );
+        final File removedBlob = blob( removed );
+        removed.delete();
+        dead.delete();
+        final Set<String> before = paths( walk( store ) );
+
+        final GcResult result = blobStore.gc( true, 0 );
+
+        assertTrue( result.isDryRun() );
+        assertEquals( paths( removedBlob ), paths( result.getFiles() ) );
+        assertEquals( "removed".length(), result.getBytesReclaimed() );
+        assertEquals( before, paths( walk( store ) ) );
+        assertEquals( paths( kept, dead ), references( blob( kept ) ) );
+    }
+
+    @Test
+    public void gcIsSameWhateverTheNumberOfThreads()
+        throws Exception
+    {
+        final List<File> removed = new ArrayList<File>();
+        for ( int i = 0; i < 100; i++ )
+        {
+            final File target = add( "content " + i, repo1, "plugins/a" + i + "_1.0.0.jar" );
+            if ( i % 3 == 0 )
+            {
+                removed.add( blob( target ) );
+                target.delete();
+            }
+        }
+
+        assertEquals( paths( removed ), paths( blobStore.gc( true, 1 ).getFiles() ) );
+        assertEquals( paths( removed ), paths( blobStore.gc( false, 8 ).getFiles() ) );
+        assertEquals( 100 - removed.size(), blobs().size() );
+    }
+
+    /**
+     * Adds a file of specified content to repository, via the store.
+     *
+     * @return the repository file
+     */
+    private File add( final String content, final File repository, final String path )
+        throws IOException
+    {
+        final File source =
+            FileTransferTest.write( File.createTempFile( "source", ".jar", folder.getRoot() ), content );
+        final File target = new File( repository, path );
+        target.getParentFile().mkdirs();
+        assertEquals( CopyStrategy.LINK, blobStore.add( source, target, CopyStrategy.TRANSFER ) );
+        return target;
+    }
+
+    /**
+     * @return blob of the content of specified file
+     */
+    private File blob( final File file )
+    {
+        final String hash = Utils.getDigest( "SHA-256", file );
+        return new File( new File( store, hash.substring( 0, 2 ) ), hash );
+    }
+
+    /**
+     * @return paths of the repository files the references file of blob lists
+     */
+    private static Set<String> references( final File blob )
+        throws IOException
+    {
+        final Set<String> references = new TreeSet<String>();
+        for ( final String line : FileTransferTest.read( new File( blob.getPath() + ".refs" ) ).split( "\n" ) )
+        {
+            references.add( line );
+        }
+        return references;
+    }
+
+    private List<File> blobs()
+    {
+        final List<File> blobs = new ArrayList<File>();
+        for ( final File file : walk( store ) )
+        {
+            if ( !file.getName().endsWith( ".refs" ) )
+            {
+                blobs.add( file );
+            }
+        }
+        return blobs;
+    }
+
+    private static List<File> walk( final File folder )
+    {
+        final List<File> files = new ArrayList<File>();
+        for ( final File child : folder.listFiles() )
+        {
+            if ( child.isDirectory() )
+            {
+                files.addAll( walk( child ) );
+            }
+            else
+            {
+                files.add( child );
+            }
+        }
+        return files;
+    }
+
+    private static Set<String> paths( final File... files )
+    {
+        return paths( Arrays.asList( files ) );
+    }
+
+    private static Set<String> paths( final Collection<File> files )
+    {
+        final Set<String> paths = new TreeSet<String>();
+        for ( final File file : files )
+        {
+            paths.add( file.getAbsolutePath() );
+        }
+        return paths;
+    }
+
+}
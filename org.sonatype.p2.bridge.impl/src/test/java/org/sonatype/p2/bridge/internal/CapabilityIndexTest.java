@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IProvidedCapability;
+import org.eclipse.equinox.p2.metadata.IRequirement;
+import org.eclipse.equinox.p2.metadata.MetadataFactory;
+import org.eclipse.equinox.p2.metadata.MetadataFactory.InstallableUnitDescription;
+import org.eclipse.equinox.p2.metadata.Version;
+import org.eclipse.equinox.p2.metadata.VersionRange;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepository;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepositoryManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.p2.bridge.model.InstallableUnit;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class CapabilityIndexTest
+    extends TestSupport
+{
+
+    private static final String NAMESPACE = "java.package";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MetadataRepositoryService service = new MetadataRepositoryService();
+
+    private final List<IProvisioningAgent> agents = new ArrayList<IProvisioningAgent>();
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        TestRuntime.install();
+        service.setProvisioningAgentProvider( TestRuntime.getAgentProvider() );
+    }
+
+    @After
+    public void tearDown()
+    {
+        for ( final IProvisioningAgent agent : agents )
+        {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void providersAreTheUnitsMatchingTheRequirement()
+    {
+        final List<IInstallableUnit> units = new ArrayList<IInstallableUnit>();
+        units.add( createIU( "a", "1.0.0", "p", "1.0.0" ) );
+        units.add( createIU( "b", "1.0.0", "p", "1.5.0", "p", "2.0.0" ) );
+        units.add( createIU( "c", "1.0.0", "p", "3.0.0", "q", "1.0.0" ) );
+        final CapabilityIndex index = new CapabilityIndex();
+        for ( final IInstallableUnit unit : units )
+        {
+            index.add( unit );
+        }
+
+        for ( final String range : new String[] { null, "[1.0.0,2.0.0)", "[1.5.0,1.5.0]", "2.0.0", "[4.0.0,5.0.0)" } )
+        {
+            final VersionRange versionRange = range == null ? null : new VersionRange( range );
+            final IRequirement requirement =
+                MetadataFactory.createRequirement( NAMESPACE, "p", versionRange, null, false, false );
+            final List<IInstallableUnit> expected = new ArrayList<IInstallableUnit>();
+            for ( final IInstallableUnit unit : units )
+            {
+                if ( requirement.isMatch( unit ) )
+                {
+                    expected.add( unit );
+                }
+            }
+            assertEquals( range, expected, new ArrayList<IInstallableUnit>( index.getProviders( requirement ) ) );
+            assertEquals( range, expected,
+                          new ArrayList<IInstallableUnit>( index.getProviders( NAMESPACE, "p", versionRange ) ) );
+        }
+        assertEquals( Collections.emptyList(),
+                      new ArrayList<IInstallableUnit>( index.getProviders( "other", "p", null ) ) );
+    }
+
+    @Test
+    public void indexIsReusedForOtherInstancesOfUnchangedRepositories()
+        throws Exception
+    {
+        final URI location = repository( "repo", "a", "b" );
+        final CapabilityIndex.Cache cache = new CapabilityIndex.Cache( 100 );
+
+        final CapabilityIndex index = cache.get( load( location ) );
+
+        assertSame( index, cache.get( load( location ) ) );
+        assertEquals( 2, cache.getTotalUnits() );
+    }
+
+    @Test
+    public void indexIsRebuiltWhenContentChanges()
+        throws Exception
+    {
+        final URI location = repository( "repo", "a", "b" );
+        final CapabilityIndex.Cache cache = new CapabilityIndex.Cache( 100 );
+        final CapabilityIndex index = cache.get( load( location ) );
+
+        final File content = contentFile( location );
+        content.setLastModified( content.lastModified() + 1000 );
+
+        final CapabilityIndex rebuilt = cache.get( load( location ) );
+        assertNotSame( index, rebuilt );
+        assertSame( rebuilt, cache.get( load( location ) ) );
+        // the index of the former content is left to eviction
+        assertEquals( 2, cache.size() );
+        assertEquals( 4, cache.getTotalUnits() );
+    }
+
+    @Test
+    public void repositoriesChangedShortlyBeforeAreNotCached()
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, Arrays.asList( VersionIndexTest.unit( "a", "1.0.0" ) ), "repo", null );
+        final Collection<IMetadataRepository> repositories = load( location );
+
+        assertNull( CapabilityIndex.Key.of( repositories, System.currentTimeMillis() ) );
+        final CapabilityIndex.Cache cache = new CapabilityIndex.Cache( 100 );
+        assertNotSame( cache.get( repositories ), cache.get( repositories ) );
+        assertEquals( 0, cache.size() );
+    }
+
+    @Test
+    public void cacheIsBoundedByNumberOfUnits()
+        throws Exception
+    {
+        final URI small1 = repository( "small1", "a", "b" );
+        final URI small2 = repository( "small2", "c", "d" );
+        final URI large = repository( "large", "e", "f", "g", "h" );
+        final CapabilityIndex.Cache cache = new CapabilityIndex.Cache( 3 );
+
+        final CapabilityIndex index1 = cache.get( load( small1 ) );
+        final CapabilityIndex index2 = cache.get( load( small2 ) );
+
+        assertEquals( 1, cache.size() );
+        assertEquals( 2, cache.getTotalUnits() );
+        assertSame( index2, cache.get( load( small2 ) ) );
+        assertNotSame( index1, cache.get( load( small1 ) ) );
+
+        cache.get( load( large ) );
+        assertEquals( 1, cache.size() );
+        assertEquals( 2, cache.getTotalUnits() );
+    }
+
+    @Test
+    public void setsOfRepositoriesAreCachedAsAWhole()
+        throws Exception
+    {
+        final URI repo1 = repository( "repo1", "a" );
+        final URI repo2 = repository( "repo2", "b" );
+        final CapabilityIndex.Cache cache = new CapabilityIndex.Cache( 100 );
+        final List<IMetadataRepository> both = new ArrayList<IMetadataRepository>( load( repo1 ) );
+        both.addAll( load( repo2 ) );
+
+        final CapabilityIndex index = cache.get( both );
+
+        assertEquals( 2, index.getUnits().size() );
+        assertSame( index, cache.get( both ) );
+        assertNotSame( index, cache.get( load( repo1 ) ) );
+        Collections.reverse( both );
+        assertNotSame( index, cache.get( both ) );
+    }
+
+    @Test
+    public void cachingCanBeDisabled()
+        throws Exception
+    {
+        final URI location = repository( "repo", "a" );
+        final CapabilityIndex.Cache cache = new CapabilityIndex.Cache( 0 );
+
+        assertNotSame( cache.get( load( location ) ), cache.get( load( location ) ) );
+        assertEquals( 0, cache.size() );
+    }
+
+    /**
+     * Writes a repository with one unit per id, each providing a capability named after its id, and moves its content
+     * files out of the racy window.
+     */
+    private URI repository( final String name, final String... ids )
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( name ) );
+        final List<InstallableUnit> units = new ArrayList<InstallableUnit>();
+        for ( final String id : ids )
+        {
+            units.add( VersionIndexTest.unit( id, "1.0.0" ) );
+        }
+        service.write( location, units, name, null );
+        final File content = contentFile( location );
+        content.setLastModified( System.currentTimeMillis() - 60000 );
+        return location;
+    }
+
+    private static File contentFile( final URI location )
+    {
+        final File jar = new File( new File( location ), "content.jar" );
+        return jar.isFile() ? jar : new File( new File( location ), "content.xml" );
+    }
+
+    /**
+     * @return repository at location, as loaded by a new agent (so a new instance each time)
+     */
+    private Collection<IMetadataRepository> load( final URI location )
+        throws Exception
+    {
+        final IProvisioningAgent agent = TestRuntime.getAgentProvider().createAgent( null );
+        agents.add( agent );
+        final IMetadataRepositoryManager manager =
+            (IMetadataRepositoryManager) agent.getService( IMetadataRepositoryManager.SERVICE_NAME );
+        return Collections.singletonList( manager.loadRepository( location, null ) );
+    }
+
+    /**
+     * @param capabilities pairs of name and version of the provided capabilities (in {@link #NAMESPACE})
+     */
+    private static IInstallableUnit createIU( final String id, final String version, final String... capabilities )
+    {
+        final InstallableUnitDescription description = new InstallableUnitDescription();
+        description.setId( id );
+        description.setVersion( Version.create( version ) );
+        final List<IProvidedCapability> provided = new ArrayList<IProvidedCapability>();
+        for ( int i = 0; i < capabilities.length; i += 2 )
+        {
+            provided.add( MetadataFactory.createProvidedCapability( NAMESPACE, capabilities[i],
+                                                                    Version.create( capabilities[i + 1] ) ) );
+        }
+        description.setCapabilities( provided.toArray( new IProvidedCapability[provided.size()] ) );
+        return MetadataFactory.createInstallableUnit( description );
+    }
+
+}
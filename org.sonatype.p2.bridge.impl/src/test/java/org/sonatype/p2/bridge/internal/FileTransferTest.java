@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.p2.bridge.CopyStrategy;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class FileTransferTest
+    extends TestSupport
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void linkSharesContentWithSource()
+        throws Exception
+    {
+        final File source = write( folder.newFile( "source" ), "content" );
+        final File target = new File( folder.getRoot(), "target" );
+
+        assertEquals( CopyStrategy.LINK, FileTransfer.transfer( source, target, CopyStrategy.LINK ) );
+
+        append( source, "-changed" );
+        assertEquals( "content-changed", read( target ) );
+    }
+
+    @Test
+    public void transferAndStreamCopy()
+        throws Exception
+    {
+        final File source = write( folder.newFile( "source" ), "content" );
+        final File transferred = new File( folder.getRoot(), "transferred" );
+        final File streamed = new File( folder.getRoot(), "streamed" );
+
+        assertEquals( CopyStrategy.TRANSFER, FileTransfer.transfer( source, transferred, CopyStrategy.TRANSFER ) );
+        assertEquals( CopyStrategy.STREAM, FileTransfer.transfer( source, streamed, CopyStrategy.STREAM ) );
+
+        append( source, "-changed" );
+        assertEquals( "content", read( transferred ) );
+        assertEquals( "content", read( streamed ) );
+    }
+
+    @Test
+    public void fallbackOrder()
+        throws Exception
+    {
+        final File source = write( folder.newFile( "source" ), "content" );
+        final File target = new File( folder.getRoot(), "target" );
+
+        final RecordingTransfer noLink = new RecordingTransfer( false, true );
+        assertEquals( CopyStrategy.TRANSFER, noLink.copy( source, target, CopyStrategy.LINK ) );
+        assertEquals( Arrays.asList( "link", "channel" ), noLink.steps );
+
+        final RecordingTransfer nothing = new RecordingTransfer( false, false );
+        assertEquals( CopyStrategy.STREAM, nothing.copy( source, target, CopyStrategy.LINK ) );
+        assertEquals( Arrays.asList( "link", "channel", "stream" ), nothing.steps );
+        assertEquals( "content", read( target ) );
+
+        final RecordingTransfer transfer = new RecordingTransfer( true, true );
+        assertEquals( CopyStrategy.TRANSFER, transfer.copy( source, target, CopyStrategy.TRANSFER ) );
+        assertEquals( Arrays.asList( "channel" ), transfer.steps );
+
+        final RecordingTransfer stream = new RecordingTransfer( true, true );
+        assertEquals( CopyStrategy.STREAM, stream.copy( source, target, CopyStrategy.STREAM ) );
+        assertEquals( Arrays.asList( "stream" ), stream.steps );
+    }
+
+    @Test
+    public void copyDoesNotWriteThroughLinkedTarget()
+        throws Exception
+    {
+        final File shared = write( folder.newFile( "shared" ), "shared" );
+        final File target = new File( folder.getRoot(), "target" );
+        FileTransfer.transfer( shared, target, CopyStrategy.LINK );
+        final File source = write( folder.newFile( "source" ), "content" );
+
+        FileTransfer.transfer( source, target, CopyStrategy.TRANSFER );
+
+        assertEquals( "content", read( target ) );
+        assertEquals( "shared", read( shared ) );
+    }
+
+    /**
+     * Records the steps tried, each of them possibly made unavailable.
+     */
+    private static class RecordingTransfer
+        extends FileTransfer
+    {
+
+        private final boolean links;
+
+        private final boolean channels;
+
+        final List<String> steps = new ArrayList<String>();
+
+        RecordingTransfer( final boolean links, final boolean channels )
+        {
+            this.links = links;
+            this.channels = channels;
+        }
+
+        @Override
+        boolean link( final File source, final File target )
+        {
+            steps.add( "link" );
+            return links && super.link( source, target );
+        }
+
+        @Override
+        boolean channelCopy( final File source, final File target )
+            throws IOException
+        {
+            steps.add( "channel" );
+            return channels && super.channelCopy( source, target );
+        }
+
+        @Override
+        void streamCopy( final File source, final File target )
+            throws IOException
+        {
+            steps.add( "stream" );
+            super.streamCopy( source, target );
+        }
+
+    }
+
+    static File write( final File file, final String content )
+        throws IOException
+    {
+        final OutputStream os = new FileOutputStream( file );
+        try
+        {
+            os.write( content.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            os.close();
+        }
+        return file;
+    }
+
+    private static void append( final File file, final String content )
+        throws IOException
+    {
+        final OutputStream os = new FileOutputStream( file, true );
+        try
+        {
+            os.write( content.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    static String read( final File file )
+        throws IOException
+    {
+        final byte[] bytes = new byte[(int) file.length()];
+        final InputStream is = new FileInputStream( file );
+        try
+        {
+            int read = 0;
+            while ( read < bytes.length )
+            {
+                read += is.read( bytes, read, bytes.length - read );
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+        return new String( bytes, "UTF-8" );
+    }
+
+}
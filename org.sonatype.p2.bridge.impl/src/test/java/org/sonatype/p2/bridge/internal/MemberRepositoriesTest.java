@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.equinox.internal.p2.artifact.repository.CompositeArtifactRepository;
+import org.eclipse.equinox.internal.p2.artifact.repository.simple.SimpleArtifactRepository;
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+import org.eclipse.equinox.p2.core.ProvisionException;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class MemberRepositoriesTest
+    extends TestSupport
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IProvisioningAgent agent;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        TestRuntime.install();
+        agent = TestRuntime.getAgentProvider().createAgent( null );
+    }
+
+    @After
+    public void tearDown()
+    {
+        agent.stop();
+    }
+
+    @Test
+    public void simpleRepositoryIsItsOnlyMember()
+        throws Exception
+    {
+        final URI simple = createSimple( "simple" );
+
+        final MemberRepositories members = MemberRepositories.load( newManager(), simple, null, 0 );
+
+        assertEquals( 1, members.getMembers().size() );
+        assertSame( members.getRepository(), members.getMembers().iterator().next() );
+        assertTrue( members.getLoadTimes().isEmpty() );
+    }
+
+    @Test
+    public void childrenAreLoadedBeforeTheirComposites()
+        throws Exception
+    {
+        final URI simple1 = createSimple( "simple1" );
+        final URI simple2 = createSimple( "simple2" );
+        final URI simple3 = createSimple( "simple3" );
+        final URI nested = createComposite( "nested", simple3, simple1 );
+        final URI root = createComposite( "root", simple1, nested, simple2 );
+        final IArtifactRepositoryManager manager = newManager();
+
+        final MemberRepositories members = MemberRepositories.load( manager, root, new NullProgressMonitor(), 2 );
+
+        assertEquals( Arrays.asList( simple1, simple3, simple2 ), locations( members ) );
+        assertEquals( new HashSet<URI>( Arrays.asList( simple1, simple2, simple3 ) ),
+                      members.getLoadTimes().keySet() );
+        assertEquals( Collections.singleton( simple1 ), members.getDuplicates() );
+        assertTrue( members.getCycles().isEmpty() );
+        assertEquals( new HashSet<URI>( Arrays.asList( root, nested, simple1, simple2, simple3 ) ),
+                      members.getLocations() );
+
+        final List<URI> loaded = TestRuntime.getLoaded( manager );
+        for ( final URI simple : Arrays.asList( simple1, simple2, simple3 ) )
+        {
+            assertTrue( loaded.indexOf( simple ) < loaded.indexOf( root ) );
+            assertTrue( loaded.indexOf( simple ) < loaded.indexOf( nested ) );
+        }
+    }
+
+    @Test
+    public void missingChildFailsOnceAllOthersArePreloaded()
+        throws Exception
+    {
+        final URI simple = createSimple( "simple" );
+        final URI missing = TestRuntime.uri( folder.newFolder( "missing" ) );
+        final URI root = createComposite( "root", missing, simple );
+        final IArtifactRepositoryManager manager = newManager();
+
+        try
+        {
+            MemberRepositories.load( manager, root, new NullProgressMonitor(), 0 );
+            fail( "Missing child must fail loading" );
+        }
+        catch ( final ProvisionException e )
+        {
+            assertTrue( e.getMessage().contains( missing.toString() ) );
+        }
+        final List<URI> loaded = TestRuntime.getLoaded( manager );
+        assertEquals( new HashSet<URI>( Arrays.asList( missing, simple ) ),
+                      new HashSet<URI>( loaded.subList( 0, 2 ) ) );
+        assertEquals( root, loaded.get( 2 ) );
+    }
+
+    private URI createSimple( final String name )
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( name ) );
+        agentManager().createRepository( location, name, IArtifactRepositoryManager.TYPE_SIMPLE_REPOSITORY, null );
+        return location;
+    }
+
+    private URI createComposite( final String name, final URI... children )
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( name ) );
+        final CompositeArtifactRepository composite =
+            (CompositeArtifactRepository) agentManager().createRepository(
+                location, name, IArtifactRepositoryManager.TYPE_COMPOSITE_REPOSITORY, null );
+        for ( final URI child : children )
+        {
+            composite.addChild( child );
+        }
+        return location;
+    }
+
+    private IArtifactRepositoryManager agentManager()
+    {
+        return (IArtifactRepositoryManager) agent.getService( IArtifactRepositoryManager.SERVICE_NAME );
+    }
+
+    /**
+     * @return manager of a new agent, that loaded nothing yet
+     */
+    private static IArtifactRepositoryManager newManager()
+        throws Exception
+    {
+        return (IArtifactRepositoryManager) TestRuntime.getAgentProvider().createAgent( null ).getService(
+            IArtifactRepositoryManager.SERVICE_NAME );
+    }
+
+    private static List<URI> locations( final MemberRepositories members )
+    {
+        final List<URI> locations = new ArrayList<URI>();
+        for ( final SimpleArtifactRepository member : members.getMembers() )
+        {
+            locations.add( member.getLocation() );
+        }
+        return locations;
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.p2.bridge.MergeResult;
+import org.sonatype.p2.bridge.MetadataDiffListener;
+import org.sonatype.p2.bridge.model.InstallableUnit;
+import org.sonatype.p2.bridge.model.InstallableUnitProperty;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class MetadataRepositoryServiceTest
+    extends TestSupport
+{
+
+    private static final String[] CONTENT_FILES = { "content.jar", "content.xml", VersionIndex.FILE_NAME };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MetadataRepositoryService service = new MetadataRepositoryService();
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        TestRuntime.install();
+        service.setProvisioningAgentProvider( TestRuntime.getAgentProvider() );
+    }
+
+    @Test
+    public void writeReplacesExistingRepository()
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, Arrays.asList( unit( "a", "1" ), unit( "b", "1" ) ), "repo",
+                       Collections.singletonMap( "first", "1" ) );
+
+        service.write( location, Arrays.asList( unit( "a", "2" ) ), "repo", Collections.singletonMap( "second", "2" ) );
+
+        assertEquals( map( "a", "2" ), revisions( location ) );
+        final Map<String, String> properties = service.getProperties( location );
+        assertNull( properties.get( "first" ) );
+        assertEquals( "2", properties.get( "second" ) );
+    }
+
+    @Test
+    public void writeDoesNotReplaceUnreadableRepository()
+        throws Exception
+    {
+        final File directory = folder.newFolder( "repo" );
+        final File content = FileTransferTest.write( new File( directory, "content.xml" ), "<repository" );
+
+        try
+        {
+            service.write( TestRuntime.uri( directory ), Arrays.asList( unit( "a", "1" ) ), "repo", null );
+            fail( "Expected a failure to read the existing repository" );
+        }
+        catch ( final RuntimeException e )
+        {
+            // the read failure, not a failed attempt to create the repository over it
+            assertTrue( e.getMessage(), e.getMessage().contains( "Unable to read repository" ) );
+            assertEquals( "<repository", FileTransferTest.read( content ) );
+        }
+    }
+
+    @Test
+    public void mergeCountsAddedReplacedAndUnchangedUnits()
+        throws Exception
+    {
+        final URI destination = repository( "destination", unit( "a", "1" ), unit( "b", "1" ) );
+        final URI source = repository( "source", unit( "a", "2" ), unit( "b", "1" ), unit( "c", "1" ) );
+
+        final MergeResult result = service.mergeIncremental( source, destination );
+
+        assertEquals( 1, result.getAdded() );
+        assertEquals( 1, result.getReplaced() );
+        assertEquals( 1, result.getUnchanged() );
+        assertEquals( map( "a", "2", "b", "1", "c", "1" ), revisions( destination ) );
+    }
+
+    @Test
+    public void unchangedMergeLeavesDestinationUntouched()
+        throws Exception
+    {
+        final URI destination = repository( "destination", unit( "a", "1" ), unit( "b", "1" ) );
+        final URI source = repository( "source", unit( "a", "1" ) );
+        final long[] before = makeOld( destination );
+
+        final MergeResult result = service.mergeIncremental( source, destination );
+
+        assertEquals( 0, result.getAdded() );
+        assertEquals( 0, result.getReplaced() );
+        assertEquals( 1, result.getUnchanged() );
+        assertEquals( 0, result.getSaveTime() );
+        assertEquals( Arrays.toString( before ), Arrays.toString( lastModified( destination ) ) );
+        assertEquals( map( "a", "1", "b", "1" ), revisions( destination ) );
+    }
+
+    @Test
+    public void emptySourcesLeaveDestinationUntouched()
+        throws Exception
+    {
+        final URI destination = repository( "destination", unit( "a", "1" ) );
+        final URI source = repository( "source" );
+        final long[] before = makeOld( destination );
+
+        final MergeResult result = service.merge( Arrays.asList( source, source ), destination );
+
+        assertEquals( "0 added, 0 replaced, 0 unchanged (saved in 0 ms)", result.toString() );
+        assertEquals( Arrays.toString( before ), Arrays.toString( lastModified( destination ) ) );
+    }
+
+    @Test
+    public void lastSourceWinsWhenMergingManySources()
+        throws Exception
+    {
+        final URI first = repository( "first", unit( "a", "1" ), unit( "b", "1" ) );
+        final URI second = repository( "second", unit( "a", "2" ), unit( "c", "2" ) );
+        final URI destination = repository( "destination" );
+
+        MergeResult result = service.merge( Arrays.asList( first, second ), destination );
+
+        assertEquals( 3, result.getAdded() );
+        assertEquals( 0, result.getReplaced() );
+        assertEquals( map( "a", "2", "b", "1", "c", "2" ), revisions( destination ) );
+
+        result = service.merge( Arrays.asList( second, first ), destination );
+
+        assertEquals( 0, result.getAdded() );
+        assertEquals( 1, result.getReplaced() );
+        assertEquals( 2, result.getUnchanged() );
+        assertEquals( map( "a", "1", "b", "1", "c", "2" ), revisions( destination ) );
+    }
+
+    @Test
+    public void concurrentMergesIntoSameDestinationKeepAllUnits()
+        throws Exception
+    {
+        final URI destination = repository( "destination", unit( "initial", "1" ) );
+        final List<URI> sources = new ArrayList<URI>();
+        final Map<String, String> expected = map( "initial", "1" );
+        for ( int i = 0; i < 8; i++ )
+        {
+            final String prefix = "source" + i;
+            sources.add( repository( prefix, unit( prefix + ".a", "1" ), unit( prefix + ".b", "1" ) ) );
+            expected.put( prefix + ".a", "1" );
+            expected.put( prefix + ".b", "1" );
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            final List<Future<MergeResult>> merges = new ArrayList<Future<MergeResult>>();
+            for ( final URI source : sources )
+            {
+                merges.add( executor.submit( new Callable<MergeResult>()
+                {
+                    public MergeResult call()
+                    {
+                        return service.merge( Collections.singletonList( source ), destination );
+                    }
+                } ) );
+            }
+            for ( final Future<MergeResult> merge : merges )
+            {
+                assertEquals( 2, merge.get().getAdded() );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals( expected, revisions( destination ) );
+    }
+
+    @Test
+    public void mergeOfOneSourceIsSameAsIncrementalMerge()
+        throws Exception
+    {
+        final URI source = repository( "source", unit( "a", "1" ), unit( "b", "1" ) );
+        final URI destination1 = repository( "destination1", unit( "a", "2" ) );
+        final URI destination2 = repository( "destination2", unit( "a", "2" ) );
+
+        service.merge( source, destination1 );
+        final MergeResult result = service.merge( Collections.singletonList( source ), destination2 );
+
+        assertEquals( 1, result.getAdded() );
+        assertEquals( 1, result.getReplaced() );
+        assertEquals( revisions( destination1 ), revisions( destination2 ) );
+    }
+
+    @Test
+    public void diffReportsChangesOneIdAtATime()
+        throws Exception
+    {
+        final URI oldLocation =
+            repository( "old", unit( "a", "1.0.0", "1" ), unit( "a", "2.0.0", "1" ), unit( "b", "1.0.0", "1" ),
+                        unit( "d", "1.0.0", "1" ) );
+        final URI newLocation =
+            repository( "new", unit( "c", "1.0.0", "1" ), unit( "b", "1.0.0", "2" ), unit( "a", "3.0.0", "1" ),
+                        unit( "a", "1.0.0", "1" ) );
+
+        final List<String> differences = new ArrayList<String>();
+        service.diff( oldLocation, newLocation, new MetadataDiffListener()
+        {
+            public void added( final InstallableUnit unit )
+            {
+                differences.add( "added " + unit.getId() + "/" + unit.getVersion() );
+            }
+
+            public void removed( final InstallableUnit unit )
+            {
+                differences.add( "removed " + unit.getId() + "/" + unit.getVersion() );
+            }
+
+            public void changed( final InstallableUnit oldUnit, final InstallableUnit newUnit )
+            {
+                differences.add( "changed " + oldUnit.getId() + "/" + oldUnit.getVersion() + " "
+                    + revision( oldUnit ) + "->" + revision( newUnit ) );
+            }
+        } );
+
+        assertEquals( Arrays.asList( "added a/3.0.0", "removed a/2.0.0", "changed b/1.0.0 1->2", "added c/1.0.0",
+                                     "removed d/1.0.0" ), differences );
+    }
+
+    @Test
+    public void diffOfSameContentReportsNothing()
+        throws Exception
+    {
+        final URI oldLocation = repository( "old", unit( "a", "1" ), unit( "b", "1" ) );
+        final URI newLocation = repository( "new", unit( "b", "1" ), unit( "a", "1" ) );
+        // ids are taken from the stored index when up to date, from the repository otherwise
+        VersionIndex.delete( newLocation );
+
+        final List<String> differences = new ArrayList<String>();
+        service.diff( oldLocation, newLocation, new MetadataDiffListener()
+        {
+            public void added( final InstallableUnit unit )
+            {
+                differences.add( unit.getId() );
+            }
+
+            public void removed( final InstallableUnit unit )
+            {
+                differences.add( unit.getId() );
+            }
+
+            public void changed( final InstallableUnit oldUnit, final InstallableUnit newUnit )
+            {
+                differences.add( oldUnit.getId() );
+            }
+        } );
+
+        assertEquals( Collections.emptyList(), differences );
+    }
+
+    /**
+     * @param revision value of the "revision" property, so units of same id and version can have different content
+     */
+    static InstallableUnit unit( final String id, final String revision )
+    {
+        return unit( id, "1.0.0", revision );
+    }
+
+    static InstallableUnit unit( final String id, final String version, final String revision )
+    {
+        final InstallableUnit unit = VersionIndexTest.unit( id, version );
+        final InstallableUnitProperty property = new InstallableUnitProperty();
+        property.setName( "revision" );
+        property.setValue( revision );
+        unit.addProperty( property );
+        return unit;
+    }
+
+    private URI repository( final String name, final InstallableUnit... units )
+        throws Exception
+    {
+        final URI location = TestRuntime.uri( folder.newFolder( name ) );
+        service.write( location, Arrays.asList( units ), name, null );
+        return location;
+    }
+
+    private static String revision( final InstallableUnit unit )
+    {
+        for ( final InstallableUnitProperty property : unit.getProperties() )
+        {
+            if ( "revision".equals( property.getName() ) )
+            {
+                return property.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return revision of each unit of repository at location, by id
+     */
+    private Map<String, String> revisions( final URI location )
+    {
+        final Map<String, String> revisions = new HashMap<String, String>();
+        for ( final InstallableUnit unit : service.getInstallableUnits( location ) )
+        {
+            revisions.put( unit.getId(), revision( unit ) );
+        }
+        return revisions;
+    }
+
+    /**
+     * Moves the files of repository at location a minute back in time, so any save is visible.
+     *
+     * @return new last modified times of the files
+     */
+    private static long[] makeOld( final URI location )
+    {
+        final long time = System.currentTimeMillis() - 60000;
+        int moved = 0;
+        for ( final String name : CONTENT_FILES )
+        {
+            if ( new File( new File( location ), name ).setLastModified( time ) )
+            {
+                moved++;
+            }
+        }
+        assertEquals( 2, moved );
+        return lastModified( location );
+    }
+
+    private static long[] lastModified( final URI location )
+    {
+        final long[] lastModified = new long[CONTENT_FILES.length];
+        for ( int i = 0; i < CONTENT_FILES.length; i++ )
+        {
+            lastModified[i] = new File( new File( location ), CONTENT_FILES[i] ).lastModified();
+        }
+        return lastModified;
+    }
+
+    private static Map<String, String> map( final String... entries )
+    {
+        final Map<String, String> map = new HashMap<String, String>();
+        for ( int i = 0; i < entries.length; i += 2 )
+        {
+            map.put( entries[i], entries[i + 1] );
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IProvidedCapability;
+import org.eclipse.equinox.p2.metadata.IRequirement;
+import org.eclipse.equinox.p2.metadata.MetadataFactory;
+import org.eclipse.equinox.p2.metadata.MetadataFactory.InstallableUnitDescription;
+import org.eclipse.equinox.p2.metadata.Version;
+import org.eclipse.equinox.p2.metadata.VersionRange;
+import org.junit.Test;
+import org.sonatype.p2.bridge.SliceOptions;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class MetadataSlicerTest
+    extends TestSupport
+{
+
+    private static final String LINUX = "(osgi.os=linux)";
+
+    private static final String WIN32 = "(osgi.os=win32)";
+
+    private final CapabilityIndex index = new CapabilityIndex();
+
+    private final Map<String, IInstallableUnit> units = new HashMap<String, IInstallableUnit>();
+
+    @Test
+    public void requirementsAreFollowedTransitively()
+    {
+        add( "a", null, requires( "b" ) );
+        add( "b", null, requires( "c" ), requires( "missing" ) );
+        add( "c", null, requires( "a" ) );
+        add( "d", null );
+
+        assertEquals( ids( "a", "b", "c" ), slice( new SliceOptions(), "a" ) );
+        assertEquals( ids( "c", "a", "b" ), slice( new SliceOptions(), "c" ) );
+        assertEquals( ids( "d", "a", "b", "c" ), slice( new SliceOptions(), "d", "a" ) );
+    }
+
+    @Test
+    public void filtersAreEvaluatedAgainstEnvironment()
+    {
+        add( "a", null, requires( "b" ), requires( "c", LINUX ), requires( "d", WIN32 ) );
+        add( "b", WIN32 );
+        add( "c", null );
+        add( "d", null );
+        add( "e", WIN32 );
+
+        assertEquals( ids( "a", "b", "c", "d" ), slice( new SliceOptions(), "a" ) );
+        assertEquals( ids( "e" ), slice( new SliceOptions(), "e" ) );
+
+        final SliceOptions linux = new SliceOptions();
+        linux.setEnvironment( Collections.singletonMap( "osgi.os", "linux" ) );
+        assertEquals( ids( "a", "c" ), slice( linux, "a" ) );
+        assertEquals( ids(), slice( linux, "e" ) );
+
+        final SliceOptions win32 = new SliceOptions();
+        win32.setEnvironment( Collections.singletonMap( "osgi.os", "win32" ) );
+        assertEquals( ids( "a", "b", "d" ), slice( win32, "a" ) );
+        assertEquals( ids( "e" ), slice( win32, "e" ) );
+    }
+
+    @Test
+    public void optionalAndNonGreedyRequirementsAreFollowedOnRequest()
+    {
+        add( "a", null, requires( "b", 0, 1, true ), requires( "c", 1, 1, false ), requires( "d", 0, 1, false ) );
+        add( "b", null );
+        add( "c", null );
+        add( "d", null );
+
+        final SliceOptions options = new SliceOptions();
+        assertEquals( ids( "a", "b" ), slice( options, "a" ) );
+
+        options.setIncludeOptional( false );
+        assertEquals( ids( "a" ), slice( options, "a" ) );
+
+        options.setIncludeNonGreedy( true );
+        assertEquals( ids( "a", "c" ), slice( options, "a" ) );
+
+        options.setIncludeOptional( true );
+        assertEquals( ids( "a", "b", "c", "d" ), slice( options, "a" ) );
+    }
+
+    @Test
+    public void negativeRequirementsAreNotFollowed()
+    {
+        add( "a", null, requires( "b", 0, 0, true ), requires( "c" ) );
+        add( "b", null );
+        add( "c", null );
+
+        final SliceOptions options = new SliceOptions();
+        options.setIncludeNonGreedy( true );
+        assertEquals( ids( "a", "c" ), slice( options, "a" ) );
+    }
+
+    @Test
+    public void resultDoesNotDependOnNumberOfThreads()
+    {
+        final Random random = new Random( 42 );
+        final int count = 500;
+        for ( int i = 0; i < count; i++ )
+        {
+            final List<IRequirement> requirements = new ArrayList<IRequirement>();
+            for ( int j = 0; j < 3; j++ )
+            {
+                requirements.add( requires( "unit" + random.nextInt( count ), random.nextInt( 2 ), 1,
+                                            random.nextInt( 4 ) > 0 ) );
+            }
+            add( "unit" + i, random.nextInt( 10 ) > 0 ? null : WIN32,
+                 requirements.toArray( new IRequirement[requirements.size()] ) );
+        }
+
+        for ( final Map<String, String> environment : Arrays.asList( null,
+                                                                     Collections.singletonMap( "osgi.os", "linux" ) ) )
+        {
+            final SliceOptions options = new SliceOptions();
+            options.setEnvironment( environment );
+            options.setThreads( 1 );
+            final List<String> expected = slice( options, "unit0", "unit1", "unit2" );
+            assertEquals( true, expected.size() > 3 );
+            for ( final int threads : new int[] { 2, 3, 8, 32 } )
+            {
+                options.setThreads( threads );
+                assertEquals( threads + " threads", expected, slice( options, "unit0", "unit1", "unit2" ) );
+            }
+        }
+    }
+
+    /**
+     * @return ids of the units of the slice of specified roots, in order
+     */
+    private List<String> slice( final SliceOptions options, final String... roots )
+    {
+        final List<IInstallableUnit> rootUnits = new ArrayList<IInstallableUnit>();
+        for ( final String root : roots )
+        {
+            rootUnits.add( units.get( root ) );
+        }
+        final List<String> ids = new ArrayList<String>();
+        for ( final IInstallableUnit unit : new MetadataSlicer( index, options ).slice( rootUnits ) )
+        {
+            ids.add( unit.getId() );
+        }
+        return ids;
+    }
+
+    /**
+     * Adds a unit providing itself (in the IU namespace) in version 1.0.0.
+     *
+     * @param filter LDAP filter of the unit, null for none
+     */
+    private void add( final String id, final String filter, final IRequirement... requirements )
+    {
+        final InstallableUnitDescription description = new InstallableUnitDescription();
+        description.setId( id );
+        description.setVersion( Version.create( "1.0.0" ) );
+        description.setCapabilities( new IProvidedCapability[] { MetadataFactory.createProvidedCapability(
+            IInstallableUnit.NAMESPACE_IU_ID, id, Version.create( "1.0.0" ) ) } );
+        description.setRequirements( requirements );
+        if ( filter != null )
+        {
+            description.setFilter( ParseCache.getInstance().getFilter( filter ) );
+        }
+        final IInstallableUnit unit = MetadataFactory.createInstallableUnit( description );
+        units.put( id, unit );
+        index.add( unit );
+    }
+
+    private static IRequirement requires( final String id )
+    {
+        return requires( id, null );
+    }
+
+    private static IRequirement requires( final String id, final String filter )
+    {
+        return MetadataFactory.createRequirement( IInstallableUnit.NAMESPACE_IU_ID, id, VersionRange.emptyRange,
+                                                  filter == null ? null : ParseCache.getInstance().getFilter( filter ),
+                                                  1, 1, true );
+    }
+
+    private static IRequirement requires( final String id, final int min, final int max, final boolean greedy )
+    {
+        return MetadataFactory.createRequirement( IInstallableUnit.NAMESPACE_IU_ID, id, VersionRange.emptyRange, null,
+                                                  min, max, greedy );
+    }
+
+    private static List<String> ids( final String... ids )
+    {
+        return Arrays.asList( ids );
+    }
+
+}
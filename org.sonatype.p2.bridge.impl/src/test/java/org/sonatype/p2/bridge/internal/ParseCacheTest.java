@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.VersionRange;
+import org.eclipse.equinox.p2.metadata.expression.IMatchExpression;
+import org.junit.Test;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class ParseCacheTest
+    extends TestSupport
+{
+
+    private static final String FILTER = "(osgi.os=linux)";
+
+    private static final String MATCH = "providedCapabilities.exists(x | x.name == $0 && x.namespace == $1)";
+
+    private static final String MATCH_PARAMETERS = "['org.example', 'osgi.bundle']";
+
+    @Test
+    public void repeatedLookupsAreHits()
+    {
+        final ParseCache cache = new ParseCache( 10 );
+
+        final VersionRange range = cache.getVersionRange( "[1.0.0,2.0.0)" );
+        assertSame( range, cache.getVersionRange( "[1.0.0,2.0.0)" ) );
+        final IMatchExpression<IInstallableUnit> filter = cache.getFilter( FILTER );
+        assertSame( filter, cache.getFilter( FILTER ) );
+        final IMatchExpression<IInstallableUnit> match = cache.getMatchExpression( MATCH, MATCH_PARAMETERS );
+        assertSame( match, cache.getMatchExpression( MATCH, MATCH_PARAMETERS ) );
+
+        // parsing the match expression looks up its expression and parameters, which does not count
+        assertEquals( 3, cache.getHits() );
+        assertEquals( 3, cache.getMisses() );
+        cache.getMatchExpression( MATCH, null );
+        assertEquals( 3, cache.getHits() );
+        assertEquals( 4, cache.getMisses() );
+    }
+
+    @Test
+    public void textualFormsParseBackToEqualObjects()
+    {
+        final ParseCache cache = new ParseCache( 10 );
+        final IMatchExpression<IInstallableUnit> filter = cache.getFilter( FILTER );
+        final IMatchExpression<IInstallableUnit> match = cache.getMatchExpression( MATCH, MATCH_PARAMETERS );
+
+        assertEquals( filter, new ParseCache( 10 ).getFilter( cache.getFilterText( filter ) ) );
+        assertEquals( match, new ParseCache( 10 ).getMatchExpression( cache.getMatchText( match ),
+                                                                      cache.getMatchParametersText( match ) ) );
+        assertNull( cache.getMatchParametersText( cache.getMatchExpression( "id == 'a'", null ) ) );
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted()
+    {
+        final ParseCache cache = new ParseCache( 2 );
+        final VersionRange range1 = cache.getVersionRange( "1.0.0" );
+        final VersionRange range2 = cache.getVersionRange( "2.0.0" );
+        assertSame( range1, cache.getVersionRange( "1.0.0" ) );
+
+        cache.getVersionRange( "3.0.0" );
+
+        assertSame( range1, cache.getVersionRange( "1.0.0" ) );
+        assertNotSame( range2, cache.getVersionRange( "2.0.0" ) );
+        assertEquals( 2, cache.getHits() );
+        assertEquals( 4, cache.getMisses() );
+    }
+
+    @Test
+    public void zeroEntriesDisablesCaching()
+    {
+        final ParseCache cache = new ParseCache( 0 );
+
+        final VersionRange range = cache.getVersionRange( "[1.0.0,2.0.0)" );
+
+        assertNotSame( range, cache.getVersionRange( "[1.0.0,2.0.0)" ) );
+        assertEquals( range, cache.getVersionRange( "[1.0.0,2.0.0)" ) );
+        assertEquals( 0, cache.getHits() );
+        assertEquals( 3, cache.getMisses() );
+    }
+
+    @Test
+    public void serviceReportsProcessWideCounters()
+    {
+        final MetadataRepositoryService service = new MetadataRepositoryService();
+        final long hits = service.getParseCacheHits();
+        final long misses = service.getParseCacheMisses();
+
+        ParseCache.getInstance().getVersionRange( "[1.0.0,1.0.0." + System.nanoTime() + ")" );
+
+        assertEquals( misses + 1, service.getParseCacheMisses() );
+        assertEquals( hits, service.getParseCacheHits() );
+    }
+
+}
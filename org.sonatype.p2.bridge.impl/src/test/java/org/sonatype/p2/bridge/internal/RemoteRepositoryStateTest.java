@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RemoteRepositoryStateTest
+    extends TestSupport
+{
+
+    private static final String LAST_MODIFIED = "Mon, 01 Jul 2013 10:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StubServer server = new StubServer();
+
+    private HttpServer httpServer;
+
+    private URI repository;
+
+    private File stateFile;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        httpServer = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        httpServer.createContext( "/", server );
+        httpServer.start();
+        repository = new URI( "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/repo/" );
+        stateFile = new File( folder.getRoot(), "state.properties" );
+    }
+
+    @After
+    public void tearDown()
+    {
+        httpServer.stop( 0 );
+    }
+
+    @Test
+    public void notModifiedIsUnchanged()
+        throws Exception
+    {
+        server.put( "/repo/artifacts.jar", new Resource( "\"a\"", LAST_MODIFIED, true ) );
+
+        final RemoteRepositoryState state = captureAndRead();
+
+        assertEquals( "1234", state.getTimestamp() );
+        assertTrue( state.isUnchanged( repository, null, null ) );
+        assertEquals( "\"a\"", server.lastRequest.get( "If-None-Match" ) );
+        assertEquals( LAST_MODIFIED, server.lastRequest.get( "If-Modified-Since" ) );
+    }
+
+    @Test
+    public void sameEtagIsUnchangedWhenConditionalRequestsAreIgnored()
+        throws Exception
+    {
+        server.put( "/repo/artifacts.jar", new Resource( "\"a\"", null, false ) );
+
+        assertTrue( captureAndRead().isUnchanged( repository, null, null ) );
+    }
+
+    @Test
+    public void differentEtagIsChanged()
+        throws Exception
+    {
+        server.put( "/repo/artifacts.jar", new Resource( "\"a\"", null, true ) );
+        final RemoteRepositoryState state = captureAndRead();
+
+        server.put( "/repo/artifacts.jar", new Resource( "\"b\"", null, true ) );
+
+        assertFalse( state.isUnchanged( repository, null, null ) );
+    }
+
+    @Test
+    public void removedIndexFileIsChanged()
+        throws Exception
+    {
+        server.put( "/repo/artifacts.jar", new Resource( "\"a\"", null, true ) );
+        final RemoteRepositoryState state = captureAndRead();
+
+        server.remove( "/repo/artifacts.jar" );
+
+        assertFalse( state.isUnchanged( repository, null, null ) );
+    }
+
+    @Test
+    public void missingIndexFilesAreSkippedWhenCapturing()
+        throws Exception
+    {
+        server.put( "/repo/artifacts.xml", new Resource( "\"x\"", null, true ) );
+
+        final RemoteRepositoryState state = captureAndRead();
+
+        assertTrue( state.isUnchanged( repository, null, null ) );
+        assertEquals( Arrays.asList( "/repo/artifacts.jar", "/repo/artifacts.xml", "/repo/artifacts.xml" ),
+                      server.paths );
+    }
+
+    @Test
+    public void withoutValidatorsRemoteIsNeverUnchanged()
+        throws Exception
+    {
+        server.put( "/repo/artifacts.jar", new Resource( null, null, false ) );
+
+        assertFalse( captureAndRead().isUnchanged( repository, null, null ) );
+    }
+
+    @Test
+    public void stateIsNotWrittenIfLoadedRepositoriesAreNotCovered()
+        throws Exception
+    {
+        server.put( "/repo/artifacts.jar", new Resource( "\"a\"", null, true ) );
+        final RemoteRepositoryState state =
+            RemoteRepositoryState.capture( Collections.singleton( repository ),
+                                           RemoteRepositoryState.ARTIFACT_INDEX_FILES, repository, null, null );
+
+        state.write( stateFile, "1234", Arrays.asList( repository, repository.resolve( "child/" ) ) );
+
+        assertFalse( stateFile.exists() );
+        assertNull( RemoteRepositoryState.read( stateFile ) );
+    }
+
+    @Test
+    public void credentialsAreOnlySentToRepositoryHost()
+        throws Exception
+    {
+        server.put( "/repo/artifacts.jar", new Resource( "\"a\"", null, true ) );
+
+        RemoteRepositoryState.capture( Collections.singleton( repository ), RemoteRepositoryState.ARTIFACT_INDEX_FILES,
+                                       repository, "user", "secret" );
+        assertEquals( "Basic dXNlcjpzZWNyZXQ=", server.lastRequest.get( "Authorization" ) );
+
+        RemoteRepositoryState.capture( Collections.singleton( repository ), RemoteRepositoryState.ARTIFACT_INDEX_FILES,
+                                       URI.create( "http://elsewhere/repo/" ), "user", "secret" );
+        assertNull( server.lastRequest.get( "Authorization" ) );
+    }
+
+    private RemoteRepositoryState captureAndRead()
+    {
+        RemoteRepositoryState.capture( Collections.singleton( repository ), RemoteRepositoryState.ARTIFACT_INDEX_FILES,
+                                       repository, null, null ).write( stateFile, "1234",
+                                                                       Collections.singleton( repository ) );
+        final RemoteRepositoryState state = RemoteRepositoryState.read( stateFile );
+        assertNotNull( state );
+        return state;
+    }
+
+    private static class Resource
+    {
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private final boolean conditional;
+
+        /**
+         * @param conditional if the server answers conditional requests with 304, some ignore them on HEAD requests
+         */
+        Resource( final String etag, final String lastModified, final boolean conditional )
+        {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.conditional = conditional;
+        }
+
+    }
+
+    /**
+     * Answers HEAD requests for the resources it was given, 404 otherwise.
+     */
+    private static class StubServer
+        implements HttpHandler
+    {
+
+        private final Map<String, Resource> resources = new HashMap<String, Resource>();
+
+        private final List<String> paths = Collections.synchronizedList( new ArrayList<String>() );
+
+        private volatile Map<String, String> lastRequest;
+
+        synchronized void put( final String path, final Resource resource )
+        {
+            resources.put( path, resource );
+        }
+
+        synchronized void remove( final String path )
+        {
+            resources.remove( path );
+        }
+
+        public void handle( final HttpExchange exchange )
+            throws IOException
+        {
+            final String path = exchange.getRequestURI().getPath();
+            paths.add( path );
+            final Map<String, String> request = new HashMap<String, String>();
+            for ( final String header : new String[] { "If-None-Match", "If-Modified-Since", "Authorization" } )
+            {
+                request.put( header, exchange.getRequestHeaders().getFirst( header ) );
+            }
+            lastRequest = request;
+
+            final Resource resource;
+            synchronized ( this )
+            {
+                resource = resources.get( path );
+            }
+            int status = 200;
+            if ( resource == null )
+            {
+                status = 404;
+            }
+            else
+            {
+                if ( resource.etag != null )
+                {
+                    exchange.getResponseHeaders().set( "ETag", resource.etag );
+                }
+                if ( resource.lastModified != null )
+                {
+                    exchange.getResponseHeaders().set( "Last-Modified", resource.lastModified );
+                }
+                if ( resource.conditional && resource.etag != null
+                    && resource.etag.equals( request.get( "If-None-Match" ) ) )
+                {
+                    status = 304;
+                }
+            }
+            exchange.sendResponseHeaders( status, -1 );
+            exchange.close();
+        }
+
+    }
+
+}
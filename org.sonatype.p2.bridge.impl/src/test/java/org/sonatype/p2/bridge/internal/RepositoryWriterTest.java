@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.MetadataFactory;
+import org.eclipse.equinox.p2.metadata.MetadataFactory.InstallableUnitDescription;
+import org.eclipse.equinox.p2.metadata.Version;
+import org.eclipse.equinox.p2.query.QueryUtil;
+import org.eclipse.equinox.p2.repository.IRepository;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepository;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepository;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepositoryManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.p2.bridge.CopyStrategy;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class RepositoryWriterTest
+    extends TestSupport
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IProvisioningAgent agent;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        TestRuntime.install();
+        agent = TestRuntime.getAgentProvider().createAgent( null );
+    }
+
+    @After
+    public void tearDown()
+    {
+        System.clearProperty( RepositoryWriter.ALL_VARIANTS_PROPERTY );
+        agent.stop();
+    }
+
+    @Test
+    public void compressedRepositoryIsWrittenAsJarOnly()
+        throws Exception
+    {
+        final IMetadataRepository repository = createMetadataRepository( "repo", true );
+        final File directory = new File( repository.getLocation() );
+        FileTransferTest.write( new File( directory, "content.xml" ), "stale" );
+
+        save( repository, "a", "b" );
+
+        assertEquals( Arrays.asList( "content.jar" ), files( directory ) );
+        assertEquals( Arrays.asList( "content.xml" ), jarEntries( new File( directory, "content.jar" ) ) );
+        assertEquals( ids( "a", "b" ), reload( repository.getLocation() ) );
+    }
+
+    @Test
+    public void plainRepositoryIsWrittenAsXmlOnly()
+        throws Exception
+    {
+        final IMetadataRepository repository = createMetadataRepository( "repo", false );
+        final File directory = new File( repository.getLocation() );
+        FileTransferTest.write( new File( directory, "content.jar" ), "stale" );
+
+        save( repository, "a" );
+
+        assertEquals( Arrays.asList( "content.xml" ), files( directory ) );
+        assertTrue( FileTransferTest.read( new File( directory, "content.xml" ) ).contains( "id='a'" ) );
+        assertEquals( ids( "a" ), reload( repository.getLocation() ) );
+    }
+
+    @Test
+    public void allVariantsAreWrittenWhenAskedTo()
+        throws Exception
+    {
+        System.setProperty( RepositoryWriter.ALL_VARIANTS_PROPERTY, "true" );
+        final IMetadataRepository repository = createMetadataRepository( "repo", true );
+        final File directory = new File( repository.getLocation() );
+
+        save( repository, "a" );
+
+        assertEquals( Arrays.asList( "content.jar", "content.xml" ), files( directory ) );
+        final File xml = folder.newFolder( "xml" );
+        FileTransfer.transfer( new File( directory, "content.xml" ), new File( xml, "content.xml" ),
+                               CopyStrategy.STREAM );
+        assertEquals( ids( "a" ), reload( repository.getLocation() ) );
+        assertEquals( ids( "a" ), reload( xml.toURI() ) );
+    }
+
+    @Test
+    public void artifactRepositoriesAreWrittenTogetherWithMetadataRepositories()
+        throws Exception
+    {
+        final IMetadataRepository metadata = createMetadataRepository( "metadata", true );
+        final IArtifactRepositoryManager manager =
+            (IArtifactRepositoryManager) agent.getService( IArtifactRepositoryManager.SERVICE_NAME );
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put( IRepository.PROP_COMPRESSED, "false" );
+        final IArtifactRepository artifacts =
+            manager.createRepository( TestRuntime.uri( folder.newFolder( "artifacts" ) ), "artifacts",
+                                      IArtifactRepositoryManager.TYPE_SIMPLE_REPOSITORY, properties );
+        final File artifactsDirectory = new File( artifacts.getLocation() );
+        FileTransferTest.write( new File( artifactsDirectory, "artifacts.jar" ), "stale" );
+
+        new RepositoryWriter( agent ).save( metadata, artifacts );
+
+        assertEquals( Arrays.asList( "content.jar" ), files( new File( metadata.getLocation() ) ) );
+        assertEquals( Arrays.asList( "artifacts.xml" ), files( artifactsDirectory ) );
+        assertTrue( Long.parseLong( artifacts.getProperty( IRepository.PROP_TIMESTAMP ) ) > 0 );
+        assertEquals( metadata.getProperty( IRepository.PROP_TIMESTAMP ),
+                      artifacts.getProperty( IRepository.PROP_TIMESTAMP ) );
+    }
+
+    @Test( expected = RuntimeException.class )
+    public void otherRepositoriesCannotBeWritten()
+        throws Exception
+    {
+        final IMetadataRepository composite =
+            getMetadataManager( agent ).createRepository( TestRuntime.uri( folder.newFolder( "composite" ) ),
+                                                          "composite",
+                                                          IMetadataRepositoryManager.TYPE_COMPOSITE_REPOSITORY, null );
+        new RepositoryWriter( agent ).save( composite );
+    }
+
+    private IMetadataRepository createMetadataRepository( final String name, final boolean compressed )
+        throws Exception
+    {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put( IRepository.PROP_COMPRESSED, Boolean.toString( compressed ) );
+        final IMetadataRepository repository =
+            getMetadataManager( agent ).createRepository( TestRuntime.uri( folder.newFolder( name ) ), name,
+                                                          IMetadataRepositoryManager.TYPE_SIMPLE_REPOSITORY,
+                                                          properties );
+        // p2 wrote it on creation
+        for ( final String file : files( new File( repository.getLocation() ) ) )
+        {
+            new File( new File( repository.getLocation() ), file ).delete();
+        }
+        return repository;
+    }
+
+    private void save( final IMetadataRepository repository, final String... ids )
+    {
+        RepositoryWriter.suspendSave( repository );
+        try
+        {
+            for ( final String id : ids )
+            {
+                final InstallableUnitDescription description = new InstallableUnitDescription();
+                description.setId( id );
+                description.setVersion( Version.create( "1.0.0" ) );
+                final IInstallableUnit unit = MetadataFactory.createInstallableUnit( description );
+                repository.addInstallableUnits( Collections.singleton( unit ) );
+            }
+            new RepositoryWriter( agent ).save( repository );
+        }
+        finally
+        {
+            RepositoryWriter.resumeSave( repository );
+        }
+    }
+
+    /**
+     * @return ids of the units of the repository at location, as loaded by a new agent
+     */
+    private static Set<String> reload( final URI location )
+        throws Exception
+    {
+        final IProvisioningAgent other = TestRuntime.getAgentProvider().createAgent( null );
+        try
+        {
+            final IMetadataRepository repository = getMetadataManager( other ).loadRepository( location, null );
+            final Set<String> ids = new TreeSet<String>();
+            for ( final IInstallableUnit unit : repository.query( QueryUtil.ALL_UNITS, null ).toUnmodifiableSet() )
+            {
+                ids.add( unit.getId() );
+            }
+            return ids;
+        }
+        finally
+        {
+            other.stop();
+        }
+    }
+
+    private static IMetadataRepositoryManager getMetadataManager( final IProvisioningAgent agent )
+    {
+        return (IMetadataRepositoryManager) agent.getService( IMetadataRepositoryManager.SERVICE_NAME );
+    }
+
+    private static Set<String> ids( final String... ids )
+    {
+        return new TreeSet<String>( Arrays.asList( ids ) );
+    }
+
+    /**
+     * @return sorted names of the files in directory, temporary files included
+     */
+    private static List<String> files( final File directory )
+    {
+        final String[] names = directory.list();
+        Arrays.sort( names );
+        return Arrays.asList( names );
+    }
+
+    private static List<String> jarEntries( final File file )
+        throws IOException
+    {
+        final List<String> entries = new ArrayList<String>();
+        final JarInputStream jar = new JarInputStream( new FileInputStream( file ) );
+        try
+        {
+            JarEntry entry;
+            while ( ( entry = jar.getNextJarEntry() ) != null )
+            {
+                entries.add( entry.getName() );
+            }
+        }
+        finally
+        {
+            jar.close();
+        }
+        return entries;
+    }
+
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.equinox.internal.p2.artifact.repository.CompositeArtifactRepositoryFactory;
+import org.eclipse.equinox.internal.p2.artifact.repository.simple.SimpleArtifactRepositoryFactory;
+import org.eclipse.equinox.internal.p2.core.ProvisioningEventBus;
+import org.eclipse.equinox.internal.p2.core.helpers.FileUtils;
+import org.eclipse.equinox.internal.p2.metadata.repository.CompositeMetadataRepositoryFactory;
+import org.eclipse.equinox.internal.p2.metadata.repository.SimpleMetadataRepositoryFactory;
+import org.eclipse.equinox.internal.p2.repository.Transport;
+import org.eclipse.equinox.internal.provisional.p2.core.eventbus.IProvisioningEventBus;
+import org.eclipse.equinox.p2.core.IProvisioningAgent;
+import org.eclipse.equinox.p2.core.IProvisioningAgentProvider;
+import org.eclipse.equinox.p2.core.ProvisionException;
+import org.eclipse.equinox.p2.repository.IRepository;
+import org.eclipse.equinox.p2.repository.IRepositoryManager;
+import org.eclipse.equinox.p2.repository.artifact.IArtifactRepositoryManager;
+import org.eclipse.equinox.p2.repository.artifact.spi.ArtifactRepositoryFactory;
+import org.eclipse.equinox.p2.repository.metadata.IMetadataRepositoryManager;
+import org.eclipse.equinox.p2.repository.metadata.spi.MetadataRepositoryFactory;
+import org.eclipse.osgi.service.datalocation.Location;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Lets p2 repositories be created, loaded and saved outside of an OSGi framework, for tests. The p2 bundle activators
+ * get a bundle context offering only the services repositories need (locking locations and XML parsing), and agents
+ * get repository managers that know local simple and composite repositories only, via the p2 repository factories.
+ * <p>
+ * Like the p2 ones, the managers keep the repositories they loaded or created until removed.
+ */
+class TestRuntime
+{
+
+    private static final Map<String, Object> SERVICES = new HashMap<String, Object>();
+
+    private static boolean installed;
+
+    private TestRuntime()
+    {
+    }
+
+    static synchronized void install()
+        throws Exception
+    {
+        if ( installed )
+        {
+            return;
+        }
+        final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware( true );
+        SERVICES.put( SAXParserFactory.class.getName(), parserFactory );
+        SERVICES.put( Location.class.getName(), stub( Location.class, new LocationHandler() ) );
+
+        final BundleContext context = stub( BundleContext.class, new BundleContextHandler() );
+        setContext( org.eclipse.equinox.internal.p2.core.Activator.class, context );
+        setContext( org.eclipse.equinox.internal.p2.repository.Activator.class, context );
+        setContext( org.eclipse.equinox.internal.p2.metadata.repository.Activator.class, context );
+        final BundleActivator artifactActivator = new org.eclipse.equinox.internal.p2.artifact.repository.Activator();
+        artifactActivator.start( context );
+        installed = true;
+    }
+
+    /**
+     * @return provider of agents whose repository managers work without OSGi. {@link #install()} must have been called
+     */
+    static IProvisioningAgentProvider getAgentProvider()
+    {
+        return new IProvisioningAgentProvider()
+        {
+            public IProvisioningAgent createAgent( final URI location )
+            {
+                return new Agent();
+            }
+        };
+    }
+
+    /**
+     * @return locations the manager loaded from disk (not out of what it keeps), in the order loading started
+     */
+    static List<URI> getLoaded( final IRepositoryManager<?> manager )
+    {
+        final ManagerHandler handler = (ManagerHandler) Proxy.getInvocationHandler( manager );
+        synchronized ( handler )
+        {
+            return new ArrayList<URI>( handler.loaded );
+        }
+    }
+
+    static URI uri( final File directory )
+    {
+        return directory.getAbsoluteFile().toURI();
+    }
+
+    private static void setContext( final Class<?> activator, final BundleContext context )
+        throws IllegalAccessException
+    {
+        for ( final Field field : activator.getDeclaredFields() )
+        {
+            if ( field.getType() == BundleContext.class )
+            {
+                field.setAccessible( true );
+                field.set( null, context );
+            }
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static <T> T stub( final Class<T> type, final InvocationHandler handler )
+    {
+        return (T) Proxy.newProxyInstance( TestRuntime.class.getClassLoader(), new Class<?>[] { type }, handler );
+    }
+
+    /**
+     * Handles the methods of Object the same way for all stubs.
+     */
+    private abstract static class StubHandler
+        implements InvocationHandler
+    {
+
+        public Object invoke( final Object proxy, final Method method, final Object[] args )
+            throws Throwable
+        {
+            if ( "equals".equals( method.getName() ) )
+            {
+                return proxy == args[0];
+            }
+            if ( "hashCode".equals( method.getName() ) )
+            {
+                return System.identityHashCode( proxy );
+            }
+            if ( "toString".equals( method.getName() ) )
+            {
+                return getClass().getSimpleName();
+            }
+            return handle( method.getName(), args );
+        }
+
+        abstract Object handle( String name, Object[] args )
+            throws Exception;
+
+    }
+
+    private static class BundleContextHandler
+        extends StubHandler
+    {
+
+        @Override
+        Object handle( final String name, final Object[] args )
+            throws Exception
+        {
+            if ( "getProperty".equals( name ) )
+            {
+                return System.getProperty( (String) args[0] );
+            }
+            if ( "getServiceReference".equals( name ) )
+            {
+                return getReference( args[0] instanceof Class<?> ? ( (Class<?>) args[0] ).getName()
+                                : (String) args[0] );
+            }
+            if ( "getServiceReferences".equals( name ) || "getAllServiceReferences".equals( name ) )
+            {
+                final ServiceReference reference = getReference( (String) args[0] );
+                return reference == null ? null : new ServiceReference[] { reference };
+            }
+            if ( "getService".equals( name ) )
+            {
+                return SERVICES.get( ( (ReferenceHandler) Proxy.getInvocationHandler( args[0] ) ).serviceName );
+            }
+            if ( "ungetService".equals( name ) )
+            {
+                return Boolean.TRUE;
+            }
+            if ( "createFilter".equals( name ) )
+            {
+                return FrameworkUtil.createFilter( (String) args[0] );
+            }
+            return null;
+        }
+
+        private static ServiceReference getReference( final String serviceName )
+        {
+            if ( serviceName == null || !SERVICES.containsKey( serviceName ) )
+            {
+                return null;
+            }
+            return stub( ServiceReference.class, new ReferenceHandler( serviceName ) );
+        }
+
+    }
+
+    private static class ReferenceHandler
+        extends StubHandler
+    {
+
+        private final String serviceName;
+
+        ReferenceHandler( final String serviceName )
+        {
+            this.serviceName = serviceName;
+        }
+
+        @Override
+        Object handle( final String name, final Object[] args )
+        {
+            return null;
+        }
+
+    }
+
+    /**
+     * Locations that can always be locked, so repositories can be written.
+     */
+    private static class LocationHandler
+        extends StubHandler
+    {
+
+        @Override
+        Object handle( final String name, final Object[] args )
+        {
+            if ( "createLocation".equals( name ) )
+            {
+                return stub( Location.class, this );
+            }
+            if ( "lock".equals( name ) || "set".equals( name ) )
+            {
+                return Boolean.TRUE;
+            }
+            if ( name.startsWith( "is" ) )
+            {
+                return Boolean.FALSE;
+            }
+            return null;
+        }
+
+    }
+
+    private static class Agent
+        implements IProvisioningAgent
+    {
+
+        private final Map<String, Object> services = new HashMap<String, Object>();
+
+        private boolean stopped;
+
+        Agent()
+        {
+            services.put( IProvisioningEventBus.SERVICE_NAME, new ProvisioningEventBus() );
+            services.put( Transport.SERVICE_NAME, new FileTransport() );
+
+            final SimpleArtifactRepositoryFactory simpleArtifacts = new SimpleArtifactRepositoryFactory();
+            final CompositeArtifactRepositoryFactory compositeArtifacts = new CompositeArtifactRepositoryFactory();
+            simpleArtifacts.setAgent( this );
+            compositeArtifacts.setAgent( this );
+            services.put( IArtifactRepositoryManager.SERVICE_NAME,
+                          stub( IArtifactRepositoryManager.class, new ManagerHandler( this,
+                                                                                      new ArtifactFactory(
+                                                                                          simpleArtifacts ),
+                                                                                      new ArtifactFactory(
+                                                                                          compositeArtifacts ) ) ) );
+
+            final SimpleMetadataRepositoryFactory simpleMetadata = new SimpleMetadataRepositoryFactory();
+            final CompositeMetadataRepositoryFactory compositeMetadata = new CompositeMetadataRepositoryFactory();
+            simpleMetadata.setAgent( this );
+            compositeMetadata.setAgent( this );
+            services.put( IMetadataRepositoryManager.SERVICE_NAME,
+                          stub( IMetadataRepositoryManager.class, new ManagerHandler( this,
+                                                                                      new MetadataFactory(
+                                                                                          simpleMetadata ),
+                                                                                      new MetadataFactory(
+                                                                                          compositeMetadata ) ) ) );
+        }
+
+        public synchronized Object getService( final String serviceName )
+        {
+            if ( stopped )
+            {
+                throw new IllegalStateException( "Attempt to access stopped agent" );
+            }
+            return services.get( serviceName );
+        }
+
+        public synchronized void registerService( final String serviceName, final Object service )
+        {
+            services.put( serviceName, service );
+        }
+
+        public synchronized void unregisterService( final String serviceName, final Object service )
+        {
+            services.remove( serviceName );
+        }
+
+        public synchronized void stop()
+        {
+            stopped = true;
+        }
+
+    }
+
+    /**
+     * Transport of local files, as the one of p2 would do for file URIs.
+     */
+    private static class FileTransport
+        extends Transport
+    {
+
+        @Override
+        public IStatus download( final URI location, final OutputStream target, final long startPos,
+                                 final IProgressMonitor monitor )
+        {
+            return download( location, target, monitor );
+        }
+
+        @Override
+        public IStatus download( final URI location, final OutputStream target, final IProgressMonitor monitor )
+        {
+            try
+            {
+                FileUtils.copyStream( stream( location, monitor ), true, target, false );
+                return Status.OK_STATUS;
+            }
+            catch ( final IOException e )
+            {
+                return new Status( IStatus.ERROR, "test", e.getMessage(), e );
+            }
+        }
+
+        @Override
+        public InputStream stream( final URI location, final IProgressMonitor monitor )
+            throws FileNotFoundException
+        {
+            return new FileInputStream( getFile( location ) );
+        }
+
+        @Override
+        public long getLastModified( final URI location, final IProgressMonitor monitor )
+            throws FileNotFoundException
+        {
+            return getFile( location ).lastModified();
+        }
+
+        private static File getFile( final URI location )
+            throws FileNotFoundException
+        {
+            final File file = new File( location );
+            if ( !file.isFile() )
+            {
+                throw new FileNotFoundException( location.toString() );
+            }
+            return file;
+        }
+
+    }
+
+    /**
+     * p2 repository factories of one kind (artifact or metadata) behind a common interface.
+     */
+    private interface Factory
+    {
+
+        IRepository<?> create( URI location, String name, String type, Map<String, String> properties )
+            throws ProvisionException;
+
+        IRepository<?> load( URI location )
+            throws ProvisionException;
+
+    }
+
+    private static class ArtifactFactory
+        implements Factory
+    {
+
+        private final ArtifactRepositoryFactory factory;
+
+        ArtifactFactory( final ArtifactRepositoryFactory factory )
+        {
+            this.factory = factory;
+        }
+
+        public IRepository<?> create( final URI location, final String name, final String type,
+                                      final Map<String, String> properties )
+            throws ProvisionException
+        {
+            return factory.create( location, name, type, properties );
+        }
+
+        public IRepository<?> load( final URI location )
+            throws ProvisionException
+        {
+            return factory.load( location, 0, null );
+        }
+
+    }
+
+    private static class MetadataFactory
+        implements Factory
+    {
+
+        private final MetadataRepositoryFactory factory;
+
+        MetadataFactory( final MetadataRepositoryFactory factory )
+        {
+            this.factory = factory;
+        }
+
+        public IRepository<?> create( final URI location, final String name, final String type,
+                                      final Map<String, String> properties )
+            throws ProvisionException
+        {
+            return factory.create( location, name, type, properties );
+        }
+
+        public IRepository<?> load( final URI location )
+            throws ProvisionException
+        {
+            return factory.load( location, 0, null );
+        }
+
+    }
+
+    private static class ManagerHandler
+        extends StubHandler
+    {
+
+        private final IProvisioningAgent agent;
+
+        private final Factory simple;
+
+        private final Factory composite;
+
+        private final Map<URI, IRepository<?>> repositories = new LinkedHashMap<URI, IRepository<?>>();
+
+        private final List<URI> loaded = new ArrayList<URI>();
+
+        ManagerHandler( final IProvisioningAgent agent, final Factory simple, final Factory composite )
+        {
+            this.agent = agent;
+            this.simple = simple;
+            this.composite = composite;
+        }
+
+        @Override
+        synchronized Object handle( final String name, final Object[] args )
+            throws Exception
+        {
+            if ( "getAgent".equals( name ) )
+            {
+                return agent;
+            }
+            if ( "loadRepository".equals( name ) || "refreshRepository".equals( name ) )
+            {
+                final URI location = (URI) args[0];
+                IRepository<?> repository = "refreshRepository".equals( name ) ? null : repositories.get( location );
+                if ( repository == null )
+                {
+                    loaded.add( location );
+                    repository = load( location );
+                    repositories.put( location, repository );
+                }
+                return repository;
+            }
+            if ( "createRepository".equals( name ) )
+            {
+                final URI location = (URI) args[0];
+                if ( repositories.containsKey( location ) || load( location, simple ) != null
+                    || load( location, composite ) != null )
+                {
+                    throw new ProvisionException( "Repository already exists at " + location );
+                }
+                final String type = (String) args[2];
+                @SuppressWarnings( "unchecked" )
+                final Map<String, String> properties = (Map<String, String>) args[3];
+                final boolean isComposite =
+                    IArtifactRepositoryManager.TYPE_COMPOSITE_REPOSITORY.equals( type )
+                        || IMetadataRepositoryManager.TYPE_COMPOSITE_REPOSITORY.equals( type );
+                final IRepository<?> repository =
+                    ( isComposite ? composite : simple ).create( location, (String) args[1], type, properties );
+                repositories.put( location, repository );
+                return repository;
+            }
+            if ( "contains".equals( name ) )
+            {
+                return repositories.containsKey( args[0] );
+            }
+            if ( "addRepository".equals( name ) )
+            {
+                return null;
+            }
+            if ( "removeRepository".equals( name ) )
+            {
+                return repositories.remove( args[0] ) != null;
+            }
+            if ( "getKnownRepositories".equals( name ) )
+            {
+                return repositories.keySet().toArray( new URI[repositories.size()] );
+            }
+            if ( "isEnabled".equals( name ) )
+            {
+                return Boolean.TRUE;
+            }
+            if ( "getRepositoryProperty".equals( name ) || "setRepositoryProperty".equals( name )
+                || "setEnabled".equals( name ) )
+            {
+                return null;
+            }
+            throw new UnsupportedOperationException( name );
+        }
+
+        private IRepository<?> load( final URI location )
+            throws ProvisionException
+        {
+            IRepository<?> repository = load( location, simple );
+            if ( repository == null )
+            {
+                repository = load( location, composite );
+            }
+            if ( repository == null )
+            {
+                throw new ProvisionException( new Status( IStatus.ERROR, "test",
+                                                          ProvisionException.REPOSITORY_NOT_FOUND,
+                                                          "No repository found at " + location, null ) );
+            }
+            return repository;
+        }
+
+        /**
+         * @return repository at location, null if factory finds none. Fails as p2 does if one is found but unreadable
+         */
+        private static IRepository<?> load( final URI location, final Factory factory )
+            throws ProvisionException
+        {
+            try
+            {
+                return factory.load( location );
+            }
+            catch ( final ProvisionException e )
+            {
+                if ( e.getStatus().getCode() != ProvisionException.REPOSITORY_NOT_FOUND )
+                {
+                    throw e;
+                }
+                return null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2007-2013 Sonatype, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.sonatype.p2.bridge.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.equinox.p2.metadata.IInstallableUnit;
+import org.eclipse.equinox.p2.metadata.IVersionedId;
+import org.eclipse.equinox.p2.metadata.MetadataFactory;
+import org.eclipse.equinox.p2.metadata.MetadataFactory.InstallableUnitDescription;
+import org.eclipse.equinox.p2.metadata.Version;
+import org.eclipse.equinox.p2.metadata.VersionRange;
+import org.eclipse.equinox.p2.metadata.VersionedId;
+import org.eclipse.equinox.p2.query.QueryUtil;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.p2.bridge.CopyStrategy;
+import org.sonatype.p2.bridge.IUIdentity;
+import org.sonatype.p2.bridge.model.InstallableUnit;
+import org.sonatype.sisu.litmus.testsupport.TestSupport;
+
+public class VersionIndexTest
+    extends TestSupport
+{
+
+    private static final String[] VERSIONS = { "1.0.0", "1.0.0.v1", "1.0.1", "1.10.0", "2.0.0", "10.0.0.qualifier" };
+
+    private static final String[] SPECS = { "unit.a", "unit.a/1.0.0", "unit.a/1.0.0.v1", "unit.a/2.0.0", "unit.a/0.0.1",
+        "unit.a/99.0.0", "unit.b/1.10.0", "unit.b", "missing", "missing/1.0.0" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        TestRuntime.install();
+    }
+
+    @Test
+    public void indexAnswersSameAsPerSpecIUQuery()
+    {
+        final List<IInstallableUnit> units = new ArrayList<IInstallableUnit>();
+        final VersionIndex index = new VersionIndex();
+        for ( final String id : new String[] { "unit.a", "unit.b" } )
+        {
+            for ( final String version : VERSIONS )
+            {
+                final IInstallableUnit iu = createIU( id, version, version.startsWith( "1." ) );
+                units.add( iu );
+                index.add( iu.getId(), iu.getVersion(), QueryUtil.isGroup( iu ) );
+            }
+        }
+
+        for ( final boolean onlyUpdates : new boolean[] { false, true } )
+        {
+            for ( final String spec : SPECS )
+            {
+                final Collection<IUIdentity> found = new HashSet<IUIdentity>();
+                index.collectVersions( spec, onlyUpdates, found );
+                assertEquals( spec + ( onlyUpdates ? " (updates)" : "" ), query( units, spec, onlyUpdates ), found );
+            }
+        }
+    }
+
+    @Test
+    public void indexCollectsGroups()
+    {
+        final VersionIndex index = new VersionIndex();
+        index.add( "unit.a", Version.create( "1.0.0" ), true );
+        index.add( "unit.a", Version.create( "2.0.0" ), false );
+        // a unit is a group if any repository says so
+        index.add( "unit.b", Version.create( "1.0.0" ), true );
+        index.add( "unit.b", Version.create( "1.0.0" ), false );
+
+        final Collection<IUIdentity> groups = new HashSet<IUIdentity>();
+        index.collectGroups( groups );
+
+        assertEquals( identities( "unit.a/1.0.0", "unit.b/1.0.0" ), groups );
+    }
+
+    /**
+     * Compares one multi spec lookup (answered from a version index built in one pass) against one lookup per spec
+     * (answered by p2 IU queries), on a repository without stored index.
+     */
+    @Test
+    public void getVersionsBenchmark()
+        throws Exception
+    {
+        final int ids = 300;
+        final MetadataRepositoryService service = newService();
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        final List<InstallableUnit> units = new ArrayList<InstallableUnit>();
+        final List<String> specs = new ArrayList<String>();
+        for ( int i = 0; i < ids; i++ )
+        {
+            for ( final String version : VERSIONS )
+            {
+                units.add( unit( "unit" + i, version ) );
+            }
+            specs.add( "unit" + i + "/1.0.1" );
+        }
+        service.write( location, units, "repo", null );
+        VersionIndex.delete( location );
+
+        // warm up the repository cache, so only lookups are timed
+        service.getVersions( specs.subList( 0, 1 ), true, location );
+
+        long start = System.nanoTime();
+        final Collection<IUIdentity> perSpec = new HashSet<IUIdentity>();
+        for ( final String spec : specs )
+        {
+            perSpec.addAll( service.getVersions( Collections.singleton( spec ), true, location ) );
+        }
+        final long perSpecTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final Collection<IUIdentity> indexed = service.getVersions( specs, true, location );
+        final long indexedTime = System.nanoTime() - start;
+
+        assertEquals( ids * 3, perSpec.size() );
+        assertEquals( perSpec, new HashSet<IUIdentity>( indexed ) );
+        logger.info( "getVersions of {} specs over {} units: {} ms with one query per spec, {} ms with an index",
+                     new Object[] { ids, units.size(), perSpecTime / 1000000, indexedTime / 1000000 } );
+    }
+
+    @Test
+    public void storedIndexAnswersWithoutLoading()
+        throws Exception
+    {
+        final MetadataRepositoryService service = newService();
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, Collections.singletonList( unit( "unit.a", "1.0.0" ) ), "repo", null );
+
+        final VersionIndex index = VersionIndex.read( location );
+        final Collection<IUIdentity> found = new HashSet<IUIdentity>();
+        index.collectVersions( "unit.a", false, found );
+
+        assertEquals( identities( "unit.a/1.0.0" ), found );
+        assertEquals( Collections.singletonList( VersionIndex.FILE_NAME ),
+                      Arrays.asList( new File( location ).list( new FilenameFilter()
+                      {
+                          public boolean accept( final File dir, final String name )
+                          {
+                              return name.contains( VersionIndex.FILE_NAME );
+                          }
+                      } ) ) );
+    }
+
+    @Test
+    public void staleIndexIsIgnored()
+        throws Exception
+    {
+        final MetadataRepositoryService service = newService();
+        final URI old = TestRuntime.uri( folder.newFolder( "old" ) );
+        service.write( old, Collections.singletonList( unit( "unit.a", "1.0.0" ) ), "repo", null );
+        final URI location = TestRuntime.uri( folder.newFolder( "repo" ) );
+        service.write( location, Arrays.asList( unit( "unit.a", "1.0.0" ), unit( "unit.a", "2.0.0" ) ), "repo", null );
+
+        // index built from other content files
+        final File index = new File( new File( location ), VersionIndex.FILE_NAME );
+        index.delete();
+        FileTransfer.transfer( new File( new File( old ), VersionIndex.FILE_NAME ), index, CopyStrategy.STREAM );
+        assertNotNull( VersionIndex.read( old ) );
+
+        assertEquals( null, VersionIndex.read( location ) );
+        assertEquals( identities( "unit.a/2.0.0" ),
+                      new HashSet<IUIdentity>( service.getVersions( Collections.singleton( "unit.a/1.0.0" ), true,
+                                                                    location ) ) );
+    }
+
+    @Test
+    public void racyContentChangeIsDetectedByDigest()
+        throws Exception
+    {
+        final File directory = folder.newFolder( "repo" );
+        final File content = FileTransferTest.write( new File( directory, "content.xml" ), "<units a/>" );
+        final URI location = TestRuntime.uri( directory );
+        index( "unit.a" ).write( location, VersionIndex.fingerprint( location ) );
+        assertEquals( identities( "unit.a/1.0.0" ), groups( VersionIndex.read( location ) ) );
+
+        // same size and same last modified, as a change within the granularity of the file system
+        final long lastModified = content.lastModified();
+        FileTransferTest.write( content, "<units b/>" );
+        content.setLastModified( lastModified );
+
+        assertEquals( null, VersionIndex.read( location ) );
+    }
+
+    @Test
+    public void indexOfOldContentIsTrustedByFingerprint()
+        throws Exception
+    {
+        final File directory = folder.newFolder( "repo" );
+        final File content = FileTransferTest.write( new File( directory, "content.xml" ), "<units a/>" );
+        content.setLastModified( System.currentTimeMillis() - 60000 );
+        final URI location = TestRuntime.uri( directory );
+        index( "unit.a" ).write( location, VersionIndex.fingerprint( location ) );
+
+        assertEquals( identities( "unit.a/1.0.0" ), groups( VersionIndex.read( location ) ) );
+
+        content.setLastModified( content.lastModified() + 1000 );
+        assertEquals( null, VersionIndex.read( location ) );
+    }
+
+    @Test
+    public void indexOfContentSavedAgainIsNotStored()
+        throws Exception
+    {
+        final File directory = folder.newFolder( "repo" );
+        final File content = FileTransferTest.write( new File( directory, "content.xml" ), "<units a/>" );
+        content.setLastModified( System.currentTimeMillis() - 60000 );
+        final URI location = TestRuntime.uri( directory );
+        index( "unit.b" ).write( location, VersionIndex.fingerprint( location ) );
+        final long[] fingerprint = VersionIndex.fingerprint( location );
+
+        // saved by another writer before the index of the first save is written
+        FileTransferTest.write( content, "<units a b/>" );
+        index( "unit.a" ).write( location, fingerprint );
+
+        assertEquals( null, VersionIndex.read( location ) );
+        assertEquals( false, new File( directory, VersionIndex.FILE_NAME ).exists() );
+    }
+
+    @Test
+    public void unusableIndexesAreIgnored()
+        throws Exception
+    {
+        final File directory = folder.newFolder( "repo" );
+        FileTransferTest.write( new File( directory, "content.xml" ), "<units/>" );
+        final URI location = TestRuntime.uri( directory );
+        final URI other = TestRuntime.uri( folder.newFolder( "other" ) );
+
+        assertEquals( null, VersionIndex.read( location ) );
+
+        index( "unit.a" ).write( location, VersionIndex.fingerprint( location ) );
+        assertEquals( null, VersionIndex.read( location, other ) );
+        assertEquals( null, VersionIndex.read( location, URI.create( "http://localhost/repo/" ) ) );
+
+        final File index = new File( directory, VersionIndex.FILE_NAME );
+        FileTransferTest.write( index, FileTransferTest.read( index ).substring( 0, 20 ) );
+        assertEquals( null, VersionIndex.read( location ) );
+    }
+
+    private static Set<IUIdentity> query( final List<IInstallableUnit> units, final String spec,
+                                          final boolean onlyUpdates )
+    {
+        // same range as the former one query per spec implementation of getVersions
+        final IVersionedId versionedId = VersionedId.parse( spec );
+        final Version version = versionedId.getVersion();
+        VersionRange range = VersionRange.emptyRange;
+        if ( !Version.emptyVersion.equals( version ) )
+        {
+            range = new VersionRange( version, !onlyUpdates, onlyUpdates ? null : version, true );
+        }
+        final Set<IUIdentity> found = new HashSet<IUIdentity>();
+        final Iterator<IInstallableUnit> it =
+            QueryUtil.createIUQuery( versionedId.getId(), range ).perform( units.iterator() ).iterator();
+        while ( it.hasNext() )
+        {
+            final IInstallableUnit iu = it.next();
+            found.add( new IUIdentity( iu.getId(), iu.getVersion().toString() ) );
+        }
+        return found;
+    }
+
+    private static IInstallableUnit createIU( final String id, final String version, final boolean group )
+    {
+        final InstallableUnitDescription description = new InstallableUnitDescription();
+        description.setId( id );
+        description.setVersion( Version.create( version ) );
+        if ( group )
+        {
+            description.setProperty( InstallableUnitDescription.PROP_TYPE_GROUP, Boolean.TRUE.toString() );
+        }
+        return MetadataFactory.createInstallableUnit( description );
+    }
+
+    private static MetadataRepositoryService newService()
+    {
+        final MetadataRepositoryService service = new MetadataRepositoryService();
+        service.setProvisioningAgentProvider( TestRuntime.getAgentProvider() );
+        return service;
+    }
+
+    private static VersionIndex index( final String... groups )
+    {
+        final VersionIndex index = new VersionIndex();
+        for ( final String id : groups )
+        {
+            index.add( id, Version.create( "1.0.0" ), true );
+        }
+        return index;
+    }
+
+    private static Set<IUIdentity> groups( final VersionIndex index )
+    {
+        final Set<IUIdentity> groups = new HashSet<IUIdentity>();
+        index.collectGroups( groups );
+        return groups;
+    }
+
+    static InstallableUnit unit( final String id, final String version )
+    {
+        final InstallableUnit unit = new InstallableUnit();
+        unit.setId( id );
+        unit.setVersion( version );
+        return unit;
+    }
+
+    private static Set<IUIdentity> identities( final String... specs )
+    {
+        final Set<IUIdentity> identities = new HashSet<IUIdentity>();
+        for ( final String spec : specs )
+        {
+            final IVersionedId versionedId = VersionedId.parse( spec );
+            identities.add( new IUIdentity( versionedId.getId(), versionedId.getVersion().toString() ) );
+        }
+        return identities;
+    }
+
+}